@@ -0,0 +1,95 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt.benchmark;
+
+import jpt.PageTemplate;
+import jpt.PageTemplateImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a template: parsing the document and compiling it
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuildBenchmark {
+    /**
+     * The number of static paragraphs in the page
+     */
+    @Param({"2", "20", "200"})
+    public int paragraphs;
+
+    private String templateText;
+    private File file;
+    private URL url;
+
+    @Setup
+    public void setUp () throws IOException {
+        this.templateText = Templates.page(this.paragraphs);
+        this.file = File.createTempFile("jpt-benchmark", ".html");
+        OutputStream output = new FileOutputStream(this.file);
+        try {
+            output.write(this.templateText.getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+        this.url = this.file.toURI().toURL();
+    }
+
+    @TearDown
+    public void tearDown () {
+        this.file.delete();
+    }
+
+    @Benchmark
+    public PageTemplate fromString () {
+        return new PageTemplateImpl.Builder().templateText(this.templateText).build();
+    }
+
+    @Benchmark
+    public PageTemplate fromUrl () {
+        return new PageTemplateImpl.Builder().url(this.url).build();
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt.benchmark;
+
+import jpt.PageTemplate;
+import jpt.PageTemplateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same values read by path expressions and by java: expressions:
+ * a property, a nested property, a method call and a condition
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionBenchmark {
+    private static final String PATH = "<html" + Templates.NAMESPACES + "><body><table>" +
+        "<tr tal:repeat=\"row rows\">" +
+        "<td tal:content=\"row/name\">name</td>" +
+        "<td tal:content=\"row/category/label\">category</td>" +
+        "<td tal:content=\"row/format( 'item: ' )\">format</td>" +
+        "<td tal:condition=\"row/inStock\">in stock</td></tr>" +
+        "</table></body></html>";
+
+    private static final String JAVA = "<html" + Templates.NAMESPACES + "><body><table>" +
+        "<tr tal:repeat=\"row rows\">" +
+        "<td tal:content=\"java: row.name\">name</td>" +
+        "<td tal:content=\"java: row.category.label\">category</td>" +
+        "<td tal:content=\"java: row.format('item: ')\">format</td>" +
+        "<td tal:condition=\"java: row.inStock\">in stock</td></tr>" +
+        "</table></body></html>";
+
+    @Param({"path", "java"})
+    public String expressions;
+
+    @Param({"100"})
+    public int rows;
+
+    private PageTemplate template;
+    private Map<String, Object> dictionary;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(1 << 20);
+
+    @Setup
+    public void setUp () {
+        this.template = Templates.build(this.expressions.equals("java") ? JAVA : PATH);
+        this.dictionary = Templates.pageDictionary(this.rows);
+    }
+
+    @Benchmark
+    public int render () throws PageTemplateException, IOException {
+        this.output.reset();
+        this.template.process(this.output, null, this.dictionary);
+        return this.output.size();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt.benchmark;
+
+import jpt.MacroResolver;
+import jpt.PageTemplate;
+import jpt.PageTemplateException;
+import jpt.PageTemplateImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A page built from macros: a layout macro whose slots are filled by
+ * the page, and a widget macro called for every row
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroBenchmark {
+    private static final String LAYOUT = "<html" + Templates.NAMESPACES + " metal:define-macro=\"layout\">" +
+        "<head><title metal:define-slot=\"title\">title</title></head>" +
+        "<body><div class=\"header\"><h1>Shop</h1></div>" +
+        "<div class=\"menu\" metal:define-slot=\"menu\"><a href=\"/\">Home</a></div>" +
+        "<div class=\"content\" metal:define-slot=\"content\">content</div>" +
+        "<div class=\"footer\">Footer</div></body></html>";
+
+    private static final String WIDGETS = "<html" + Templates.NAMESPACES + "><body>" +
+        "<div class=\"widget\" metal:define-macro=\"widget\">" +
+        "<h3 metal:define-slot=\"heading\">heading</h3>" +
+        "<p tal:content=\"row/name\">name</p><p tal:content=\"row/price\">price</p></div>" +
+        "</body></html>";
+
+    private static final String PAGE = "<html" + Templates.NAMESPACES +
+        " metal:use-macro=\"resolver/getPageTemplate( 'layout.jpt' )/macros/layout\">" +
+        "<title metal:fill-slot=\"title\" tal:content=\"title\">title</title>" +
+        "<div metal:fill-slot=\"content\">" +
+        "<div tal:repeat=\"row rows\">" +
+        "<div metal:use-macro=\"resolver/getPageTemplate( 'widgets.jpt' )/macros/widget\">" +
+        "<h3 metal:fill-slot=\"heading\" tal:content=\"row/category/label\">heading</h3></div>" +
+        "</div></div></html>";
+
+    /**
+     * The number of widget macro calls
+     */
+    @Param({"10", "100"})
+    public int widgets;
+
+    private PageTemplate template;
+    private Map<String, Object> dictionary;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(1 << 20);
+
+    @Setup
+    public void setUp () {
+        Map<String, PageTemplate> macros = new ConcurrentHashMap<String, PageTemplate>();
+        macros.put("layout.jpt", Templates.build(LAYOUT));
+        macros.put("widgets.jpt", Templates.build(WIDGETS));
+        this.template = new PageTemplateImpl.Builder()
+            .templateText(PAGE)
+            .suppressDeclaration(true)
+            .resolver(new MacroResolver(macros))
+            .build();
+        this.dictionary = Templates.pageDictionary(this.widgets);
+    }
+
+    @Benchmark
+    public int render () throws PageTemplateException, IOException {
+        this.output.reset();
+        this.template.process(this.output, null, this.dictionary);
+        return this.output.size();
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH command line options given,
+ * always adding the GC profiler so the allocation rate is reported
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+public final class Main {
+    /**
+     * Utility class, construction verboten
+     */
+    private Main () {
+    }
+
+    public static void main (String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if ((commandLine.shouldHelp()) || (commandLine.shouldList())
+            || (commandLine.shouldListProfilers()) || (commandLine.shouldListResultFormats())) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Options options = new OptionsBuilder()
+            .parent(commandLine)
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
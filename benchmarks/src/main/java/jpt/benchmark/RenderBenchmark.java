@@ -0,0 +1,88 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt.benchmark;
+
+import jpt.PageTemplate;
+import jpt.PageTemplateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a built template: small, medium and large pages,
+ * each a table of rows followed by static markup
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private PageTemplate template;
+    private Map<String, Object> dictionary;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(1 << 20);
+
+    @Setup
+    public void setUp () {
+        int rows;
+        int paragraphs;
+        if (this.size.equals("small")) {
+            rows = 5;
+            paragraphs = 2;
+        }
+        else if (this.size.equals("medium")) {
+            rows = 100;
+            paragraphs = 20;
+        }
+        else {
+            rows = 2000;
+            paragraphs = 200;
+        }
+        this.template = Templates.build(Templates.page(paragraphs));
+        this.dictionary = Templates.pageDictionary(rows);
+    }
+
+    @Benchmark
+    public int render () throws PageTemplateException, IOException {
+        this.output.reset();
+        this.template.process(this.output, null, this.dictionary);
+        return this.output.size();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt.benchmark;
+
+import jpt.PageTemplate;
+import jpt.PageTemplateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nested tal:repeat; each level repeats over the children of the
+ * item of the level above, so the page renders width^depth leaves
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepeatBenchmark {
+    @Param({"1", "2", "3", "4"})
+    public int depth;
+
+    @Param({"8"})
+    public int width;
+
+    private PageTemplate template;
+    private Map<String, Object> dictionary;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(1 << 20);
+
+    @Setup
+    public void setUp () {
+        StringBuilder template = new StringBuilder("<html" + Templates.NAMESPACES + "><body>");
+        String parent = "root";
+        for (int level = 1; level <= this.depth; level++) {
+            String item = "n" + level;
+            template.append("<ul><li tal:repeat=\"").append(item).append(' ').append(parent).append("/children\">")
+                .append("<span tal:content=\"").append(item).append("/name\">name</span>")
+                .append("<em tal:condition=\"repeat/").append(item).append("/odd\">odd</em>");
+            parent = item;
+        }
+        for (int level = 1; level <= this.depth; level++) {
+            template.append("</li></ul>");
+        }
+        template.append("</body></html>");
+        this.template = Templates.build(template.toString());
+        this.dictionary = new HashMap<String, Object>();
+        this.dictionary.put("root", Templates.tree("root", this.depth, this.width));
+    }
+
+    @Benchmark
+    public int render () throws PageTemplateException, IOException {
+        this.output.reset();
+        this.template.process(this.output, null, this.dictionary);
+        return this.output.size();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt.benchmark;
+
+import jpt.HTMLFragment;
+import jpt.PageTemplate;
+import jpt.PageTemplateException;
+import jpt.PageTemplateImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * structure content: markup parsed into an HTMLFragment and written
+ * as XHTML; either from Strings, parsed on every rendering, or from
+ * HTMLFragments created once
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructureBenchmark {
+    private static final String PAGE = "<html" + Templates.NAMESPACES + "><body>" +
+        "<div class=\"comment\" tal:repeat=\"comment comments\" tal:content=\"structure comment\">comment</div>" +
+        "</body></html>";
+
+    /**
+     * "string" for markup in Strings, "fragment" for prebuilt HTMLFragments
+     */
+    @Param({"string", "fragment"})
+    public String content;
+
+    @Param({"true", "false"})
+    public boolean allowHtml;
+
+    @Param({"20"})
+    public int comments;
+
+    private PageTemplate template;
+    private Map<String, Object> dictionary;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(1 << 20);
+
+    @Setup
+    public void setUp () {
+        this.template = new PageTemplateImpl.Builder()
+            .templateText(PAGE)
+            .suppressDeclaration(true)
+            .allowHtml(this.allowHtml)
+            .build();
+        List<Object> comments = new ArrayList<Object>();
+        for (int i = 0; i < this.comments; i++) {
+            String markup = "<p>Comment " + i + " by <b>reader &amp; critic</b>:<br>" +
+                "Loved it, see <a href=\"/page?id=" + i + "&sort=asc\">this page</a> & others.</p>" +
+                "<ul><li>one<li>two</ul>";
+            comments.add(this.content.equals("fragment") ? new HTMLFragment(markup, this.allowHtml) : markup);
+        }
+        this.dictionary = new HashMap<String, Object>();
+        this.dictionary.put("comments", comments);
+    }
+
+    @Benchmark
+    public int render () throws PageTemplateException, IOException {
+        this.output.reset();
+        this.template.process(this.output, null, this.dictionary);
+        return this.output.size();
+    }
+}
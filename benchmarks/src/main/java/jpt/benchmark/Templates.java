@@ -0,0 +1,207 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt.benchmark;
+
+import jpt.Constants;
+import jpt.PageTemplate;
+import jpt.PageTemplateImpl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The templates and data shared by the benchmarks
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+final class Templates {
+    static final String NAMESPACES = " xmlns:tal=\"" + Constants.TAL_NAMESPACE_URI + "\"" +
+        " xmlns:metal=\"" + Constants.METAL_NAMESPACE_URI + "\"";
+
+    /**
+     * Utility class, construction verboten
+     */
+    private Templates () {
+    }
+
+    static PageTemplate build (String templateText) {
+        return new PageTemplateImpl.Builder()
+            .templateText(templateText)
+            .suppressDeclaration(true)
+            .build();
+    }
+
+    /**
+     * A page: a header, a table of rows and static paragraphs
+     *
+     * @param paragraphs the number of static paragraphs
+     * @return template text
+     */
+    static String page (int paragraphs) {
+        StringBuilder template = new StringBuilder();
+        template.append("<html").append(NAMESPACES).append(">\n")
+            .append("<head><title tal:content=\"title\">title</title>\n")
+            .append("<meta name=\"description\" content=\"A page of products\"/></head>\n")
+            .append("<body>\n<div class=\"header\"><h1 tal:content=\"title\">title</h1>\n")
+            .append("<p>Welcome back, <span tal:replace=\"user/name\">name</span>.</p></div>\n")
+            .append("<table class=\"products\">\n")
+            .append("<tr><th>Id</th><th>Name</th><th>Category</th><th>Price</th><th>Stock</th></tr>\n")
+            .append("<tr tal:repeat=\"row rows\" tal:attributes=\"class row/style\">")
+            .append("<td tal:content=\"row/id\">1</td>")
+            .append("<td tal:content=\"row/name\">name</td>")
+            .append("<td tal:content=\"row/category/label\">category</td>")
+            .append("<td tal:content=\"row/price\">1.00</td>")
+            .append("<td><span tal:condition=\"row/inStock\">in stock</span>")
+            .append("<span tal:condition=\"not: row/inStock\">sold out</span></td></tr>\n")
+            .append("</table>\n");
+        for (int i = 0; i < paragraphs; i++) {
+            template.append("<div class=\"boilerplate\"><h2>Section ").append(i).append("</h2>\n")
+                .append("<p>Terms &amp; conditions apply. Prices include <em>all</em> taxes; ")
+                .append("delivery is free for orders over <strong>50</strong>.</p></div>\n");
+        }
+        template.append("<div class=\"footer\"><a href=\"/\">Home</a> | <a href=\"/about\">About</a></div>\n")
+            .append("</body>\n</html>");
+        return template.toString();
+    }
+
+    /**
+     * @param rows the number of table rows
+     * @return the variables used by page()
+     */
+    static Map<String, Object> pageDictionary (int rows) {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("title", "Products & prices");
+        dictionary.put("user", new User("Ada <admin>"));
+        dictionary.put("rows", rows(rows));
+        return dictionary;
+    }
+
+    static List<Row> rows (int count) {
+        Category[] categories = {new Category("Books"), new Category("Music"), new Category("Garden")};
+        List<Row> rows = new ArrayList<Row>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new Row(i, "Product " + i, categories[i % categories.length], i * 1.25, i % 7 != 0));
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * A tree of nodes, each with width children, depth levels deep
+     */
+    static Node tree (String name, int depth, int width) {
+        List<Node> children = new ArrayList<Node>(width);
+        if (depth > 0) {
+            for (int i = 0; i < width; i++) {
+                children.add(tree(name + "." + i, depth - 1, width));
+            }
+        }
+        return new Node(name, children);
+    }
+
+    public static final class User {
+        private final String name;
+
+        User (String name) {
+            this.name = name;
+        }
+
+        public String getName () {
+            return this.name;
+        }
+    }
+
+    public static final class Category {
+        private final String label;
+
+        Category (String label) {
+            this.label = label;
+        }
+
+        public String getLabel () {
+            return this.label;
+        }
+    }
+
+    public static final class Row {
+        private final int id;
+        private final String name;
+        private final Category category;
+        private final double price;
+        private final boolean inStock;
+
+        Row (int id, String name, Category category, double price, boolean inStock) {
+            this.id = id;
+            this.name = name;
+            this.category = category;
+            this.price = price;
+            this.inStock = inStock;
+        }
+
+        public int getId () {
+            return this.id;
+        }
+
+        public String getName () {
+            return this.name;
+        }
+
+        public Category getCategory () {
+            return this.category;
+        }
+
+        public double getPrice () {
+            return this.price;
+        }
+
+        public boolean isInStock () {
+            return this.inStock;
+        }
+
+        public String getStyle () {
+            return this.id % 2 == 0 ? "even" : "odd";
+        }
+
+        public String format (String prefix) {
+            return prefix + this.name;
+        }
+    }
+
+    public static final class Node {
+        private final String name;
+        private final List<Node> children;
+
+        Node (String name, List<Node> children) {
+            this.name = name;
+            this.children = children;
+        }
+
+        public String getName () {
+            return this.name;
+        }
+
+        public List<Node> getChildren () {
+            return this.children;
+        }
+    }
+}
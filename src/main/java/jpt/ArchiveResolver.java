@@ -0,0 +1,106 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.net.URL;
+
+/**
+ * Serves the templates and expression scripts of a TemplateArchive. The
+ * archive is memory-mapped, so the template sources stay off the Java heap
+ * and are shared with other processes through the page cache; a template
+ * is decoded the first time it is used, and again only if it was evicted
+ * from the TemplateCache.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+public class ArchiveResolver extends Resolver {
+    private static final long serialVersionUID = 2860431327725193481L;
+
+    protected final File file;
+    protected final transient TemplateArchive archive;
+
+    /**
+     * @param file an archive written by TemplateArchive
+     * @throws IOException if the archive can not be read
+     */
+    public ArchiveResolver (File file) throws IOException {
+        this.file = file;
+        this.archive = new TemplateArchive(file);
+    }
+
+    /**
+     * The archive is mapped again when a resolver is deserialized
+     */
+    private Object readResolve () throws ObjectStreamException {
+        try {
+            return new ArchiveResolver(this.file);
+        }
+        catch (IOException e) {
+            throw ((InvalidObjectException) new InvalidObjectException("can't map template archive: " + this.file).initCause(e));
+        }
+    }
+
+    public TemplateArchive getArchive () {
+        return this.archive;
+    }
+
+    /**
+     * The archive has no URLs
+     *
+     * @return null
+     */
+    protected URL getResource (String path) {
+        return null;
+    }
+
+    @Override
+    protected PageTemplate loadPageTemplate (String path) {
+        PageTemplateImpl.Builder builder = this.archive.builder(path);
+        return builder == null ? null : buildPageTemplate(builder);
+    }
+
+    /**
+     * Builds a template decoded from the archive; the template
+     * uses this Resolver to find the templates it calls
+     *
+     * @param builder the Builder of the archived template
+     * @return PageTemplate
+     */
+    protected PageTemplate buildPageTemplate (PageTemplateImpl.Builder builder) {
+        return builder.resolver(this).build();
+    }
+
+    @Override
+    protected ExpressionScript getExpressionScript (String path) throws IOException {
+        ExpressionScript script = scripts.get(path);
+        if (script == null) {
+            script = this.archive.getExpressionScript(path);
+            if (script != null) {
+                scripts.put(path, script);
+            }
+        }
+        return script;
+    }
+}
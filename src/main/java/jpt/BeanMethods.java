@@ -0,0 +1,206 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The methods called from path expressions, resolved once per class,
+ * method name and the runtime classes of the arguments.
+ * Failed lookups are remembered as well, so a missing method is not
+ * searched for again on every call.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+final class BeanMethods {
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final MethodType invokerType =
+        MethodType.methodType(Object.class, Object.class, Object[].class);
+    /**
+     * Resolved signatures kept per class; the map is cleared when full
+     */
+    private static final int MAX_SIGNATURES = 1000;
+    private static final Invoker NO_SUCH_METHOD = new Invoker(null);
+
+    private static final ClassValue<ConcurrentMap<Signature, Invoker>> beanMethods =
+        new ClassValue<ConcurrentMap<Signature, Invoker>>() {
+            @Override
+            protected ConcurrentMap<Signature, Invoker> computeValue (Class<?> clazz) {
+                return new ConcurrentHashMap<Signature, Invoker>();
+            }
+        };
+
+    private BeanMethods () {
+    }
+
+    /**
+     * @param clazz      the class declaring or inheriting the method
+     * @param methodName method name
+     * @param arguments  the argument values; nulls match any parameter type
+     * @return the Invoker of the first public method accepting the arguments,
+     *         or null if there is no such method
+     */
+    static Invoker getInvoker (Class<?> clazz, String methodName, Object[] arguments) {
+        Class<?>[] argumentClasses = new Class<?>[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            argumentClasses[i] = arguments[i] == null ? null : arguments[i].getClass();
+        }
+        Signature signature = new Signature(methodName, argumentClasses);
+        ConcurrentMap<Signature, Invoker> invokers = beanMethods.get(clazz);
+        Invoker invoker = invokers.get(signature);
+        if (invoker == null) {
+            Method method = findMethod(clazz, methodName, argumentClasses);
+            invoker = method == null ? NO_SUCH_METHOD : new Invoker(method);
+            if (invokers.size() >= MAX_SIGNATURES) {
+                invokers.clear();
+            }
+            invokers.put(signature, invoker);
+        }
+        return invoker == NO_SUCH_METHOD ? null : invoker;
+    }
+
+    private static Method findMethod (Class<?> clazz, String methodName, Class<?>[] argumentClasses) {
+        for (Method method : clazz.getMethods()) {
+            if (!method.getName().equals(methodName)) {
+                continue;
+            }
+            Class<?>[] parms = method.getParameterTypes();
+            if (parms.length == argumentClasses.length) {
+                boolean match = true;
+                for (int j = 0; (j < parms.length) && (match); j++) {
+                    if ((argumentClasses[j] == null) || (Expression.primitiveToClass(parms[j]).isAssignableFrom(argumentClasses[j]))) {
+                        continue;
+                    }
+                    match = false;
+                }
+                if (match) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Calls one method; through a MethodHandle if the method
+     * is accessible to JPT, otherwise by reflection.
+     */
+    static final class Invoker {
+        private final Method method;
+        private final MethodHandle handle;
+
+        private Invoker (Method method) {
+            this.method = method;
+            MethodHandle handle = null;
+            if (method != null) {
+                if (!method.isAccessible()) {
+                    try {
+                        method.setAccessible(true);
+                    }
+                    catch (RuntimeException e) {
+                    }
+                }
+                try {
+                    handle = lookup.unreflect(method).asFixedArity();
+                    if (Modifier.isStatic(method.getModifiers())) {
+                        handle = MethodHandles.dropArguments(handle, 0, Object.class);
+                    }
+                    handle = handle.asSpreader(Object[].class, method.getParameterTypes().length)
+                        .asType(invokerType);
+                }
+                catch (IllegalAccessException e) {
+                    // Method.invoke() reports the error when the method is called
+                    handle = null;
+                }
+            }
+            this.handle = handle;
+        }
+
+        /**
+         * @param object    the receiver; null for static methods
+         * @param arguments the argument values
+         * @return the result of the method, null for void methods
+         * @throws ExpressionEvaluationException if the method throws an exception
+         */
+        Object invoke (Object object, Object[] arguments)
+            throws ExpressionEvaluationException {
+            if (this.handle == null) {
+                try {
+                    return this.method.invoke(object, arguments);
+                }
+                catch (RuntimeException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new ExpressionEvaluationException(e);
+                }
+            }
+            try {
+                return (Object) this.handle.invokeExact(object, arguments);
+            }
+            catch (Throwable e) {
+                // as Method.invoke() would report it
+                throw new ExpressionEvaluationException(new InvocationTargetException(e));
+            }
+        }
+    }
+
+    /**
+     * A method name and the runtime classes of its arguments
+     */
+    private static final class Signature {
+        private final String methodName;
+        private final Class<?>[] argumentClasses;
+        private final int hashCode;
+
+        Signature (String methodName, Class<?>[] argumentClasses) {
+            this.methodName = methodName;
+            this.argumentClasses = argumentClasses;
+            this.hashCode = 31 * methodName.hashCode() + Arrays.hashCode(argumentClasses);
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!((o instanceof Signature))) {
+                return false;
+            }
+            Signature signature = (Signature) o;
+            return this.methodName.equals(signature.methodName)
+                && Arrays.equals(this.argumentClasses, signature.argumentClasses);
+        }
+
+        @Override
+        public int hashCode () {
+            return this.hashCode;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The readable bean properties of a class, introspected once per class.
+ * The properties are held in a ClassValue, so a class and its class loader
+ * can still be unloaded when only this cache refers to them.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+final class BeanProperties {
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final MethodType getterType = MethodType.methodType(Object.class, Object.class);
+    private static final Object[] emptyArray = new Object[0];
+
+    private static final ClassValue<BeanProperties> beanProperties = new ClassValue<BeanProperties>() {
+        @Override
+        protected BeanProperties computeValue (Class<?> clazz) {
+            return new BeanProperties(clazz);
+        }
+    };
+
+    private final Map<String, Reader> readers;
+    private final IntrospectionException error;
+
+    private BeanProperties (Class<?> clazz) {
+        Map<String, Reader> readers = new HashMap<String, Reader>();
+        IntrospectionException error = null;
+        try {
+            for (PropertyDescriptor property : Introspector.getBeanInfo(clazz).getPropertyDescriptors()) {
+                readers.put(property.getName(), new Reader(property.getName(), property.getReadMethod()));
+            }
+        }
+        catch (IntrospectionException e) {
+            error = e;
+        }
+        this.readers = Collections.unmodifiableMap(readers);
+        this.error = error;
+    }
+
+    /**
+     * @param clazz the class of the bean
+     * @param name  property name
+     * @return the Reader of the property, or null if the class has no such property
+     * @throws ExpressionEvaluationException if the class can not be introspected
+     */
+    static Reader getReader (Class<?> clazz, String name)
+        throws ExpressionEvaluationException {
+        BeanProperties properties = beanProperties.get(clazz);
+        if (properties.error != null) {
+            throw new ExpressionEvaluationException(properties.error);
+        }
+        return properties.readers.get(name);
+    }
+
+    /**
+     * Reads one property; through a MethodHandle if the read method
+     * is accessible to JPT, otherwise by reflection.
+     */
+    static final class Reader {
+        private final String name;
+        private final Method method;
+        private final MethodHandle handle;
+
+        private Reader (String name, Method method) {
+            this.name = name;
+            this.method = method;
+            MethodHandle handle = null;
+            if (method != null) {
+                if (!method.isAccessible()) {
+                    try {
+                        method.setAccessible(true);
+                    }
+                    catch (RuntimeException e) {
+                    }
+                }
+                try {
+                    handle = lookup.unreflect(method).asType(getterType);
+                }
+                catch (IllegalAccessException e) {
+                    // Method.invoke() reports the error when the property is read
+                }
+            }
+            this.handle = handle;
+        }
+
+        Object read (Object object)
+            throws ExpressionEvaluationException {
+            if (this.method == null) {
+                throw new ExpressionEvaluationException("property '" + this.name + "' of " + object.getClass().getName() + " can't be read");
+            }
+            if (this.handle == null) {
+                try {
+                    return this.method.invoke(object, emptyArray);
+                }
+                catch (RuntimeException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new ExpressionEvaluationException(e);
+                }
+            }
+            try {
+                return (Object) this.handle.invokeExact(object);
+            }
+            catch (Throwable e) {
+                // as Method.invoke() would report it
+                throw new ExpressionEvaluationException(new InvocationTargetException(e));
+            }
+        }
+    }
+}
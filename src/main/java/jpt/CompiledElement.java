@@ -0,0 +1,676 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import jpt.util.MetalStatement;
+import jpt.util.TalStatement;
+import org.jdom.Attribute;
+import org.jdom.CDATA;
+import org.jdom.Comment;
+import org.jdom.Content;
+import org.jdom.Element;
+import org.jdom.EntityRef;
+import org.jdom.Namespace;
+import org.jdom.ProcessingInstruction;
+import org.jdom.Text;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An element of a template, compiled once when the template is built.
+ * The TAL and METAL statements are classified, the plain attributes and
+ * the namespace declarations to be written are collected, so that rendering
+ * only has to execute the precomputed structure rather than re-examine
+ * the JDOM tree on every request.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+final class CompiledElement {
+    final Element element;
+    final String prefix;
+    final String name;
+    final String namespaceUri;
+    final Expressions expressions;
+    final List<PageTemplateImpl.SavedAttribute> attributes;
+    final Map<String, String> attrs;
+    final List<Namespace> namespaces;
+    /**
+     * Child nodes: a CompiledElement, StaticContent, EncodedText,
+     * or another JDOM Content node
+     */
+    final List<Object> content;
+    /**
+     * true if neither the element nor its descendants have TAL or METAL statements;
+     * it is then rendered as part of its parent's StaticContent
+     */
+    final boolean staticMarkup;
+    /**
+     * The metal:fill-slot elements within a metal:use-macro element, by slot name;
+     * empty for any other element
+     */
+    final Map<String, CompiledElement> fillSlots;
+    /**
+     * The metal:define-slot elements within a metal:define-macro element, by slot name;
+     * empty for any other element
+     */
+    final Map<String, CompiledElement> defineSlots;
+    /**
+     * The tags and static markup, encoded for Utf8StreamWriter;
+     * the namespaces or attributes are null if they could not be encoded.
+     */
+    final byte[] startTag;
+    final byte[] endTag;
+    final byte[] encodedNamespaces;
+    final byte[] encodedAttributes;
+    /**
+     * Errors in the statements are reported when the element is rendered,
+     * not when the template is built.
+     */
+    final String error;
+
+    // The statement expressions, parsed
+    final CompiledExpression evaluate;
+    final CompiledExpression useMacro;
+    final List<Assignment> define;
+    final CompiledExpression condition;
+    final String repeatVariable;
+    final CompiledExpression repeat;
+    final CompiledExpression talContent;
+    final boolean structure;
+    final List<Assignment> talAttributes;
+    /**
+     * The omit-tag condition; null if the tag is never or always omitted
+     */
+    final CompiledExpression omitTag;
+    /**
+     * The output is flushed once the element is written
+     */
+    final boolean flush;
+    /**
+     * tal:parallel: the element may be rendered on another thread, into a buffer of its own
+     */
+    final boolean parallel;
+    /**
+     * Some child element is marked tal:parallel
+     */
+    final boolean parallelContent;
+
+    private CompiledElement (Element element, Expressions expressions,
+                             List<PageTemplateImpl.SavedAttribute> attributes,
+                             List<Object> content, boolean staticMarkup, String error) {
+        this.element = element;
+        this.prefix = element.getNamespacePrefix();
+        this.name = element.getName();
+        this.namespaceUri = element.getNamespaceURI();
+        this.expressions = expressions;
+        this.attributes = Collections.unmodifiableList(attributes);
+        this.error = error;
+        this.content = Collections.unmodifiableList(content);
+        this.staticMarkup = staticMarkup;
+
+        Map<String, String> attrs = new HashMap<String, String>();
+        for (PageTemplateImpl.SavedAttribute savedAttribute : attributes) {
+            attrs.put(savedAttribute.getLocalPart(), savedAttribute.getValue());
+        }
+        this.attrs = Collections.unmodifiableMap(attrs);
+
+        List<Namespace> namespaces = new ArrayList<Namespace>();
+        for (Object o : element.getAdditionalNamespaces()) {
+            Namespace namespace = (Namespace) o;
+            if ((!namespace.getURI().equals(Constants.TAL_NAMESPACE_URI))
+                && (!namespace.getURI().equals(Constants.METAL_NAMESPACE_URI))) {
+                namespaces.add(namespace);
+            }
+        }
+        this.namespaces = Collections.unmodifiableList(namespaces);
+
+        this.startTag = Utf8StreamWriter.encodeStartTag(this.prefix, this.name);
+        this.endTag = Utf8StreamWriter.encodeEndTag(this.prefix, this.name);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (Namespace namespace : namespaces) {
+            encoded = append(encoded, Utf8StreamWriter.encodeNamespace(namespace.getPrefix(), namespace.getURI()));
+        }
+        this.encodedNamespaces = encoded == null ? null : encoded.toByteArray();
+        encoded = new ByteArrayOutputStream();
+        for (PageTemplateImpl.SavedAttribute attribute : attributes) {
+            String prefix = attribute.getPrefix();
+            String qualifiedName = ((prefix == null) || (prefix.length() == 0))
+                ? attribute.getLocalPart() : prefix + ":" + attribute.getLocalPart();
+            encoded = append(encoded, Utf8StreamWriter.encodeAttribute(qualifiedName, attribute.getValue()));
+        }
+        this.encodedAttributes = encoded == null ? null : encoded.toByteArray();
+
+        this.evaluate = compileExpression(expressions.evaluate);
+        this.useMacro = compileExpression(expressions.useMacro);
+        this.define = compileAssignments(expressions.define, DEFINE);
+        this.condition = compileExpression(expressions.condition);
+        String repeatVariable = null;
+        CompiledExpression repeat = null;
+        if (expressions.repeat != null) {
+            String expression = expressions.repeat.trim();
+            int space = expression.indexOf(' ');
+            if (space != -1) {
+                repeatVariable = expression.substring(0, space);
+                repeat = Expression.compile(expression.substring(space + 1));
+            }
+        }
+        this.repeatVariable = repeatVariable;
+        this.repeat = repeat;
+        String talContent = expressions.content;
+        this.structure = (talContent != null) && (talContent.startsWith("structure "));
+        if (this.structure) {
+            talContent = talContent.substring("structure ".length());
+        }
+        else if ((talContent != null) && (talContent.startsWith("text "))) {
+            talContent = talContent.substring("text ".length());
+        }
+        this.talContent = compileExpression(talContent);
+        this.talAttributes = compileAssignments(expressions.attributes, ATTRIBUTES);
+        if ((expressions.omitTag != null) && (!expressions.omitTag.equals(""))) {
+            this.omitTag = Expression.compile(expressions.omitTag);
+        }
+        else {
+            this.omitTag = null;
+        }
+
+        this.flush = expressions.flush != null;
+        this.parallel = expressions.parallel != null;
+        boolean parallelContent = false;
+        for (Object node : content) {
+            parallelContent = parallelContent || (((node instanceof CompiledElement)) && (((CompiledElement) node).parallel));
+        }
+        this.parallelContent = parallelContent;
+        this.fillSlots = expressions.useMacro == null
+            ? Collections.<String, CompiledElement>emptyMap() : findSlots(this, true);
+        this.defineSlots = expressions.defineMacro == null
+            ? Collections.<String, CompiledElement>emptyMap() : findSlots(this, false);
+    }
+
+    /**
+     * Adds the variables which the paths in the statements of this element start from
+     *
+     * @param names receives the variable names
+     */
+    void addVariables (Set<String> names) {
+        for (CompiledExpression expression : new CompiledExpression[]{this.evaluate, this.useMacro,
+            this.condition, this.repeat, this.talContent, this.omitTag}) {
+            if (expression != null) {
+                expression.addVariables(names);
+            }
+        }
+        for (List<Assignment> assignments : Arrays.asList(this.define, this.talAttributes)) {
+            if (assignments != null) {
+                for (Assignment assignment : assignments) {
+                    if (assignment.expression != null) {
+                        assignment.expression.addVariables(names);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Map<String, CompiledElement> findSlots (CompiledElement element, boolean fill) {
+        Map<String, CompiledElement> slots = new LinkedHashMap<String, CompiledElement>();
+        findSlots(element, fill, slots);
+        return Collections.unmodifiableMap(slots);
+    }
+
+    /**
+     * Recurses through the compiled tree to find the slots filled,
+     * or defined, within an element; a later slot of the same name wins
+     */
+    private static void findSlots (CompiledElement element, boolean fill,
+                                   Map<String, CompiledElement> slots) {
+        String name = fill ? element.expressions.fillSlot : element.expressions.defineSlot;
+        if (name != null) {
+            slots.put(name, element);
+        }
+        for (Object node : element.content) {
+            if ((node instanceof CompiledElement)) {
+                findSlots((CompiledElement) node, fill, slots);
+            }
+        }
+    }
+
+    private static ByteArrayOutputStream append (ByteArrayOutputStream encoded, byte[] bytes) {
+        if ((encoded == null) || (bytes == null)) {
+            return null;
+        }
+        encoded.write(bytes, 0, bytes.length);
+        return encoded;
+    }
+
+    private static CompiledExpression compileExpression (String expression) {
+        return expression == null ? null : Expression.compile(expression);
+    }
+
+    private static List<Assignment> compileAssignments (String expression, String kind) {
+        if (expression == null) {
+            return null;
+        }
+        try {
+            return parseAssignments(expression, kind);
+        }
+        catch (ExpressionSyntaxException e) {
+            // reported by parsing again when the element is rendered
+            return null;
+        }
+    }
+
+    static final String DEFINE = "bad variable definition: ";
+    static final String ATTRIBUTES = "bad attributes expression: ";
+    private static final String LOCAL = "local ";
+    private static final String GLOBAL = "global ";
+
+    /**
+     * Parses the ';' separated "name expression" pairs
+     * of tal:define and tal:attributes. A definition may start
+     * with "local" or "global"; it is global if neither is given.
+     *
+     * @param expression statement
+     * @param kind       DEFINE or ATTRIBUTES; used for error messages
+     * @return List of Assignments
+     * @throws ExpressionSyntaxException if the statement can not be tokenized
+     */
+    static List<Assignment> parseAssignments (String expression, String kind)
+        throws ExpressionSyntaxException {
+        List<Assignment> assignments = new ArrayList<Assignment>();
+        ExpressionTokenizer tokens = new ExpressionTokenizer(expression, ';', true);
+        while (tokens.hasMoreTokens()) {
+            String assignment = tokens.nextToken().trim();
+            boolean local = false;
+            if (DEFINE.equals(kind)) {
+                if (assignment.startsWith(LOCAL)) {
+                    local = true;
+                    assignment = assignment.substring(LOCAL.length()).trim();
+                }
+                else if (assignment.startsWith(GLOBAL)) {
+                    assignment = assignment.substring(GLOBAL.length()).trim();
+                }
+            }
+            int space = assignment.indexOf(32);
+            if (space == -1) {
+                assignments.add(new Assignment(null, null, false, kind + assignment));
+            }
+            else {
+                assignments.add(new Assignment(assignment.substring(0, space),
+                                               Expression.compile(assignment.substring(space + 1).trim()),
+                                               local, null));
+            }
+        }
+        return Collections.unmodifiableList(assignments);
+    }
+
+    /**
+     * Compiles an element and all of its descendants
+     *
+     * @param element            JDOM element to compile
+     * @param index              receives every compiled element, keyed by its JDOM element
+     * @param prefixNamespaceUri receives every namespace declared in the tree
+     * @param flushAfterHead     true to flush the output after any head element, as after tal:flush
+     * @return CompiledElement
+     */
+    static CompiledElement compile (Element element,
+                                    Map<Element, CompiledElement> index,
+                                    Map<String, String> prefixNamespaceUri,
+                                    boolean flushAfterHead) {
+        return compile(element, index, prefixNamespaceUri, flushAfterHead, true);
+    }
+
+    /**
+     * @param top false if the element is a child; the content of a static child
+     *            is encoded with the parent's content, not on its own
+     */
+    private static CompiledElement compile (Element element,
+                                            Map<Element, CompiledElement> index,
+                                            Map<String, String> prefixNamespaceUri,
+                                            boolean flushAfterHead, boolean top) {
+        addNamespace(prefixNamespaceUri, element.getNamespace());
+        for (Object o : element.getAdditionalNamespaces()) {
+            addNamespace(prefixNamespaceUri, (Namespace) o);
+        }
+
+        Expressions expressions = new Expressions();
+        List<PageTemplateImpl.SavedAttribute> attributes =
+            new ArrayList<PageTemplateImpl.SavedAttribute>();
+        String error = classifyAttributes(element, expressions, attributes, prefixNamespaceUri);
+        if ((flushAfterHead) && (expressions.flush == null) && ("head".equals(element.getName()))) {
+            expressions.flush = "";
+        }
+
+        boolean staticMarkup = (error == null) && (expressions.isEmpty());
+        List<Object> content = new ArrayList<Object>();
+        for (Object o : element.getContent()) {
+            if ((o instanceof Element)) {
+                CompiledElement child = compile((Element) o, index, prefixNamespaceUri, flushAfterHead, false);
+                staticMarkup = staticMarkup && child.staticMarkup;
+                content.add(child);
+            }
+            else if (((o instanceof Text)) && (!((o instanceof CDATA)))) {
+                String text = ((Text) o).getValue();
+                content.add(new EncodedText(text, Utf8StreamWriter.encodeCharacters(text)));
+            }
+            else {
+                content.add((Content) o);
+            }
+        }
+        if ((top) || (!staticMarkup)) {
+            content = groupStaticContent(content);
+        }
+        CompiledElement compiled = new CompiledElement(element, expressions, attributes,
+                                                       content, staticMarkup, error);
+        index.put(element, compiled);
+        return compiled;
+    }
+
+    /**
+     * Replaces each run of static child nodes which contains an element,
+     * or more than one node, by a StaticContent
+     */
+    private static List<Object> groupStaticContent (List<Object> content) {
+        List<Object> grouped = new ArrayList<Object>();
+        List<Object> run = new ArrayList<Object>();
+        for (Object node : content) {
+            if (((node instanceof CompiledElement)) && (!((CompiledElement) node).staticMarkup)) {
+                addRun(grouped, run);
+                grouped.add(node);
+            }
+            else {
+                run.add(node);
+            }
+        }
+        addRun(grouped, run);
+        return grouped;
+    }
+
+    private static void addRun (List<Object> grouped, List<Object> run) {
+        if ((run.size() == 1) && (!((run.get(0) instanceof CompiledElement)))) {
+            grouped.add(run.get(0));
+        }
+        else if (!run.isEmpty()) {
+            grouped.add(new StaticContent(new ArrayList<Object>(run)));
+        }
+        run.clear();
+    }
+
+    /**
+     * Writes a node which has no statements, as it is
+     *
+     * @param node   a static CompiledElement, StaticContent, EncodedText,
+     *               or another JDOM Content node
+     * @param writer destination
+     * @throws XMLStreamException if the node can not be written
+     */
+    static void write (Object node, XMLStreamWriter writer) throws XMLStreamException {
+        if ((node instanceof CompiledElement)) {
+            CompiledElement element = (CompiledElement) node;
+            writer.writeStartElement(element.prefix, element.name, element.namespaceUri);
+            for (Namespace namespace : element.namespaces) {
+                writer.writeNamespace(namespace.getPrefix(), namespace.getURI());
+            }
+            for (PageTemplateImpl.SavedAttribute attribute : element.attributes) {
+                writer.writeAttribute(attribute.getPrefix(),
+                                      attribute.getNamespaceUri(),
+                                      attribute.getLocalPart(),
+                                      attribute.getValue());
+            }
+            for (Object child : element.content) {
+                write(child, writer);
+            }
+            writer.writeEndElement();
+        }
+        else if ((node instanceof StaticContent)) {
+            for (Object child : ((StaticContent) node).nodes) {
+                write(child, writer);
+            }
+        }
+        else if ((node instanceof EncodedText)) {
+            writer.writeCharacters(((EncodedText) node).text);
+        }
+        else if ((node instanceof Comment)) {
+            writer.writeComment(((Comment) node).getValue());
+        }
+        else if ((node instanceof ProcessingInstruction)) {
+            ProcessingInstruction processingInstruction = (ProcessingInstruction) node;
+            writer.writeProcessingInstruction(processingInstruction.getTarget(),
+                                              processingInstruction.getData());
+        }
+        else if ((node instanceof CDATA)) {
+            writer.writeCData(((CDATA) node).getValue());
+        }
+        else if ((node instanceof EntityRef)) {
+            writer.writeEntityRef(((EntityRef) node).getName());
+        }
+    }
+
+    /**
+     * @return the attrs of the element rendered last, in document order; null if there is none
+     */
+    private static Map<String, String> lastAttrs (List<Object> nodes, Map<String, String> attrs) {
+        for (Object node : nodes) {
+            if ((node instanceof CompiledElement)) {
+                CompiledElement element = (CompiledElement) node;
+                attrs = lastAttrs(element.content, element.attrs);
+            }
+            else if (((node instanceof StaticContent)) && (((StaticContent) node).attrs != null)) {
+                attrs = ((StaticContent) node).attrs;
+            }
+        }
+        return attrs;
+    }
+
+    private static void addNamespace (Map<String, String> prefixNamespaceUri, Namespace namespace) {
+        prefixNamespaceUri.put(namespace.getPrefix(), namespace.getURI());
+    }
+
+    /**
+     * Sorts the attributes of an element into TAL and METAL statements
+     * and plain attributes which are passed on to the output.
+     *
+     * @return an error message for the first unknown statement found, or null
+     */
+    private static String classifyAttributes (Element element, Expressions expressions,
+                                              List<PageTemplateImpl.SavedAttribute> attributes,
+                                              Map<String, String> prefixNamespaceUri) {
+        for (Object o : element.getAttributes()) {
+            Attribute attribute = (Attribute) o;
+            Namespace namespace = attribute.getNamespace();
+            String name = attribute.getName();
+
+            if (Constants.TAL_NAMESPACE_URI.equals(namespace.getURI())) {
+                addNamespace(prefixNamespaceUri, namespace);
+                // tal:define
+                if (name.equals(TalStatement.DEFINE.getAttribute())) {
+                    expressions.define = attribute.getValue();
+                }
+                // tal:condition
+                else if (name.equals(TalStatement.CONDITION.getAttribute())) {
+                    expressions.condition = attribute.getValue();
+                }
+                // tal:repeat
+                else if (name.equals(TalStatement.REPEAT.getAttribute())) {
+                    expressions.repeat = attribute.getValue();
+                }
+                // tal:content
+                else if (name.equals(TalStatement.CONTENT.getAttribute())) {
+                    expressions.content = attribute.getValue();
+                }
+                // tal:replace
+                else if (name.equals(TalStatement.REPLACE.getAttribute())) {
+                    if (expressions.omitTag == null) {
+                        expressions.omitTag = "";
+                    }
+                    expressions.content = attribute.getValue();
+                }
+                // tal:attributes
+                else if (name.equals(TalStatement.ATTRIBUTES.getAttribute())) {
+                    expressions.attributes = attribute.getValue();
+                }
+                // tal:omit-tag
+                else if (name.equals(TalStatement.OMIT_TAG.getAttribute())) {
+                    expressions.omitTag = attribute.getValue();
+                }
+                // tal:flush
+                else if (name.equals(TalStatement.FLUSH.getAttribute())) {
+                    expressions.flush = attribute.getValue();
+                }
+                // tal:parallel
+                else if (name.equals(TalStatement.PARALLEL.getAttribute())) {
+                    expressions.parallel = attribute.getValue();
+                }
+                // tal:evaluate
+                else if (name.equals("evaluate")) {
+                    expressions.evaluate = attribute.getValue();
+                }
+                // error
+                else {
+                    return "unknown tal attribute: " + name;
+                }
+            }
+            else if (Constants.METAL_NAMESPACE_URI.equals(namespace.getURI())) {
+                addNamespace(prefixNamespaceUri, namespace);
+                // metal:use-macro
+                if (name.equals(MetalStatement.USE_MACRO.getAttribute())) {
+                    expressions.useMacro = attribute.getValue();
+                }
+                // metal:define-slot
+                else if (name.equals(MetalStatement.DEFINE_SLOT.getAttribute())) {
+                    expressions.defineSlot = attribute.getValue();
+                }
+                // metal:define-macro
+                else if (name.equals(MetalStatement.DEFINE_MACRO.getAttribute())) {
+                    expressions.defineMacro = attribute.getValue();
+                }
+                // metal:fill-slot
+                else if (name.equals(MetalStatement.FILL_SLOT.getAttribute())) {
+                    expressions.fillSlot = attribute.getValue();
+                }
+                // error
+                else {
+                    return "unknown metal attribute: " + name;
+                }
+            }
+            // Pass on all other attributes
+            else {
+                attributes.add(new PageTemplateImpl.SavedAttribute(attribute.getName(),
+                                                                   attribute.getNamespaceURI(),
+                                                                   attribute.getNamespacePrefix(),
+                                                                   attribute.getQualifiedName(),
+                                                                   attribute.getValue()));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Text content, with its escaped UTF-8 encoding
+     */
+    static final class EncodedText {
+        final String text;
+        /**
+         * null if the text can not be written
+         */
+        final byte[] encoded;
+
+        EncodedText (String text, byte[] encoded) {
+            this.text = text;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * A run of sibling nodes without statements, encoded once for Utf8StreamWriter
+     */
+    static final class StaticContent {
+        /**
+         * The nodes, written one by one if the encoded form can not be used
+         */
+        final List<Object> nodes;
+        /**
+         * null if the nodes can not be written; the error is
+         * reported when they are written one by one
+         */
+        final byte[] encoded;
+        /**
+         * The attrs of the last element in the run, which rendering
+         * leaves in scope; null if the run has no element
+         */
+        final Map<String, String> attrs;
+
+        StaticContent (List<Object> nodes) {
+            this.nodes = Collections.unmodifiableList(nodes);
+            Utf8StreamWriter encoder = Utf8StreamWriter.contentEncoder();
+            byte[] encoded;
+            try {
+                for (Object node : nodes) {
+                    write(node, encoder);
+                }
+                encoded = encoder.toContent();
+            }
+            catch (XMLStreamException e) {
+                encoded = null;
+            }
+            this.encoded = encoded;
+            this.attrs = lastAttrs(nodes, null);
+        }
+    }
+
+    /**
+     * A variable definition or an attribute replacement
+     */
+    static final class Assignment {
+        final String name;
+        final CompiledExpression expression;
+        /**
+         * true for a local variable definition
+         */
+        final boolean local;
+        /**
+         * A syntax error, reported when the assignment is made
+         */
+        final String error;
+
+        Assignment (String name, CompiledExpression expression, boolean local, String error) {
+            this.name = name;
+            this.expression = expression;
+            this.local = local;
+            this.error = error;
+        }
+    }
+
+    @Override
+    public String toString () {
+        return "CompiledElement{" +
+            "name='" + name + '\'' +
+            '}';
+    }
+}
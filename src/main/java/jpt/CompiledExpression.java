@@ -0,0 +1,634 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import jpt.util.EvalException;
+import jpt.util.ExpressionEvaluator;
+import jpt.util.VariableScope;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A TALES expression parsed once by Expression.compile(); evaluating it
+ * only walks the prebuilt nodes.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+abstract class CompiledExpression {
+    /**
+     * The source of the expression, reported with evaluation errors
+     */
+    final String expression;
+
+    CompiledExpression (String expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * Use Expression.evaluate(CompiledExpression, ExpressionEvaluator),
+     * which also reports the expression that failed.
+     */
+    abstract Object evaluate (ExpressionEvaluator expressionEvaluator)
+        throws ExpressionEvaluationException;
+
+    /**
+     * Adds the variables which the paths in this expression start from
+     *
+     * @param names receives the variable names
+     */
+    void addVariables (Set<String> names) {
+    }
+
+    @Override
+    public String toString () {
+        return getClass().getSimpleName() + "{" +
+            "expression='" + expression + '\'' +
+            '}';
+    }
+
+    /**
+     * An expression that failed to parse; the error is reported,
+     * by parsing it again, only if the expression is evaluated.
+     */
+    static final class Malformed extends CompiledExpression {
+        Malformed (String expression) {
+            super(expression);
+        }
+
+        Object evaluate (ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            return Expression.parse(this.expression).evaluate(expressionEvaluator);
+        }
+    }
+
+    /**
+     * A constant value
+     */
+    static final class Constant extends CompiledExpression {
+        private final Object value;
+
+        Constant (String expression, Object value) {
+            super(expression);
+            this.value = value;
+        }
+
+        Object evaluate (ExpressionEvaluator expressionEvaluator) {
+            return this.value;
+        }
+    }
+
+    /**
+     * string: expressions; literal text interleaved with
+     * $name and ${path} substitutions
+     */
+    static final class StringExpression extends CompiledExpression {
+        /**
+         * Either literal Strings or CompiledExpressions
+         */
+        private final Object[] parts;
+        private final String unclosed;
+
+        /**
+         * @param parts    the literal text and substitutions
+         * @param unclosed the expression if it has an unclosed left curly brace, otherwise null
+         */
+        StringExpression (String expression, Object[] parts, String unclosed) {
+            super(expression);
+            this.parts = parts;
+            this.unclosed = unclosed;
+        }
+
+        Object evaluate (ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            StringBuilder result = new StringBuilder(this.expression.length() * 2);
+            for (Object part : this.parts) {
+                if ((part instanceof CompiledExpression)) {
+                    result.append(String.valueOf(Expression.evaluate((CompiledExpression) part, expressionEvaluator)));
+                }
+                else {
+                    result.append((String) part);
+                }
+            }
+            if (this.unclosed != null) {
+                throw ((ExpressionSyntaxException) new ExpressionSyntaxException("unclosed left curly brace").setExpression(this.unclosed));
+            }
+            return result.toString();
+        }
+
+        @Override
+        void addVariables (Set<String> names) {
+            for (Object part : this.parts) {
+                if ((part instanceof CompiledExpression)) {
+                    ((CompiledExpression) part).addVariables(names);
+                }
+            }
+        }
+    }
+
+    /**
+     * not: expressions
+     */
+    static final class Not extends CompiledExpression {
+        private final CompiledExpression operand;
+
+        Not (String expression, CompiledExpression operand) {
+            super(expression);
+            this.operand = operand;
+        }
+
+        Object evaluate (ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            return Boolean.valueOf(!Expression.evaluateBoolean(this.operand, expressionEvaluator));
+        }
+
+        @Override
+        void addVariables (Set<String> names) {
+            this.operand.addVariables(names);
+        }
+    }
+
+    /**
+     * exists: expressions
+     */
+    static final class Exists extends CompiledExpression {
+        private final CompiledExpression operand;
+
+        Exists (String expression, CompiledExpression operand) {
+            super(expression);
+            this.operand = operand;
+        }
+
+        Object evaluate (ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            boolean exists = false;
+            try {
+                exists = Expression.evaluate(this.operand, expressionEvaluator) != null;
+            }
+            catch (NoSuchPathException e) {
+            }
+            return Boolean.valueOf(exists);
+        }
+
+        @Override
+        void addVariables (Set<String> names) {
+            this.operand.addVariables(names);
+        }
+    }
+
+    /**
+     * java: expressions, handed to the ExpressionEvaluator
+     */
+    static final class Java extends CompiledExpression {
+        private final String script;
+
+        Java (String expression, String script) {
+            super(expression);
+            this.script = script;
+        }
+
+        Object evaluate (ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            try {
+                return expressionEvaluator.eval(this.script);
+            }
+            catch (EvalException e) {
+                throw new ExpressionEvaluationException(e);
+            }
+        }
+    }
+
+    /**
+     * Path expressions separated by '|'; the first non null result is used
+     */
+    static final class Alternatives extends CompiledExpression {
+        private final CompiledExpression[] alternatives;
+
+        Alternatives (String expression, CompiledExpression[] alternatives) {
+            super(expression);
+            this.alternatives = alternatives;
+        }
+
+        Object evaluate (ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            NoSuchPathException exception = null;
+            Object result;
+            for (CompiledExpression alternative : this.alternatives) {
+                try {
+                    exception = null;
+                    result = Expression.evaluate(alternative, expressionEvaluator);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+                catch (NoSuchPathException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+            return null;
+        }
+
+        @Override
+        void addVariables (Set<String> names) {
+            for (CompiledExpression alternative : this.alternatives) {
+                alternative.addVariables(names);
+            }
+        }
+    }
+
+    /**
+     * A single path: a first token followed by '/' separated steps
+     */
+    static final class Path extends CompiledExpression {
+        /**
+         * The expression without its path: prefix
+         */
+        private final String path;
+        private final FirstStep first;
+        private final Step[] steps;
+
+        Path (String expression, String path, FirstStep first, Step[] steps) {
+            super(expression);
+            this.path = path;
+            this.first = first;
+            this.steps = steps;
+        }
+
+        Object evaluate (ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            Object result = this.first.evaluate(expressionEvaluator);
+            String token = this.first.token;
+            for (Step step : this.steps) {
+                if (result == null) {
+                    throw ((NoSuchPathException) new NoSuchPathException(token + " in '" + this.path + "' is null").setExpression(this.path));
+                }
+                result = step.evaluate(result, expressionEvaluator);
+                token = step.token;
+            }
+            return result;
+        }
+
+        @Override
+        void addVariables (Set<String> names) {
+            this.first.addVariables(names);
+            for (Step step : this.steps) {
+                step.addVariables(names);
+            }
+        }
+    }
+
+    /**
+     * Array accessors following a path token, e.g. [0][i]
+     */
+    static final class ArrayAccess {
+        /**
+         * The path token up to this accessor, used in error messages
+         */
+        final String token;
+        /**
+         * The index expression, or null if the accessor is malformed
+         */
+        final CompiledExpression index;
+        final String accessor;
+        final ArrayAccess next;
+
+        ArrayAccess (String token, CompiledExpression index, String accessor, ArrayAccess next) {
+            this.token = token;
+            this.index = index;
+            this.accessor = accessor;
+            this.next = next;
+        }
+
+        Object evaluate (Object result, ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            ArrayAccess access = this;
+            while (access != null) {
+                result = Expression.evaluateArrayAccess(access, result, expressionEvaluator);
+                access = access.next;
+            }
+            return result;
+        }
+
+        void addVariables (Set<String> names) {
+            for (ArrayAccess access = this; access != null; access = access.next) {
+                if (access.index != null) {
+                    access.index.addVariables(names);
+                }
+            }
+        }
+    }
+
+    /**
+     * The first token of a path: a literal or a variable
+     */
+    static final class FirstStep {
+        final String token;
+        /**
+         * the variable name, or null if the token is a literal
+         */
+        private final String variable;
+        /**
+         * the VariableScope slot of a well known variable, otherwise -1
+         */
+        private final int slot;
+        private final Object literal;
+        private final ArrayAccess arrayAccess;
+
+        FirstStep (String token, String variable, Object literal, ArrayAccess arrayAccess) {
+            this.token = token;
+            this.variable = variable;
+            this.slot = variable == null ? -1 : VariableScope.slotOf(variable);
+            this.literal = literal;
+            this.arrayAccess = arrayAccess;
+        }
+
+        Object evaluate (ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            Object result = this.literal;
+            VariableScope scope;
+            if ((this.slot != -1) && ((scope = VariableScope.of(expressionEvaluator)) != null)) {
+                result = Expression.await(scope.get(this.slot));
+            }
+            else if (this.variable != null) {
+                try {
+                    result = Expression.await(expressionEvaluator.get(this.variable));
+                }
+                catch (EvalException e) {
+                    throw new ExpressionEvaluationException(e);
+                }
+            }
+            if (this.arrayAccess != null) {
+                result = Expression.await(this.arrayAccess.evaluate(result, expressionEvaluator));
+            }
+            return Expression.handleScript(result, expressionEvaluator);
+        }
+
+        void addVariables (Set<String> names) {
+            if ((this.variable != null) && (this.slot == -1)) {
+                names.add(this.variable);
+            }
+            if (this.arrayAccess != null) {
+                this.arrayAccess.addVariables(names);
+            }
+        }
+    }
+
+    /**
+     * A path step after the first token: a property, a method call or
+     * an indirect ('?') reference
+     */
+    static abstract class Step {
+        final String token;
+        final ArrayAccess arrayAccess;
+
+        Step (String token, ArrayAccess arrayAccess) {
+            this.token = token;
+            this.arrayAccess = arrayAccess;
+        }
+
+        abstract Object evaluateStep (Object parent, ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException;
+
+        final Object evaluate (Object parent, ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            Object result = Expression.await(evaluateStep(parent, expressionEvaluator));
+            if (this.arrayAccess != null) {
+                result = Expression.await(this.arrayAccess.evaluate(result, expressionEvaluator));
+            }
+            return Expression.handleScript(result, expressionEvaluator);
+        }
+
+        void addVariables (Set<String> names) {
+            if (this.arrayAccess != null) {
+                this.arrayAccess.addVariables(names);
+            }
+        }
+    }
+
+    /**
+     * A bean property, a Map key or a List or array index. The step remembers
+     * the reader of the first bean class it reads and calls it directly while
+     * the parents are of that class; once a parent of another class is seen,
+     * the step always looks the property up. The class and its reader are held
+     * weakly: expressions are cached statically, and must not keep a class
+     * loader from being unloaded.
+     */
+    static final class PropertyStep extends Step {
+        private final String name;
+        /**
+         * null until a bean is read; MEGAMORPHIC once parents of two classes were seen
+         */
+        private volatile PropertySite site;
+
+        PropertyStep (String token, String name, ArrayAccess arrayAccess) {
+            super(token, arrayAccess);
+            this.name = name;
+        }
+
+        Object evaluateStep (Object parent, ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            PropertySite site = this.site;
+            if (site != null) {
+                if (site.clazz.get() == parent.getClass()) {
+                    // the reader lives as long as the class does
+                    return site.reader.get().read(parent);
+                }
+                if (site != PropertySite.MEGAMORPHIC) {
+                    this.site = PropertySite.MEGAMORPHIC;
+                }
+            }
+            else if (!((parent instanceof Map)) && !((parent instanceof List)) && !(parent.getClass().isArray())) {
+                BeanProperties.Reader reader = BeanProperties.getReader(parent.getClass(), this.name);
+                if (reader != null) {
+                    this.site = new PropertySite(parent.getClass(), reader);
+                    return reader.read(parent);
+                }
+            }
+            return Expression.getProperty(parent, this.name);
+        }
+    }
+
+    private static final class PropertySite {
+        static final PropertySite MEGAMORPHIC = new PropertySite(null, null);
+
+        final WeakReference<Class<?>> clazz;
+        /**
+         * Held strongly by BeanProperties for as long as the class lives
+         */
+        final WeakReference<BeanProperties.Reader> reader;
+
+        PropertySite (Class<?> clazz, BeanProperties.Reader reader) {
+            this.clazz = new WeakReference<Class<?>>(clazz);
+            this.reader = new WeakReference<BeanProperties.Reader>(reader);
+        }
+    }
+
+    /**
+     * A method call. As PropertyStep does, the step remembers the method
+     * it calls first, with the classes of the receiver and of the arguments,
+     * and calls it directly while the classes are the same; all held weakly.
+     */
+    static final class MethodStep extends Step {
+        private final String methodName;
+        private final CompiledExpression[] arguments;
+        /**
+         * null until a method is called; MEGAMORPHIC once calls with other classes were seen
+         */
+        private volatile MethodSite site;
+
+        MethodStep (String token, String methodName, CompiledExpression[] arguments, ArrayAccess arrayAccess) {
+            super(token, arrayAccess);
+            this.methodName = methodName;
+            this.arguments = arguments;
+        }
+
+        Object evaluateStep (Object parent, ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            Object[] values = new Object[this.arguments.length];
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Expression.evaluate(this.arguments[i], expressionEvaluator);
+                }
+            }
+            catch (ExpressionEvaluationException e) {
+                throw new ExpressionEvaluationException(e);
+            }
+            MethodSite site = this.site;
+            if (site != null) {
+                if (site.matches(parent, values)) {
+                    BeanMethods.Invoker invoker = site.invoker.get();
+                    if (invoker != null) {
+                        return invoker.invoke(parent, values);
+                    }
+                    // BeanMethods dropped its table of methods; look the method up again next time
+                    this.site = null;
+                }
+                else if (site != MethodSite.MEGAMORPHIC) {
+                    this.site = MethodSite.MEGAMORPHIC;
+                }
+            }
+            else if (!((parent instanceof Expression.StaticCall))) {
+                BeanMethods.Invoker invoker = BeanMethods.getInvoker(parent.getClass(), this.methodName, values);
+                if (invoker != null) {
+                    this.site = new MethodSite(parent, values, invoker);
+                    return invoker.invoke(parent, values);
+                }
+            }
+            return Expression.evaluateMethodCall(parent, this.methodName, values);
+        }
+
+        @Override
+        void addVariables (Set<String> names) {
+            super.addVariables(names);
+            for (CompiledExpression argument : this.arguments) {
+                argument.addVariables(names);
+            }
+        }
+    }
+
+    private static final class MethodSite {
+        static final MethodSite MEGAMORPHIC = new MethodSite(null, new Object[0], null);
+
+        final WeakReference<Class<?>> clazz;
+        /**
+         * null for a null argument
+         */
+        final WeakReference<?>[] argumentClasses;
+        /**
+         * Held strongly by BeanMethods for as long as the class lives,
+         * unless its table of methods fills up and is cleared
+         */
+        final WeakReference<BeanMethods.Invoker> invoker;
+
+        MethodSite (Object receiver, Object[] arguments, BeanMethods.Invoker invoker) {
+            this.clazz = new WeakReference<Class<?>>(receiver == null ? null : receiver.getClass());
+            this.argumentClasses = new WeakReference<?>[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] != null) {
+                    this.argumentClasses[i] = new WeakReference<Class<?>>(arguments[i].getClass());
+                }
+            }
+            this.invoker = new WeakReference<BeanMethods.Invoker>(invoker);
+        }
+
+        /**
+         * A null argument matches only a null argument, as the
+         * method found for a null may not accept every class
+         */
+        boolean matches (Object receiver, Object[] arguments) {
+            if ((this.clazz.get() != receiver.getClass()) || (this.argumentClasses.length != arguments.length)) {
+                return false;
+            }
+            for (int i = 0; i < arguments.length; i++) {
+                WeakReference<?> argumentClass = this.argumentClasses[i];
+                if (argumentClass == null ? arguments[i] != null
+                    : (arguments[i] == null) || (argumentClass.get() != arguments[i].getClass())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * ?name; the step to take is the value of a path token
+     */
+    static final class IndirectStep extends Step {
+        private final FirstStep indirect;
+
+        IndirectStep (String token, FirstStep indirect, ArrayAccess arrayAccess) {
+            super(token, arrayAccess);
+            this.indirect = indirect;
+        }
+
+        Object evaluateStep (Object parent, ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            String indirectToken = String.valueOf(this.indirect.evaluate(expressionEvaluator));
+            return Expression.parseStep(indirectToken).evaluate(parent, expressionEvaluator);
+        }
+
+        @Override
+        void addVariables (Set<String> names) {
+            super.addVariables(names);
+            this.indirect.addVariables(names);
+        }
+    }
+
+    /**
+     * A step that failed to parse; the error is reported,
+     * by parsing it again, only if the step is reached.
+     */
+    static final class MalformedStep extends Step {
+        MalformedStep (String token) {
+            super(token, null);
+        }
+
+        Object evaluateStep (Object parent, ExpressionEvaluator expressionEvaluator)
+            throws ExpressionEvaluationException {
+            return Expression.parseStep(this.token).evaluateStep(parent, expressionEvaluator);
+        }
+    }
+}
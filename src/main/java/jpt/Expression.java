@@ -22,14 +22,16 @@ import jpt.util.EvalException;
 import jpt.util.ExpressionEvaluator;
 import jpt.util.TalesPrefix;
 
-import java.beans.BeanInfo;
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
 import java.lang.reflect.Array;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -47,47 +49,40 @@ class Expression {
     private static final int SCANNING = 0;
     private static final int IN_PAREN = 1;
     private static final int IN_QUOTE = 2;
-    private static final Object[] emptyArray = new Object[0];
 
     private static final int maxIntegerLength = String.valueOf(2147483647).length();
     private static final Long maxIntegerAsLong = new Long(String.valueOf(2147483647));
     private static final Pattern naturalIntegerPattern = Pattern.compile("\\d{1," + maxIntegerLength + "}");
 
+    /**
+     * Parsed expressions shared by all templates, keyed by expression source
+     */
+    private static final ConcurrentMap<String, CompiledExpression> compiledExpressions =
+        new ConcurrentHashMap<String, CompiledExpression>();
+    private static final int MAX_COMPILED_EXPRESSIONS = 10000;
+
     static final Object evaluate (String expression, ExpressionEvaluator expressionEvaluator)
+        throws ExpressionEvaluationException {
+        return evaluate(compile(expression), expressionEvaluator);
+    }
+
+    static final Object evaluate (CompiledExpression expression, ExpressionEvaluator expressionEvaluator)
         throws ExpressionEvaluationException {
         try {
-            Object result;
-            if (expression.startsWith(TalesPrefix.string + ":")) {
-                result = evaluateString(expression, expressionEvaluator);
-            }
-            else {
-                if (expression.startsWith(TalesPrefix.exists + ":")) {
-                    result = evaluateExists(expression, expressionEvaluator);
-                }
-                else {
-                    if (expression.startsWith(TalesPrefix.not + ":")) {
-                        result = evaluateNot(expression, expressionEvaluator);
-                    }
-                    else {
-                        if (expression.startsWith(TalesPrefix.java + ":")) {
-                            result = evaluateJava(expression, expressionEvaluator);
-                        }
-                        else {
-                            result = evaluatePath(expression, expressionEvaluator);
-                        }
-                    }
-                }
-            }
-            return result;
+            return expression.evaluate(expressionEvaluator);
         }
         catch (ExpressionEvaluationException e) {
-            e.setExpression(expression);
+            e.setExpression(expression.expression);
             throw e;
         }
-
     }
 
     static final boolean evaluateBoolean (String expression, ExpressionEvaluator expressionEvaluator)
+        throws ExpressionEvaluationException {
+        return evaluateBoolean(compile(expression), expressionEvaluator);
+    }
+
+    static final boolean evaluateBoolean (CompiledExpression expression, ExpressionEvaluator expressionEvaluator)
         throws ExpressionEvaluationException {
         Object result = evaluate(expression, expressionEvaluator);
         if (result == null) {
@@ -120,94 +115,125 @@ class Expression {
         return true;
     }
 
-    static final String evaluateString (String stringExpression,
-                                        ExpressionEvaluator expressionEvaluator)
+    /**
+     * Parses an expression once; later calls with the same expression
+     * return the same parsed form. A malformed expression is not an error
+     * until it is evaluated.
+     *
+     * @param expression TALES expression
+     * @return CompiledExpression
+     */
+    static final CompiledExpression compile (String expression) {
+        CompiledExpression compiled = compiledExpressions.get(expression);
+        if (compiled == null) {
+            try {
+                compiled = parse(expression);
+            }
+            catch (ExpressionEvaluationException e) {
+                compiled = new CompiledExpression.Malformed(expression);
+            }
+            catch (RuntimeException e) {
+                compiled = new CompiledExpression.Malformed(expression);
+            }
+            if (compiledExpressions.size() >= MAX_COMPILED_EXPRESSIONS) {
+                compiledExpressions.clear();
+            }
+            compiledExpressions.put(expression, compiled);
+        }
+        return compiled;
+    }
+
+    static final CompiledExpression parse (String expression)
         throws ExpressionEvaluationException {
-        if (stringExpression.length() == (TalesPrefix.string + ":").length()) {
-            return "";
+        if (expression.startsWith(TalesPrefix.string + ":")) {
+            return parseString(expression);
+        }
+        if (expression.startsWith(TalesPrefix.exists + ":")) {
+            return new CompiledExpression.Exists(expression,
+                                                 compile(expression.substring((TalesPrefix.exists + ":").length())));
+        }
+        if (expression.startsWith(TalesPrefix.not + ":")) {
+            return new CompiledExpression.Not(expression,
+                                              compile(expression.substring((TalesPrefix.not + ":").length())));
         }
+        if (expression.startsWith(TalesPrefix.java + ":")) {
+            return new CompiledExpression.Java(expression,
+                                               expression.substring((TalesPrefix.java + ":").length()));
+        }
+        return parsePath(expression);
+    }
 
-        StringBuffer result = new StringBuffer(stringExpression.length() * 2);
+    private static CompiledExpression parseString (String stringExpression) {
+        if (stringExpression.length() == (TalesPrefix.string + ":").length()) {
+            return new CompiledExpression.Constant(stringExpression, "");
+        }
         String expression = stringExpression.substring((TalesPrefix.string + ":").length());
 
-        StringBuffer subexpression = new StringBuffer(20);
-        int state = 0;
+        List<Object> parts = new ArrayList<Object>();
+        StringBuilder literal = new StringBuilder(expression.length());
+        StringBuilder subexpression = new StringBuilder(20);
+        int state = STATE_SCANNING;
         int length = expression.length();
         for (int i = 0; i < length; i++) {
             char ch = expression.charAt(i);
 
             switch (state) {
-                case 0:
+                case STATE_SCANNING:
                     if (ch == '$') {
-                        state = 1;
+                        state = STATE_AT_DOLLAR;
                     }
                     else {
-                        result.append(ch);
+                        literal.append(ch);
                     }
                     break;
-                case 1:
+                case STATE_AT_DOLLAR:
                     if (ch == '$') {
-                        result.append('$');
-                        state = 0;
+                        literal.append('$');
+                        state = STATE_SCANNING;
                     }
                     else if (ch == '{') {
                         subexpression.setLength(0);
-                        state = 3;
+                        state = STATE_IN_BRACKETED_EXPRESSION;
                     }
                     else {
                         subexpression.setLength(0);
                         subexpression.append(ch);
-                        state = 2;
+                        state = STATE_IN_EXPRESSION;
                     }
                     break;
-                case 2:
-                case 3:
-                    if (((state == 3) && (ch == '}')) || ((state == 2) && (Character.isWhitespace(ch)))) {
-                        result.append(String.valueOf(evaluate(subexpression.toString(), expressionEvaluator)));
-                        if (state == 2) {
-                            result.append(ch);
+                case STATE_IN_EXPRESSION:
+                case STATE_IN_BRACKETED_EXPRESSION:
+                    if (((state == STATE_IN_BRACKETED_EXPRESSION) && (ch == '}'))
+                        || ((state == STATE_IN_EXPRESSION) && (Character.isWhitespace(ch)))) {
+                        addLiteral(parts, literal);
+                        parts.add(compile(subexpression.toString()));
+                        if (state == STATE_IN_EXPRESSION) {
+                            literal.append(ch);
                         }
-                        state = 0;
+                        state = STATE_SCANNING;
                     }
                     else {
                         subexpression.append(ch);
                     }
             }
-
-        }
-
-        if (state == 3) {
-            throw ((ExpressionSyntaxException) new ExpressionSyntaxException("unclosed left curly brace").setExpression(expression));
-        }
-
-        if (state == 2) {
-            result.append(evaluate(subexpression.toString(), expressionEvaluator));
         }
 
-        return result.toString();
-    }
-
-    static final Boolean evaluateNot (String expression, ExpressionEvaluator expressionEvaluator) throws ExpressionEvaluationException {
-        return Boolean.valueOf(!evaluateBoolean(expression.substring((TalesPrefix.not + ":").length()), expressionEvaluator));
-    }
-
-    static final Boolean evaluateExists (String expression, ExpressionEvaluator expressionEvaluator)
-        throws ExpressionEvaluationException {
-        boolean exists = false;
-        try {
-            exists = evaluate(expression.substring((TalesPrefix.exists + ":").length()), expressionEvaluator) != null;
+        String unclosed = null;
+        if (state == STATE_IN_BRACKETED_EXPRESSION) {
+            unclosed = expression;
         }
-        catch (NoSuchPathException e) {
+        else if (state == STATE_IN_EXPRESSION) {
+            addLiteral(parts, literal);
+            parts.add(compile(subexpression.toString()));
         }
-        return Boolean.valueOf(exists);
+        addLiteral(parts, literal);
+        return new CompiledExpression.StringExpression(stringExpression, parts.toArray(), unclosed);
     }
 
-    static final Object evaluateJava (String expression, ExpressionEvaluator expressionEvaluator) throws ExpressionEvaluationException {
-        try {
-            return expressionEvaluator.eval(expression.substring((TalesPrefix.java + ":").length()));
-        }
-        catch (EvalException e) {
-            throw new ExpressionEvaluationException(e);
+    private static void addLiteral (List<Object> parts, StringBuilder literal) {
+        if (literal.length() > 0) {
+            parts.add(literal.toString());
+            literal.setLength(0);
         }
     }
 
@@ -270,10 +296,10 @@ class Expression {
         return null;
     }
 
-    static final Object evaluatePath (String pathExpression, ExpressionEvaluator expressionEvaluator)
+    private static CompiledExpression parsePath (String pathExpression)
         throws ExpressionEvaluationException {
         if (pathExpression.trim().length() == 0) {
-            return "";
+            return new CompiledExpression.Constant(pathExpression, "");
         }
         String expression;
         if (pathExpression.startsWith(TalesPrefix.path + ":")) {
@@ -281,59 +307,43 @@ class Expression {
         }
         else {
             expression = pathExpression;
-
         }
 
         ExpressionTokenizer segments = new ExpressionTokenizer(expression, '|');
         if (segments.countTokens() == 1) {
-            return evaluatePathSegment(expression, expressionEvaluator);
+            return parsePathSegment(pathExpression, expression);
         }
 
-        NoSuchPathException exception = null;
-        Object result = null;
-        while (segments.hasMoreTokens()) {
-            try {
-                String segment = segments.nextToken().trim();
-                exception = null;
-                result = evaluate(segment, expressionEvaluator);
-                if (result != null) {
-                    return result;
-                }
-            }
-            catch (NoSuchPathException e) {
-                exception = e;
-            }
-        }
-        if (exception != null) {
-            throw exception;
+        CompiledExpression[] alternatives = new CompiledExpression[segments.countTokens()];
+        for (int i = 0; i < alternatives.length; i++) {
+            alternatives[i] = compile(segments.nextToken().trim());
         }
-        return null;
+        return new CompiledExpression.Alternatives(pathExpression, alternatives);
     }
 
-    static final Object evaluatePathSegment (String expression, ExpressionEvaluator expressionEvaluator)
-        throws NoSuchPathException, ExpressionSyntaxException, ExpressionEvaluationException {
-        if (expression.length() == 0) {
-            return "";
-        }
-
+    private static CompiledExpression parsePathSegment (String pathExpression, String expression)
+        throws ExpressionEvaluationException {
         ExpressionTokenizer path = new ExpressionTokenizer(expression, '/');
-        String token = path.nextToken().trim();
-        Object result = evaluateFirstPathToken(token, expressionEvaluator);
+        CompiledExpression.FirstStep first = parseFirstStep(path.nextToken().trim());
 
+        List<CompiledExpression.Step> steps = new ArrayList<CompiledExpression.Step>();
         while (path.hasMoreTokens()) {
-            if (result == null) {
-                throw ((NoSuchPathException) new NoSuchPathException(token + " in '" + expression + "' is null").setExpression(expression));
+            String token = path.nextToken().trim();
+            CompiledExpression.Step step;
+            try {
+                step = parseStep(token);
             }
-
-            token = path.nextToken().trim();
-            result = evaluateNextPathToken(result, token, expressionEvaluator);
+            catch (ExpressionEvaluationException e) {
+                step = new CompiledExpression.MalformedStep(token);
+            }
+            steps.add(step);
         }
-
-        return result;
+        return new CompiledExpression.Path(pathExpression, expression, first,
+                                           steps.toArray(new CompiledExpression.Step[steps.size()]));
     }
 
-    private static final Object evaluateFirstPathToken (String token, ExpressionEvaluator expressionEvaluator)
-        throws ExpressionEvaluationException {
+    private static CompiledExpression.FirstStep parseFirstStep (String token) {
+        String fullToken = token;
         String arrayAccessor = null;
         int bracket = findArrayAccessor(token);
         if (bracket != -1) {
@@ -341,8 +351,8 @@ class Expression {
             token = token.substring(0, bracket).trim();
         }
 
+        String variable = null;
         Object result = stringLiteral(token);
-
         if (result == null) {
             result = numericLiteral(token);
 
@@ -359,79 +369,107 @@ class Expression {
                     catch (ClassNotFoundException ee) {
                     }
                     if (result == null) {
-                        try {
-                            result = expressionEvaluator.get(token);
-                        }
-                        catch (EvalException eee) {
-                            throw new ExpressionEvaluationException(eee);
-                        }
+                        variable = token;
                     }
                 }
             }
-
         }
 
+        CompiledExpression.ArrayAccess arrayAccess = null;
         if (arrayAccessor != null) {
-            result = evaluateArrayAccess(token, result, arrayAccessor, expressionEvaluator);
-        }
-
-        result = handleScript(result, expressionEvaluator);
-
-        return result;
-    }
-
-    private static Object handleScript (Object object, ExpressionEvaluator expressionEvaluator) throws ExpressionEvaluationException {
-        if ((object instanceof ExpressionScript)) {
-            String script = ((ExpressionScript) object).getScript();
-            try {
-                object = expressionEvaluator.eval(script);
-            }
-            catch (EvalException e) {
-                throw new ExpressionEvaluationException("Problem evaluating expression in script " + script, e);
-            }
+            arrayAccess = parseArrayAccess(token, arrayAccessor);
         }
-
-        return object;
+        return new CompiledExpression.FirstStep(fullToken, variable, result, arrayAccess);
     }
 
-    private static final Object evaluateNextPathToken (Object parent, String token, ExpressionEvaluator expressionEvaluator)
+    /**
+     * Parses a path step following the first token of a path
+     *
+     * @param token path step
+     * @return the parsed step
+     * @throws ExpressionEvaluationException if the step is malformed
+     */
+    static final CompiledExpression.Step parseStep (String token)
         throws ExpressionEvaluationException {
+        String fullToken = token;
         String arrayAccessor = null;
         int bracket = findArrayAccessor(token);
         if (bracket != -1) {
             arrayAccessor = token.substring(bracket).trim();
             token = token.substring(0, bracket).trim();
         }
-
-        Object result = null;
+        CompiledExpression.ArrayAccess arrayAccess = null;
+        if (arrayAccessor != null) {
+            arrayAccess = parseArrayAccess(token, arrayAccessor);
+        }
 
         if (token.startsWith("?")) {
-            String indirectToken = String.valueOf(evaluateFirstPathToken(token.substring(1), expressionEvaluator));
-
-            result = evaluateNextPathToken(parent, indirectToken, expressionEvaluator);
+            return new CompiledExpression.IndirectStep(fullToken, parseFirstStep(token.substring(1)), arrayAccess);
         }
-        else {
-            int leftParen = token.indexOf("(");
-            if (leftParen != -1) {
-                if (!token.endsWith(")")) {
-                    throw new ExpressionEvaluationException("syntax error: bad method call: " + token);
-                }
-                String methodName = token.substring(0, leftParen).trim();
-                String arguments = token.substring(leftParen + 1, token.length() - 1);
-                result = evaluateMethodCall(parent, methodName, arguments, expressionEvaluator);
+        int leftParen = token.indexOf("(");
+        if (leftParen != -1) {
+            if (!token.endsWith(")")) {
+                throw new ExpressionEvaluationException("syntax error: bad method call: " + token);
+            }
+            String methodName = token.substring(0, leftParen).trim();
+            String argumentString = token.substring(leftParen + 1, token.length() - 1);
+            ExpressionTokenizer argumentTokens;
+            try {
+                argumentTokens = new ExpressionTokenizer(argumentString, ',');
+            }
+            catch (ExpressionSyntaxException e) {
+                throw new ExpressionEvaluationException(e);
             }
-            else {
-                result = getProperty(parent, token);
+            CompiledExpression[] arguments = new CompiledExpression[argumentTokens.countTokens()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = compile(argumentTokens.nextToken().trim());
             }
+            return new CompiledExpression.MethodStep(fullToken, methodName, arguments, arrayAccess);
         }
+        return new CompiledExpression.PropertyStep(fullToken, token, arrayAccess);
+    }
 
-        if (arrayAccessor != null) {
-            result = evaluateArrayAccess(token, result, arrayAccessor, expressionEvaluator);
+    /**
+     * Waits for a value which is still being computed. A RunnableFuture which
+     * has not been started, e.g. a FutureTask, is run on this thread.
+     *
+     * @param object a path value
+     * @return the value, or the result of the Future
+     * @throws ExpressionEvaluationException if the Future failed
+     */
+    static final Object await (Object object) throws ExpressionEvaluationException {
+        if (!((object instanceof Future))) {
+            return object;
+        }
+        Future<?> future = (Future<?>) object;
+        if (((future instanceof RunnableFuture)) && (!future.isDone())) {
+            // does nothing if the task is running elsewhere, or has run
+            ((RunnableFuture<?>) future).run();
+        }
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExpressionEvaluationException("interrupted while waiting for a value", e);
         }
+        catch (ExecutionException e) {
+            throw new ExpressionEvaluationException(e.getCause());
+        }
+    }
 
-        result = handleScript(result, expressionEvaluator);
+    static final Object handleScript (Object object, ExpressionEvaluator expressionEvaluator) throws ExpressionEvaluationException {
+        if ((object instanceof ExpressionScript)) {
+            String script = ((ExpressionScript) object).getScript();
+            try {
+                object = expressionEvaluator.eval(script);
+            }
+            catch (EvalException e) {
+                throw new ExpressionEvaluationException("Problem evaluating expression in script " + script, e);
+            }
+        }
 
-        return result;
+        return object;
     }
 
     private static final int findArrayAccessor (String token) {
@@ -481,35 +519,45 @@ class Expression {
         return -1;
     }
 
-    private static final Object evaluateArrayAccess (String token, Object result, String accessor, ExpressionEvaluator expressionEvaluator)
+    /**
+     * @param token    path token up to the accessor
+     * @param accessor one or more array accessors, e.g. [0][i]
+     * @return the parsed accessors
+     */
+    private static CompiledExpression.ArrayAccess parseArrayAccess (String token, String accessor) {
+        int close = accessor.indexOf(93);
+        if ((accessor.charAt(0) != '[') || (close == -1)) {
+            return new CompiledExpression.ArrayAccess(token, null, accessor, null);
+        }
+        CompiledExpression index = compile(accessor.substring(1, close));
+        close++;
+        CompiledExpression.ArrayAccess next = null;
+        if (accessor.length() > close) {
+            next = parseArrayAccess(token + accessor.substring(0, close), accessor.substring(close));
+        }
+        return new CompiledExpression.ArrayAccess(token, index, accessor, next);
+    }
+
+    static final Object evaluateArrayAccess (CompiledExpression.ArrayAccess access, Object result,
+                                             ExpressionEvaluator expressionEvaluator)
         throws ExpressionEvaluationException {
         try {
-            int close = accessor.indexOf(93);
-            if ((accessor.charAt(0) != '[') || (close == -1)) {
-                throw new ExpressionEvaluationException("bad array accessor for " + token + ": " + accessor);
+            if (access.index == null) {
+                throw new ExpressionEvaluationException("bad array accessor for " + access.token + ": " + access.accessor);
             }
 
             if (!result.getClass().isArray()) {
-                throw new ExpressionEvaluationException(token + " is not an array: " + result.getClass());
+                throw new ExpressionEvaluationException(access.token + " is not an array: " + result.getClass());
             }
 
-            if (result.getClass().getComponentType().isPrimitive()) {
-                result = convertPrimitiveArray(result);
-            }
-            Object[] array = (Object[]) (Object[]) result;
-            Object index = evaluate(accessor.substring(1, close), expressionEvaluator);
+            Object index = evaluate(access.index, expressionEvaluator);
             if (!(index instanceof Integer)) {
                 throw new ExpressionEvaluationException("array index must be an integer");
             }
-            result = array[((Integer) index).intValue()];
-
-            close++;
-            if (accessor.length() > close) {
-                token = token + accessor.substring(0, close);
-                String afterClose = accessor.substring(close);
-                result = evaluateArrayAccess(token, result, afterClose, expressionEvaluator);
+            if (result.getClass().getComponentType().isPrimitive()) {
+                return primitiveElement(result, ((Integer) index).intValue());
             }
-            return result;
+            return ((Object[]) result)[((Integer) index).intValue()];
         }
         catch (ArrayIndexOutOfBoundsException e) {
 
@@ -517,145 +565,74 @@ class Expression {
         }
     }
 
-    static final Object[] convertPrimitiveArray (Object o) {
-        Object[] newArray = null;
-        if ((o instanceof int[])) {
-            int[] oldArray = (int[]) (int[]) o;
-            newArray = new Integer[oldArray.length];
-            for (int i = 0; i < oldArray.length; i++) {
-                newArray[i] = Integer.valueOf(oldArray[i]);
-            }
+    /**
+     * Reads one element of an array of primitives, boxing only that element
+     *
+     * @param array an array of primitives
+     * @param index the index of the element
+     * @return the element, boxed
+     * @throws ArrayIndexOutOfBoundsException if there is no such element
+     */
+    static final Object primitiveElement (Object array, int index) {
+        if ((array instanceof int[])) {
+            return Integer.valueOf(((int[]) array)[index]);
         }
-        else if ((o instanceof long[])) {
-            long[] oldArray = (long[]) (long[]) o;
-            newArray = new Long[oldArray.length];
-            for (int i = 0; i < oldArray.length; i++) {
-                newArray[i] = Long.valueOf(oldArray[i]);
-            }
+        if ((array instanceof double[])) {
+            return Double.valueOf(((double[]) array)[index]);
         }
-        else if ((o instanceof boolean[])) {
-            boolean[] oldArray = (boolean[]) (boolean[]) o;
-            newArray = new Boolean[oldArray.length];
-            for (int i = 0; i < oldArray.length; i++) {
-                newArray[i] = Boolean.valueOf(oldArray[i]);
-            }
+        if ((array instanceof long[])) {
+            return Long.valueOf(((long[]) array)[index]);
         }
-        else if ((o instanceof char[])) {
-            char[] oldArray = (char[]) (char[]) o;
-            newArray = new Character[oldArray.length];
-            for (int i = 0; i < oldArray.length; i++) {
-                newArray[i] = Character.valueOf(oldArray[i]);
-            }
+        if ((array instanceof boolean[])) {
+            return Boolean.valueOf(((boolean[]) array)[index]);
         }
-        else if ((o instanceof byte[])) {
-            byte[] oldArray = (byte[]) (byte[]) o;
-            newArray = new Byte[oldArray.length];
-            for (int i = 0; i < oldArray.length; i++) {
-                newArray[i] = Byte.valueOf(oldArray[i]);
-            }
+        if ((array instanceof char[])) {
+            return Character.valueOf(((char[]) array)[index]);
         }
-        else if ((o instanceof float[])) {
-            float[] oldArray = (float[]) (float[]) o;
-            newArray = new Float[oldArray.length];
-            for (int i = 0; i < oldArray.length; i++) {
-                newArray[i] = Float.valueOf(oldArray[i]);
-            }
+        if ((array instanceof byte[])) {
+            return Byte.valueOf(((byte[]) array)[index]);
         }
-        else if ((o instanceof double[])) {
-            double[] oldArray = (double[]) (double[]) o;
-            newArray = new Double[oldArray.length];
-            for (int i = 0; i < oldArray.length; i++) {
-                newArray[i] = Double.valueOf(oldArray[i]);
-            }
+        if ((array instanceof float[])) {
+            return Float.valueOf(((float[]) array)[index]);
         }
-        else if ((o instanceof short[])) {
-            short[] oldArray = (short[]) (short[]) o;
-            newArray = new Short[oldArray.length];
-            for (int i = 0; i < oldArray.length; i++) {
-                newArray[i] = Short.valueOf(oldArray[i]);
-            }
+        if ((array instanceof short[])) {
+            return Short.valueOf(((short[]) array)[index]);
         }
-        return newArray;
+        throw new IllegalArgumentException("not an array of primitives: " + array.getClass().getName());
     }
 
-    private static final Object evaluateMethodCall (Object parent, String methodName, String argumentString, ExpressionEvaluator expressionEvaluator)
+    static final Object evaluateMethodCall (Object parent, String methodName, Object[] arguments)
         throws ExpressionEvaluationException {
-        StringBuffer errorMessage = null;
-        try {
-            Object object;
-            Class clazz;
-            if ((parent instanceof StaticCall)) {
-                object = null;
-                clazz = ((StaticCall) parent).clazz;
-            }
-            else {
-                object = parent;
-                clazz = parent.getClass();
-            }
-
-            ExpressionTokenizer argumentTokens = new ExpressionTokenizer(argumentString, ',');
-            Object[] arguments = new Object[argumentTokens.countTokens()];
-            for (int i = 0; i < arguments.length; i++) {
-                String argumentExpression = argumentTokens.nextToken().trim();
-                arguments[i] = evaluate(argumentExpression, expressionEvaluator);
-            }
-
-            Method[] methods = clazz.getMethods();
-            Method method = null;
-            for (int i = 0; i < methods.length; i++) {
-                if (!methods[i].getName().equals(methodName)) {
-                    continue;
-                }
-                Class[] parms = methods[i].getParameterTypes();
-                if (parms.length == arguments.length) {
-                    boolean match = true;
-                    for (int j = 0; (j < parms.length) && (match); j++) {
-                        if ((arguments[j] == null) || (primitiveToClass(parms[j]).isAssignableFrom(arguments[j].getClass()))) {
-                            continue;
-                        }
-                        match = false;
-                    }
-
-                    if (match) {
-                        method = methods[i];
-                        break;
-                    }
-                }
-            }
+        Object object;
+        Class clazz;
+        if ((parent instanceof StaticCall)) {
+            object = null;
+            clazz = ((StaticCall) parent).clazz;
+        }
+        else {
+            object = parent;
+            clazz = parent.getClass();
+        }
 
-            if (method != null) {
-                if (!method.isAccessible()) {
-                    try {
-                        method.setAccessible(true);
-                    }
-                    catch (SecurityException e) {
-                    }
-                }
-                return method.invoke(object, arguments);
-            }
+        BeanMethods.Invoker invoker = BeanMethods.getInvoker(clazz, methodName, arguments);
+        if (invoker != null) {
+            return invoker.invoke(object, arguments);
+        }
 
-            errorMessage = new StringBuffer(100);
-            errorMessage.append("no such method: ");
-            errorMessage.append(clazz.getName());
-            errorMessage.append(".");
-            errorMessage.append(methodName);
-            errorMessage.append("(");
-            for (int i = 0; i < arguments.length; i++) {
-                errorMessage.append(arguments[i] == null ? "<null>" : arguments[i].getClass().getName());
+        StringBuffer errorMessage = new StringBuffer(100);
+        errorMessage.append("no such method: ");
+        errorMessage.append(clazz.getName());
+        errorMessage.append(".");
+        errorMessage.append(methodName);
+        errorMessage.append("(");
+        for (int i = 0; i < arguments.length; i++) {
+            errorMessage.append(arguments[i] == null ? "<null>" : arguments[i].getClass().getName());
 
-                if (i < arguments.length - 1) {
-                    errorMessage.append(",");
-                }
+            if (i < arguments.length - 1) {
+                errorMessage.append(",");
             }
-            errorMessage.append(")");
         }
-        catch (RuntimeException e) {
-            throw e;
-        }
-        catch (Exception e) {
-            throw new ExpressionEvaluationException(e);
-        }
-
+        errorMessage.append(")");
         throw new ExpressionEvaluationException(errorMessage.toString());
     }
 
@@ -747,17 +724,9 @@ class Expression {
 
             }
 
-            BeanInfo beanInfo = Introspector.getBeanInfo(object.getClass());
-            PropertyDescriptor[] properties = beanInfo.getPropertyDescriptors();
-            for (int i = 0; i < properties.length; i++) {
-                if (properties[i].getName().equals(name)) {
-                    Method reader = properties[i].getReadMethod();
-                    if (reader == null) {
-                        throw new ExpressionEvaluationException("property '" + name + "' of " + object.getClass().getName() + " can't be read");
-                    }
-
-                    return reader.invoke(object, emptyArray);
-                }
+            BeanProperties.Reader reader = BeanProperties.getReader(object.getClass(), name);
+            if (reader != null) {
+                return reader.read(object);
             }
         }
         catch (RuntimeException e) {
@@ -774,12 +743,11 @@ class Expression {
         return null;
     }
 
-}
+    static final class StaticCall {
+        Class<?> clazz;
 
-class StaticCall {
-    Class clazz;
-
-    StaticCall (Class clazz) {
-        this.clazz = clazz;
+        StaticCall (Class<?> clazz) {
+            this.clazz = clazz;
+        }
     }
 }
@@ -37,4 +37,25 @@ class Expressions {
     String useMacro = null;
     String defineSlot = null;
     String evaluate = null;
+    String defineMacro = null;
+    String fillSlot = null;
+    /**
+     * tal:flush; the output is flushed once the element is written
+     */
+    String flush = null;
+    /**
+     * tal:parallel; the element may be rendered on another thread
+     */
+    String parallel = null;
+
+    /**
+     * @return true if the element has no TAL or METAL statements
+     */
+    boolean isEmpty () {
+        return (define == null) && (condition == null) && (repeat == null)
+            && (content == null) && (attributes == null) && (omitTag == null)
+            && (useMacro == null) && (defineSlot == null) && (evaluate == null)
+            && (defineMacro == null) && (fillSlot == null) && (flush == null)
+            && (parallel == null);
+    }
 }
@@ -0,0 +1,127 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import java.io.Reader;
+
+/**
+ * Reads an HTML fragment wrapped in html and body tags, without
+ * concatenating them; stray ampersands in the fragment may be escaped
+ * as it is read, i.e. those not starting an entity or character reference.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+final class FragmentReader extends Reader {
+    private static final String AMP = "amp;";
+
+    private final String[] parts;
+    private final boolean escapeAmpersands;
+    /**
+     * The part being read: the prefix, the fragment or the suffix
+     */
+    private int part = 0;
+    private int position = 0;
+    /**
+     * The characters of "amp;" still to be read after a stray ampersand
+     */
+    private int escaping = 0;
+
+    /**
+     * @param html             the fragment
+     * @param escapeAmpersands true to escape stray ampersands in the fragment
+     */
+    FragmentReader (String html, boolean escapeAmpersands) {
+        this.parts = new String[]{Constants.HTML_PREFIX, html, Constants.HTML_SUFFIX};
+        this.escapeAmpersands = escapeAmpersands;
+    }
+
+    @Override
+    public int read (char[] buffer, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        while ((offset < end) && (this.part < this.parts.length)) {
+            String text = this.parts[this.part];
+            if (this.escaping > 0) {
+                buffer[offset++] = AMP.charAt(AMP.length() - this.escaping--);
+                continue;
+            }
+            if (this.position == text.length()) {
+                this.part++;
+                this.position = 0;
+                continue;
+            }
+            int next = text.length();
+            if ((this.part == 1) && (this.escapeAmpersands)) {
+                int ampersand = text.indexOf('&', this.position);
+                if (ampersand == this.position) {
+                    buffer[offset++] = '&';
+                    if (!isReference(text, ampersand)) {
+                        this.escaping = AMP.length();
+                    }
+                    this.position++;
+                    continue;
+                }
+                if (ampersand != -1) {
+                    next = ampersand;
+                }
+            }
+            int count = Math.min(next - this.position, end - offset);
+            text.getChars(this.position, this.position + count, buffer, offset);
+            this.position += count;
+            offset += count;
+        }
+        return offset == start && length > 0 ? -1 : offset - start;
+    }
+
+    @Override
+    public void close () {
+    }
+
+    /**
+     * @param text      markup
+     * @param ampersand the index of an ampersand in text
+     * @return true if the ampersand starts an entity reference, e.g. &amp;amp;,
+     *         or a decimal character reference, e.g. &amp;#38;
+     */
+    private static boolean isReference (CharSequence text, int ampersand) {
+        int i = ampersand + 1;
+        int length = text.length();
+        if ((i < length) && (text.charAt(i) == '#')) {
+            int digits = ++i;
+            while ((i < length) && (text.charAt(i) >= '0') && (text.charAt(i) <= '9')) {
+                i++;
+            }
+            return (i > digits) && (i < length) && (text.charAt(i) == ';');
+        }
+        int name = i;
+        while ((i < length) && (isWordCharacter(text.charAt(i)))) {
+            i++;
+        }
+        return (i > name) && (i < length) && (text.charAt(i) == ';');
+    }
+
+    /**
+     * As \w matches in a regular expression
+     */
+    private static boolean isWordCharacter (char c) {
+        return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9')) || (c == '_');
+    }
+}
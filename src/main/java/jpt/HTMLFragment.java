@@ -18,32 +18,22 @@
  */
 package jpt;
 
+import com.ctc.wstx.api.WstxOutputProperties;
+import com.ctc.wstx.stax.WstxOutputFactory;
 import com.ctc.wstx.sw.SimpleNsStreamWriter;
-import org.jdom.Attribute;
-import org.jdom.CDATA;
-import org.jdom.Comment;
-import org.jdom.Content;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.EntityRef;
-import org.jdom.JDOMException;
-import org.jdom.ProcessingInstruction;
-import org.jdom.Text;
-import org.jdom.input.SAXBuilder;
-import org.jdom.input.StAXBuilder;
-import org.jdom.output.XMLOutputter;
-
-import javax.xml.stream.XMLInputFactory;
+
+import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
-import java.io.IOException;
 import java.io.Serializable;
-import java.io.StringReader;
-import java.io.StringWriter;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * Markup inserted by a structure expression. The XHTML normalized from
+ * a fragment is cached, by content and allowHtml, in a bounded cache shared
+ * by every fragment, so a snippet rendered over and over is parsed once.
+ *
  * @author Chris Rossi
  * @author Todd Cook
  * @version Revision: 1.7
@@ -51,20 +41,46 @@ import java.util.List;
 public class HTMLFragment implements Serializable {
 
     private static final long serialVersionUID = 1816909269653999257L;
+
+    /**
+     * The number of fragments whose XHTML is cached
+     */
+    static final int CACHE_SIZE = 1000;
+    /**
+     * Longer fragments are not cached; they are unlikely to repeat
+     */
+    static final int CACHE_MAXIMUM_LENGTH = 16384;
+
+    /**
+     * Normalized XHTML by fragment, in access order; guarded by itself
+     */
+    private static final Map<Key, String> xhtmlCache = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<Key, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Writes the XHTML returned by getXhtml(): any number of top level
+     * elements, and empty elements as XMLOutputter writes them
+     */
+    private static final XMLOutputFactory xhtmlOutputFactory = makeOutputFactory();
+
     private final String html;
     private final boolean allowHtml;
-    private Element dom;
+    private transient String xhtml;
 
     public HTMLFragment (String html, boolean allowHtml) {
         this.html = html;
         this.allowHtml = allowHtml;
     }
 
-    private Element getParsedFragment () throws PageTemplateException {
-        if (this.dom == null) {
-            this.dom = parseFragment(this.html, this.allowHtml);
-        }
-        return this.dom;
+    private static XMLOutputFactory makeOutputFactory () {
+        XMLOutputFactory outputFactory = new WstxOutputFactory();
+        outputFactory.setProperty(WstxOutputProperties.P_OUTPUT_VALIDATE_STRUCTURE, Boolean.FALSE);
+        outputFactory.setProperty(WstxOutputProperties.P_ADD_SPACE_AFTER_EMPTY_ELEM, Boolean.TRUE);
+        return outputFactory;
     }
 
     public String getHtml () {
@@ -72,112 +88,58 @@ public class HTMLFragment implements Serializable {
     }
 
     public String getXhtml ()
+        throws PageTemplateException {
+        String xhtml = this.xhtml;
+        if (xhtml == null) {
+            boolean cached = (this.html != null) && (this.html.length() <= CACHE_MAXIMUM_LENGTH);
+            Key key = cached ? new Key(this.html, this.allowHtml) : null;
+            if (cached) {
+                synchronized (xhtmlCache) {
+                    xhtml = xhtmlCache.get(key);
+                }
+            }
+            if (xhtml == null) {
+                // Parsed outside the lock; a fragment parsed by two threads at once is cached by both
+                xhtml = normalize(this.html, this.allowHtml);
+                if (cached) {
+                    synchronized (xhtmlCache) {
+                        xhtmlCache.put(key, xhtml);
+                    }
+                }
+            }
+            this.xhtml = xhtml;
+        }
+        return xhtml;
+    }
+
+    private static String normalize (String html, boolean allowHtml)
         throws PageTemplateException {
         try {
-            Element dom = getParsedFragment();
-            StringWriter sw = new StringWriter();
-            new XMLOutputter().outputElementContent(dom, sw);
-            return sw.toString();
+            return HTMLNormalizer.normalize(html, allowHtml, xhtmlOutputFactory);
         }
-        catch (IOException e) {
-            throw new PageTemplateException("Unable to write XHTML from parsed fragment " + this.html, e);
+        catch (XMLStreamException e) {
+            throw new PageTemplateException("Unable to write XHTML from parsed fragment " + html, e);
         }
     }
 
+    /**
+     * Writes the fragment as it is to the JPT and Woodstox writers; to other
+     * writers, the fragment is normalized to XHTML as it is read
+     */
     public void toXhtml (XMLStreamWriter writer)
         throws PageTemplateException, XMLStreamException {
-        if ((writer instanceof SimpleNsStreamWriter)) {
+        if ((writer instanceof Utf8StreamWriter)) {
+            ((Utf8StreamWriter) writer).writeRaw(this.html);
+        }
+        else if ((writer instanceof SimpleNsStreamWriter)) {
             SimpleNsStreamWriter wstxWriter = (SimpleNsStreamWriter) writer;
             wstxWriter.writeRaw(this.html);
         }
         else {
-            throw new PageTemplateException("For structured content, we currently require the use of com.ctc.wstx.sw.SimpleNsStreamWriter");
-        }
-    }
-
-    private void writeContent (List<Content> nodeIterator, XMLStreamWriter writer)
-        throws XMLStreamException {
-        for (Object aNodeIterator : nodeIterator) {
-            Content node = (Content) aNodeIterator;
-
-            if ((node instanceof Element)) {
-                writeElement((Element) node, writer);
-            }
-            else if ((node instanceof Comment)) {
-                writer.writeComment(node.getValue());
-            }
-            else if ((node instanceof ProcessingInstruction)) {
-                ProcessingInstruction processingInstruction = (ProcessingInstruction) node;
-                writer.writeProcessingInstruction(processingInstruction.getTarget(), processingInstruction.getData());
-            }
-            else if ((node instanceof CDATA)) {
-                writer.writeCData(node.getValue());
-            }
-            else if ((node instanceof Text)) {
-                writer.writeCharacters(node.getValue());
-            }
-            else if ((node instanceof EntityRef)) {
-                writer.writeEntityRef(((EntityRef) node).getName());
-            }
+            HTMLNormalizer.normalize(this.html, this.allowHtml, writer);
         }
     }
 
-    private void writeElement (Element element, XMLStreamWriter writer) throws XMLStreamException {
-        writer.writeStartElement(element.getNamespacePrefix(), element.getName(), element.getNamespaceURI());
-
-        for (Object o : element.getAttributes()) {
-            Attribute attribute = (Attribute) o;
-            writer.writeAttribute(attribute.getNamespacePrefix(), attribute.getNamespaceURI(), attribute.getName(), attribute.getValue());
-        }
-
-        writeContent(element.getContent(), writer);
-        writer.writeEndElement();
-    }
-
-    private static Element parseFragment (String html, boolean allowHtml) throws PageTemplateException {
-        String fragment = Constants.HTML_PREFIX + html + Constants.HTML_SUFFIX;
-
-        if (!allowHtml) {
-            fragment = replaceAmpersand(fragment);
-        }
-        StringReader reader = new StringReader(fragment);
-        Element dom;
-        try {
-            XMLInputFactory inputFactory = PageTemplateImpl.xmlInputFactory;
-            StAXBuilder parser = new StAXBuilder();
-
-            XMLStreamReader streamReader = inputFactory.createXMLStreamReader(reader);
-            Document document = parser.build(streamReader);
-            dom = document.getRootElement().getChild("body");
-        }
-        catch (XMLStreamException e) {
-            if (!allowHtml) {
-                throw new PageTemplateException("Unable to parse XML fragment with strict XML reader; however loose HTML has been disabled: " + html, e);
-            }
-            SAXBuilder builder = new SAXBuilder("org.cyberneko.html.parsers.SAXParser");
-            builder.setProperty("http://cyberneko.org/html/properties/names/elems", "match");
-            builder.setProperty("http://cyberneko.org/html/properties/names/attrs", "no-change");
-            builder.setProperty("http://cyberneko.org/html/properties/default-encoding", "UTF-8");
-            try {
-                dom = builder.build(reader).getRootElement().getChild("body");
-            }
-            catch (NoClassDefFoundError ee) {
-                throw new PageTemplateException("No nekohtml found in classpath; required for non-XML data", e);
-            }
-            catch (JDOMException ee) {
-                throw new PageTemplateException(e);
-            }
-            catch (IOException ee) {
-                throw new PageTemplateException(e);
-            }
-        }
-        return dom;
-    }
-
-    static String replaceAmpersand (String string) {
-        return string.replaceAll("&(?!((\\w+|(#\\d+));))", "&amp;");
-    }
-
     @Override
     public boolean equals (Object o) {
         if (this == o) {
@@ -204,4 +166,31 @@ public class HTMLFragment implements Serializable {
     public String toString () {
         return this.html;
     }
+
+    /**
+     * A fragment's content and whether loose HTML is allowed in it
+     */
+    private static final class Key {
+        private final String html;
+        private final boolean allowHtml;
+
+        Key (String html, boolean allowHtml) {
+            this.html = html;
+            this.allowHtml = allowHtml;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (!((o instanceof Key))) {
+                return false;
+            }
+            Key key = (Key) o;
+            return (this.allowHtml == key.allowHtml) && (this.html.equals(key.html));
+        }
+
+        @Override
+        public int hashCode () {
+            return 31 * this.html.hashCode() + (this.allowHtml ? 1 : 0);
+        }
+    }
 }
@@ -0,0 +1,326 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+
+/**
+ * Normalizes an HTML fragment to well-formed XHTML while it is read, writing
+ * each event straight to an XMLStreamWriter; no document is built. A fragment
+ * is read as XML if it is well formed, otherwise, if loose HTML is allowed,
+ * by nekohtml.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+final class HTMLNormalizer {
+    private static final String NEKO_PARSER = "org.cyberneko.html.parsers.SAXParser";
+
+    /**
+     * Utility class, construction verboten
+     */
+    private HTMLNormalizer () {
+    }
+
+    /**
+     * Normalizes a fragment to a writer which can not take back what it
+     * was given; if loose HTML is allowed, the fragment is checked to be
+     * well formed before any of it is written
+     *
+     * @param html      the fragment
+     * @param allowHtml true to read a fragment which is not well formed XML as HTML
+     * @param writer    receives the content of the fragment
+     * @throws PageTemplateException if the fragment can not be read
+     * @throws XMLStreamException    if the writer fails
+     */
+    static void normalize (String html, boolean allowHtml, XMLStreamWriter writer)
+        throws PageTemplateException, XMLStreamException {
+        if (!allowHtml) {
+            if (!readXml(new FragmentReader(html, true), writer)) {
+                throw strictXmlFailed(html);
+            }
+        }
+        // Nothing may be written before the fragment is known to be well formed
+        else if (readXml(new FragmentReader(html, false), null)) {
+            readXml(new FragmentReader(html, false), writer);
+        }
+        else {
+            readHtml(new FragmentReader(html, false), writer);
+        }
+    }
+
+    /**
+     * Normalizes a fragment to a string, reading it only once if it is well
+     * formed: what was written of a fragment which turns out not to be is
+     * discarded, and the fragment is read again as HTML
+     *
+     * @param html          the fragment
+     * @param allowHtml     true to read a fragment which is not well formed XML as HTML
+     * @param outputFactory makes the writer of the content of the fragment
+     * @return the content of the fragment
+     * @throws PageTemplateException if the fragment can not be read
+     * @throws XMLStreamException    if the writer fails
+     */
+    static String normalize (String html, boolean allowHtml, XMLOutputFactory outputFactory)
+        throws PageTemplateException, XMLStreamException {
+        StringWriter output = new StringWriter();
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(output);
+        if (readXml(new FragmentReader(html, !allowHtml), writer)) {
+            writer.close();
+            return output.toString();
+        }
+        if (!allowHtml) {
+            throw strictXmlFailed(html);
+        }
+        output = new StringWriter();
+        writer = outputFactory.createXMLStreamWriter(output);
+        readHtml(new FragmentReader(html, false), writer);
+        writer.close();
+        return output.toString();
+    }
+
+    private static PageTemplateException strictXmlFailed (String html) {
+        return new PageTemplateException("Unable to parse XML fragment with strict XML reader; however loose HTML has been disabled: " + html);
+    }
+
+    /**
+     * Reads a fragment as XML, writing the content of its body
+     *
+     * @param writer receives the content; null only to check the fragment
+     * @return false if the fragment is not well formed
+     */
+    private static boolean readXml (Reader fragment, XMLStreamWriter writer)
+        throws XMLStreamException {
+        XMLStreamReader reader;
+        try {
+            reader = PageTemplateImpl.xmlInputFactory.createXMLStreamReader(fragment);
+        }
+        catch (XMLStreamException e) {
+            return false;
+        }
+        try {
+            // html is depth 1 and body depth 2; their content is written
+            int depth = 0;
+            while (true) {
+                int event;
+                try {
+                    if (!reader.hasNext()) {
+                        return true;
+                    }
+                    event = reader.next();
+                }
+                catch (XMLStreamException e) {
+                    return false;
+                }
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                }
+                // elements within the body, and any other event within it
+                boolean element = (event == XMLStreamConstants.START_ELEMENT) || (event == XMLStreamConstants.END_ELEMENT);
+                if ((writer != null) && (element ? depth > 2 : depth >= 2)) {
+                    writeEvent(event, reader, writer);
+                }
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+        }
+        finally {
+            try {
+                reader.close();
+            }
+            catch (XMLStreamException ignored) {
+            }
+        }
+    }
+
+    private static void writeEvent (int event, XMLStreamReader reader, XMLStreamWriter writer)
+        throws XMLStreamException {
+        switch (event) {
+            case XMLStreamConstants.START_ELEMENT:
+                writer.writeStartElement(prefix(reader.getPrefix()), reader.getLocalName(), uri(reader.getNamespaceURI()));
+                for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                    writer.writeNamespace(prefix(reader.getNamespacePrefix(i)), uri(reader.getNamespaceURI(i)));
+                }
+                for (int i = 0; i < reader.getAttributeCount(); i++) {
+                    writer.writeAttribute(prefix(reader.getAttributePrefix(i)), uri(reader.getAttributeNamespace(i)),
+                                          reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                writer.writeEndElement();
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                break;
+            case XMLStreamConstants.CDATA:
+                writer.writeCData(reader.getText());
+                break;
+            case XMLStreamConstants.COMMENT:
+                writer.writeComment(reader.getText());
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                break;
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                writer.writeEntityRef(reader.getLocalName());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static String prefix (String prefix) {
+        return prefix == null ? "" : prefix;
+    }
+
+    private static String uri (String uri) {
+        return uri == null ? "" : uri;
+    }
+
+    /**
+     * Reads a fragment as HTML with nekohtml, writing the content of its body
+     */
+    private static void readHtml (Reader fragment, XMLStreamWriter writer)
+        throws PageTemplateException, XMLStreamException {
+        XMLReader parser;
+        try {
+            parser = XMLReaderFactory.createXMLReader(NEKO_PARSER);
+            parser.setProperty("http://cyberneko.org/html/properties/names/elems", "match");
+            parser.setProperty("http://cyberneko.org/html/properties/names/attrs", "no-change");
+            parser.setProperty("http://cyberneko.org/html/properties/default-encoding", "UTF-8");
+        }
+        catch (SAXException e) {
+            throw new PageTemplateException("No nekohtml found in classpath; required for non-XML data", e);
+        }
+        catch (NoClassDefFoundError e) {
+            // nekohtml without Xerces
+            throw new PageTemplateException("No nekohtml found in classpath; required for non-XML data", e);
+        }
+        BodyWriter handler = new BodyWriter(writer);
+        try {
+            parser.setContentHandler(handler);
+            parser.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+            parser.parse(new InputSource(fragment));
+        }
+        catch (SAXException e) {
+            if ((e.getException() instanceof XMLStreamException)) {
+                throw (XMLStreamException) e.getException();
+            }
+            throw new PageTemplateException(e);
+        }
+        catch (IOException e) {
+            throw new PageTemplateException(e);
+        }
+    }
+
+    /**
+     * Writes the content of the body element nekohtml reports
+     */
+    private static final class BodyWriter extends DefaultHandler2 {
+        private final XMLStreamWriter writer;
+        /**
+         * The depth within the body element; 0 outside it
+         */
+        private int depth = 0;
+
+        BodyWriter (XMLStreamWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void startElement (String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+            if (this.depth == 0) {
+                if ("body".equalsIgnoreCase(qName)) {
+                    this.depth = 1;
+                }
+                return;
+            }
+            try {
+                this.writer.writeStartElement(qName);
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    this.writer.writeAttribute(attributes.getQName(i), attributes.getValue(i));
+                }
+            }
+            catch (XMLStreamException e) {
+                throw new SAXException(e);
+            }
+            this.depth++;
+        }
+
+        @Override
+        public void endElement (String uri, String localName, String qName)
+            throws SAXException {
+            if (this.depth == 0) {
+                return;
+            }
+            if (--this.depth > 0) {
+                try {
+                    this.writer.writeEndElement();
+                }
+                catch (XMLStreamException e) {
+                    throw new SAXException(e);
+                }
+            }
+        }
+
+        @Override
+        public void characters (char[] ch, int start, int length)
+            throws SAXException {
+            if (this.depth > 0) {
+                try {
+                    this.writer.writeCharacters(ch, start, length);
+                }
+                catch (XMLStreamException e) {
+                    throw new SAXException(e);
+                }
+            }
+        }
+
+        @Override
+        public void comment (char[] ch, int start, int length)
+            throws SAXException {
+            if (this.depth > 0) {
+                try {
+                    this.writer.writeComment(new String(ch, start, length));
+                }
+                catch (XMLStreamException e) {
+                    throw new SAXException(e);
+                }
+            }
+        }
+    }
+}
@@ -20,27 +20,48 @@ package jpt;
 
 import jpt.util.EvalException;
 import jpt.util.ExpressionEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Array;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 
 /**
  * A class for looping expressions, and also for incrementing the numbering;
  * NOTE: For the Roman Numeral index, the current limit is 4,000
+ * <p/>
+ * Items are taken one at a time, with one item of look-ahead for isEnd(),
+ * so that a repeat over a Stream, a Spliterator, an Iterable or a JDBC
+ * ResultSet need not hold all of its items. Streams and Spliterators are
+ * found by name, so that JPT still runs on Java 7. A Stream is closed when
+ * it runs out, or by close() when the repeat stops early.
  *
  * @author Chris Rossi
  * @author Todd Cook
  * @version Revision: 1.7
  */
 public class Loop {
+    private static final Logger LOG = LoggerFactory.getLogger(Loop.class);
+    private static final Class<?> BASE_STREAM = classForName("java.util.stream.BaseStream");
+    private static final Class<?> SPLITERATOR = classForName("java.util.Spliterator");
 
     boolean once = false;
     String variableName;
     Object prevValue = null;
     Iterator iterator;
+    /**
+     * The stream being repeated over, until it is closed
+     */
+    AutoCloseable source = null;
     int index = -1;
     int length = -1;
     Loop loopParent = null;
@@ -56,37 +77,96 @@ public class Loop {
             if (space == -1) {
                 throw new ExpressionSyntaxException("bad repeat expression: " + expression);
             }
-            this.variableName = expression.substring(0, space);
-            try {
-                this.prevValue = expressionEvaluator.get(this.variableName);
-            }
-            catch (EvalException e) {
-                throw new PageTemplateException(e);
-            }
+            start(expression.substring(0, space),
+                  Expression.compile(expression.substring(space + 1)), expressionEvaluator);
+        }
+    }
 
-            String loopExpression = expression.substring(space + 1);
-            Object loop = Expression.evaluate(loopExpression, expressionEvaluator);
-            if (loop instanceof Iterator) {
-                this.iterator = (Iterator) loop;
-            }
-            else if (loop instanceof Collection) {
-                this.iterator = ((Collection) loop).iterator();
-                this.length = ((Collection) loop).size();
+    /**
+     * @param variableName        the repeat variable
+     * @param loopExpression      evaluates to the items to repeat over
+     * @param expressionEvaluator ExpressionEvaluator
+     * @throws PageTemplateException
+     */
+    Loop (String variableName, CompiledExpression loopExpression, ExpressionEvaluator expressionEvaluator)
+        throws PageTemplateException {
+        start(variableName, loopExpression, expressionEvaluator);
+    }
+
+    private void start (String variableName, CompiledExpression loopExpression,
+                        ExpressionEvaluator expressionEvaluator) throws PageTemplateException {
+        this.variableName = variableName;
+        try {
+            this.prevValue = expressionEvaluator.get(this.variableName);
+        }
+        catch (EvalException e) {
+            throw new PageTemplateException(e);
+        }
+
+        Object loop = Expression.evaluate(loopExpression, expressionEvaluator);
+        if (loop instanceof Iterator) {
+            this.iterator = (Iterator) loop;
+        }
+        else if (loop instanceof Collection) {
+            this.iterator = ((Collection) loop).iterator();
+            this.length = ((Collection) loop).size();
+        }
+        else if (loop.getClass().isArray()) {
+            if (loop.getClass().getComponentType().isPrimitive()) {
+                this.iterator = new PrimitiveArrayIterator(loop);
+                this.length = Array.getLength(loop);
             }
-            else if (loop.getClass().isArray()) {
-                if (loop.getClass().getComponentType().isPrimitive()) {
-                    loop = Expression.convertPrimitiveArray(loop);
-                }
+            else {
                 this.iterator = Arrays.asList((Object[]) loop).iterator();
                 this.length = ((Object[]) loop).length;
             }
-            else {
-                throw new ClassCastException
-                    ("result of repeat expression must evaluate to an array, java.util.Iterator " +
-                         "or java.util.Collection: " +
-                         expression + ": evaluates to " + loop.getClass().getName());
+        }
+        else if ((BASE_STREAM != null) && (BASE_STREAM.isInstance(loop))) {
+            this.iterator = (Iterator) invoke(BASE_STREAM, "iterator", loop);
+            this.source = (AutoCloseable) loop;
+        }
+        else if ((SPLITERATOR != null) && (SPLITERATOR.isInstance(loop))) {
+            this.iterator = (Iterator) invoke(classForName("java.util.Spliterators"), "iterator", loop);
+        }
+        else if (loop instanceof Iterable) {
+            this.iterator = ((Iterable) loop).iterator();
+        }
+        else if (loop instanceof ResultSet) {
+            this.iterator = new ResultSetIterator((ResultSet) loop);
+        }
+        else {
+            throw new ClassCastException
+                ("result of repeat expression must evaluate to an array, java.util.Iterator, " +
+                     "java.lang.Iterable, java.util.stream.Stream, java.util.Spliterator " +
+                     "or java.sql.ResultSet: " +
+                     variableName + " " + loopExpression.expression + ": evaluates to " + loop.getClass().getName());
+        }
+        addToRepeat(expressionEvaluator);
+    }
+
+    private static Class<?> classForName (String name) {
+        try {
+            return Class.forName(name);
+        }
+        catch (ClassNotFoundException e) {
+            // before Java 8
+            return null;
+        }
+    }
+
+    /**
+     * Calls BaseStream.iterator() or Spliterators.iterator(Spliterator)
+     */
+    private static Object invoke (Class<?> clazz, String methodName, Object argument)
+        throws ExpressionEvaluationException {
+        try {
+            if (clazz == BASE_STREAM) {
+                return clazz.getMethod(methodName).invoke(argument);
             }
-            addToRepeat(expressionEvaluator);
+            return clazz.getMethod(methodName, SPLITERATOR).invoke(null, argument);
+        }
+        catch (Exception e) {
+            throw new ExpressionEvaluationException(e);
         }
     }
 
@@ -133,12 +213,22 @@ public class Loop {
                 }
                 return false;
             }
-            else if (iterator.hasNext()) {
+            else if (hasNext()) {
                 index++;
                 expressionEvaluator.set(variableName, iterator.next());
                 return true;
             }
             else {
+                if (this.source != null) {
+                    AutoCloseable source = this.source;
+                    this.source = null;
+                    try {
+                        source.close();
+                    }
+                    catch (Exception e) {
+                        throw new PageTemplateException(e);
+                    }
+                }
                 if (this.prevValue == null) {
                     expressionEvaluator.unset(variableName);
                 }
@@ -154,6 +244,35 @@ public class Loop {
         }
     }
 
+    /**
+     * Reports a row which can not be read as an error in the repeat expression
+     */
+    private boolean hasNext () throws ExpressionEvaluationException {
+        try {
+            return this.iterator.hasNext();
+        }
+        catch (RowException e) {
+            throw new ExpressionEvaluationException(e.getCause());
+        }
+    }
+
+    /**
+     * Closes the stream when the repeat stopped before reaching its end, e.g. on an error;
+     * an error closing it is logged, as the one which stopped the repeat is reported
+     */
+    void close () {
+        if (this.source != null) {
+            AutoCloseable source = this.source;
+            this.source = null;
+            try {
+                source.close();
+            }
+            catch (Exception e) {
+                LOG.warn("Unable to close the items of repeat " + this.variableName, e);
+            }
+        }
+    }
+
     public int getIndex () {
         return index;
     }
@@ -179,7 +298,7 @@ public class Loop {
     }
 
     /**
-     * will be undefined (-1) if expression evaluates to Iterator
+     * will be undefined (-1) unless the expression evaluates to an array or a Collection
      */
     public int getLength () {
         return length;
@@ -302,6 +421,117 @@ public class Loop {
         }
     };
 
+    /**
+     * The items of an array of primitives, read by typed array access
+     * and boxed one at a time; int, long and double arrays are read
+     * without testing the type of the array for each item
+     */
+    private static final class PrimitiveArrayIterator implements Iterator<Object> {
+        private final Object array;
+        private final int[] ints;
+        private final long[] longs;
+        private final double[] doubles;
+        private final int length;
+        private int index = 0;
+
+        PrimitiveArrayIterator (Object array) {
+            this.array = array;
+            this.ints = (array instanceof int[]) ? (int[]) array : null;
+            this.longs = (array instanceof long[]) ? (long[]) array : null;
+            this.doubles = (array instanceof double[]) ? (double[]) array : null;
+            this.length = Array.getLength(array);
+        }
+
+        public boolean hasNext () {
+            return this.index < this.length;
+        }
+
+        public Object next () {
+            if (this.index >= this.length) {
+                throw new NoSuchElementException();
+            }
+            int i = this.index++;
+            if (this.ints != null) {
+                return Integer.valueOf(this.ints[i]);
+            }
+            if (this.doubles != null) {
+                return Double.valueOf(this.doubles[i]);
+            }
+            if (this.longs != null) {
+                return Long.valueOf(this.longs[i]);
+            }
+            return Expression.primitiveElement(this.array, i);
+        }
+
+        public void remove () {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The rows of a ResultSet, from its current position, each as a Map of
+     * column label to value. The next row is read by hasNext(); the ResultSet
+     * is left open for its owner to close.
+     */
+    static final class ResultSetIterator implements Iterator<Map<String, Object>> {
+        private final ResultSet resultSet;
+        private String[] labels;
+        private Map<String, Object> next;
+
+        ResultSetIterator (ResultSet resultSet) {
+            this.resultSet = resultSet;
+        }
+
+        public boolean hasNext () {
+            if (this.next == null) {
+                try {
+                    if (this.resultSet.next()) {
+                        if (this.labels == null) {
+                            ResultSetMetaData metaData = this.resultSet.getMetaData();
+                            this.labels = new String[metaData.getColumnCount()];
+                            for (int i = 0; i < this.labels.length; i++) {
+                                this.labels[i] = metaData.getColumnLabel(i + 1);
+                            }
+                        }
+                        Map<String, Object> row = new LinkedHashMap<String, Object>(this.labels.length * 2);
+                        for (int i = 0; i < this.labels.length; i++) {
+                            row.put(this.labels[i], this.resultSet.getObject(i + 1));
+                        }
+                        this.next = row;
+                    }
+                }
+                catch (SQLException e) {
+                    throw new RowException(e);
+                }
+            }
+            return this.next != null;
+        }
+
+        public Map<String, Object> next () {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map<String, Object> row = this.next;
+            this.next = null;
+            return row;
+        }
+
+        public void remove () {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Carries the SQLException of a row out of Iterator.hasNext()
+     */
+    static final class RowException extends RuntimeException {
+        private static final long serialVersionUID = -2718062394520458176L;
+
+        RowException (SQLException cause) {
+            super("can't read the next row", cause);
+        }
+    }
+
     @Override
     public String toString () {
         return "Loop{" +
@@ -45,14 +45,10 @@ public abstract interface PageTemplate extends MacroProvider {
 
     public abstract Resolver getResolver ();
 
-    public abstract void setResolver (Resolver paramResolver);
-
     public abstract Map<String, Macro> getMacros ();
 
     public abstract void processIncludedTemplate (XMLStreamWriter writer, Object context, Map<String, Object> dictionary) throws XMLStreamException, PageTemplateException;
 
-    public abstract void setSuppressDeclaration (Boolean bool);
-
     public abstract void process (Element element, XMLStreamWriter writer,
                                   Object context, Map<String, Object> dictionary,
                                   Deque<Map<String, Slot>> slotStack)
@@ -21,27 +21,18 @@ package jpt;
 import jpt.util.EvalException;
 import jpt.util.ExpressionEvaluator;
 import jpt.util.IncludableTemplate;
-import jpt.util.MetalStatement;
 import jpt.util.MvelExpressionEvaluator;
-import jpt.util.TalStatement;
-import org.jdom.Attribute;
-import org.jdom.CDATA;
-import org.jdom.Comment;
-import org.jdom.Content;
+import jpt.util.VariableScope;
 import org.jdom.DocType;
 import org.jdom.Document;
 import org.jdom.Element;
-import org.jdom.EntityRef;
 import org.jdom.Namespace;
-import org.jdom.ProcessingInstruction;
-import org.jdom.Text;
 import org.jdom.input.StAXBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.stream.FactoryConfigurationError;
 import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
@@ -54,20 +45,34 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
 
 /**
  * A Java implementation of Plone's TAL processing:
  * TAL = Template Attribute Language
  * TALES = Template Attribute Language Expression Syntax
  * see http://plone.org
+ * <p/>
+ * A template is immutable once built, and may be shared by any number
+ * of threads; everything which changes while rendering lives in the
+ * VariableScope, writer and slot stack created for each call to process.
  *
  * @author Chris Rossi
  * @author Todd Cook
@@ -76,7 +81,7 @@ import java.util.concurrent.ConcurrentHashMap;
 public final class PageTemplateImpl implements PageTemplate, Serializable {
     private static final long serialVersionUID = -3403565057108448817L;
 
-    private static Logger LOG = LoggerFactory.getLogger(PageTemplateImpl.class);
+    private static final Logger LOG = LoggerFactory.getLogger(PageTemplateImpl.class);
 
     /**
      * The following object has package level access for the HTMLFragment class
@@ -85,31 +90,68 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
 
     private static final Object DEFAULT = new Object();
 
-    private boolean allowHtml = true;
+    private final boolean allowHtml;
     /**
      * The URI needs to be populated because it's used in resolving
      * locations of templates; e.g. when a macro requests another template.
      */
-    private URI uri;
-    private URL url;
-    private Resolver userResolver = null;
-    private Document doc;
-    private boolean logErrorAsWarn = false;
-
-    private final Map<String, String> prefixNamespaceUri =
-        new ConcurrentHashMap<String, String>();
-
-    private final Map<String, Macro> macros = new HashMap<String, Macro>();
-
-    private boolean SUPPRESS_ERRORS = true;
-
-    private boolean suppressDeclaration;
+    private final URI uri;
+    private final URL url;
+    /**
+     * When the template source was last modified, as the url reported it when the
+     * template was built; 0 if unknown
+     */
+    private final long lastModified;
+    private final Resolver userResolver;
+    private final Document doc;
+    private final boolean logErrorAsWarn;
+    private final boolean flushAfterHead;
+    /**
+     * Bytes rendered between flushes of the output stream; 0 not to flush
+     */
+    private final int flushEvery;
+    /**
+     * Renders the elements marked tal:parallel; null to render them in turn.
+     * Not serialized.
+     */
+    private final transient ExecutorService executor;
+    /**
+     * Starts the deferred values this template uses; null to run each when it is
+     * first needed. Not serialized.
+     */
+    private final transient Executor prefetchExecutor;
+    /**
+     * The variables the path expressions of this template start from; values
+     * of these which have not been started are started on the prefetch executor
+     */
+    private final transient Set<String> variables;
 
     /**
-     * Instances of this class are created using the provided Builder class
+     * The document compiled into an instruction tree, built once with the
+     * template and again, by readResolve(), after deserialization
      */
-    private PageTemplateImpl () {
-    }
+    private final transient CompiledElement root;
+    private final transient Map<Element, CompiledElement> compiledElements;
+    /**
+     * The global variables, shared by every rendering; indexed by VariableScope slot
+     */
+    private final transient Object[] globals;
+    /**
+     * Every namespace declared in the document, by prefix
+     */
+    private final transient Map<String, String> prefixNamespaceUri;
+    /**
+     * The macros defined by the document, by name
+     */
+    private final transient Map<String, Macro> macros;
+    /**
+     * The slots filled at each metal:use-macro element, by element
+     */
+    private final transient Map<CompiledElement, Map<String, Slot>> slotTables;
+
+    private final boolean SUPPRESS_ERRORS;
+
+    private final boolean suppressDeclaration;
 
     /**
      * Tired of looking for the right constructor from among a vague series?
@@ -122,12 +164,22 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
         // Optional parameters - initialized to default values
         private String templateText;
         private InputStream inputStream;
+        /**
+         * A document read from a TemplateArchive, which needs no parsing
+         */
+        private Document document;
         private URL url;
         private URI uri;
+        private long lastModified = 0;
         private boolean suppressDeclaration = true;
         private boolean allowHtml = true;
         private boolean suppressErrors = true;
         private Resolver resolver = null;
+        private boolean logErrorAsWarn = false;
+        private boolean flushAfterHead = false;
+        private int flushEvery = 0;
+        private ExecutorService executor = null;
+        private Executor prefetchExecutor = null;
 
         public Builder () {
         }
@@ -154,6 +206,17 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
             return this;
         }
 
+        /**
+         * @param val      a document decoded from a TemplateArchive
+         * @param modified when the template source was last modified
+         * @return Builder instance
+         */
+        Builder document (Document val, long modified) {
+            document = val;
+            lastModified = modified;
+            return this;
+        }
+
         /**
          * Suppresses the TAL startTag declaration:
          * <code><?xml version='1.0' encoding='UTF-8'?></code>
@@ -190,13 +253,81 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
             return this;
         }
 
+        /**
+         * For quieting the logging output, since template errors aren't showstoppers
+         *
+         * @param bool boolean
+         * @return Builder object
+         */
+        public Builder logErrorAsWarn (boolean bool) {
+            logErrorAsWarn = bool;
+            return this;
+        }
+
+        /**
+         * Flushes the output stream once the head element has been written,
+         * so that a browser may fetch stylesheets and scripts while the body
+         * is rendered. Any element may also be marked with tal:flush="".
+         *
+         * @param bool boolean
+         * @return Builder object
+         */
+        public Builder flushAfterHead (boolean bool) {
+            flushAfterHead = bool;
+            return this;
+        }
+
+        /**
+         * Flushes the output stream whenever about this many bytes have been
+         * rendered, rather than when the output buffer is full
+         *
+         * @param bytes the number of bytes between flushes; 0, the default, not to flush
+         * @return Builder object
+         */
+        public Builder flushEvery (int bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("flushEvery must not be negative");
+            }
+            flushEvery = bytes;
+            return this;
+        }
+
+        /**
+         * Renders the elements marked tal:parallel on this executor, each into a
+         * buffer of its own, while the rest of the page is rendered; the buffers are
+         * written in document order. A ForkJoinPool suits nested parallel elements.
+         * Without an executor, the default, marked elements are rendered in turn.
+         * Unless a prefetch executor is given, deferred values are also started on it.
+         *
+         * @param val ExecutorService
+         * @return Builder object
+         */
+        public Builder executor (ExecutorService val) {
+            executor = val;
+            return this;
+        }
+
+        /**
+         * Starts, before rendering, the unstarted RunnableFutures (e.g. FutureTasks)
+         * in the dictionary under the names of variables the template uses, so that
+         * they are computed concurrently. Defaults to the tal:parallel executor;
+         * with neither, each is run on the rendering thread when its value is needed.
+         *
+         * @param val Executor
+         * @return Builder object
+         */
+        public Builder prefetchExecutor (Executor val) {
+            prefetchExecutor = val;
+            return this;
+        }
+
         /**
          * Call this to create your template
          *
          * @return PageTemplateImpl
          */
         public PageTemplateImpl build () {
-            if (templateText == null && inputStream == null && url == null) {
+            if (templateText == null && inputStream == null && url == null && document == null) {
                 throw new IllegalArgumentException(
                     "Must provide template as an InputStream or as a String or as a URL");
             }
@@ -205,7 +336,9 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
             }
             if (url != null) {
                 try {
-                    inputStream = url.openStream();
+                    URLConnection connection = url.openConnection();
+                    lastModified = connection.getLastModified();
+                    inputStream = connection.getInputStream();
                     uri = new URI(url.toString());
                 }
                 catch (IOException e) {
@@ -224,19 +357,63 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
     }
 
     private PageTemplateImpl (Builder builder) {
-        SUPPRESS_ERRORS = builder.suppressErrors;
-        suppressDeclaration = builder.suppressDeclaration;
-        allowHtml = builder.allowHtml;
-        InputStream inputStream = builder.inputStream;
-        url = builder.url;
-        userResolver = builder.resolver;
-        uri = builder.uri;
+        this(builder.document != null ? builder.document : parse(builder.inputStream), builder.url, builder.uri, builder.lastModified, builder.resolver,
+             builder.allowHtml, builder.suppressErrors, builder.suppressDeclaration,
+             builder.logErrorAsWarn, builder.flushAfterHead, builder.flushEvery, builder.executor,
+             builder.prefetchExecutor != null ? builder.prefetchExecutor : builder.executor);
+    }
 
+    /**
+     * Compiles the document into a tree of CompiledElements;
+     * also registers every namespace and macro declared in the document
+     */
+    private PageTemplateImpl (Document doc, URL url, URI uri, long lastModified, Resolver userResolver,
+                              boolean allowHtml, boolean suppressErrors,
+                              boolean suppressDeclaration, boolean logErrorAsWarn,
+                              boolean flushAfterHead, int flushEvery, ExecutorService executor,
+                              Executor prefetchExecutor) {
+        this.doc = doc;
+        this.url = url;
+        this.uri = uri;
+        this.lastModified = lastModified;
+        this.userResolver = userResolver;
+        this.allowHtml = allowHtml;
+        this.SUPPRESS_ERRORS = suppressErrors;
+        this.suppressDeclaration = suppressDeclaration;
+        this.logErrorAsWarn = logErrorAsWarn;
+        this.flushAfterHead = flushAfterHead;
+        this.flushEvery = flushEvery;
+        this.executor = executor;
+        this.prefetchExecutor = prefetchExecutor;
+
+        Map<String, String> prefixNamespaceUri = new HashMap<String, String>();
+        this.compiledElements = new IdentityHashMap<Element, CompiledElement>();
+        this.root = CompiledElement.compile(this.doc.getRootElement(),
+                                            this.compiledElements, prefixNamespaceUri,
+                                            flushAfterHead);
+        this.prefixNamespaceUri = Collections.unmodifiableMap(prefixNamespaceUri);
+        Map<String, Macro> macros = new HashMap<String, Macro>();
+        this.slotTables = new IdentityHashMap<CompiledElement, Map<String, Slot>>();
+        findMacros(this.root, macros, this.slotTables);
+        this.macros = Collections.unmodifiableMap(macros);
+        Set<String> variables = new HashSet<String>();
+        for (CompiledElement element : this.compiledElements.values()) {
+            element.addVariables(variables);
+        }
+        this.variables = Collections.unmodifiableSet(variables);
+        this.globals = new Object[VariableScope.SLOTS];
+        this.globals[VariableScope.TEMPLATE] = this;
+        this.globals[VariableScope.RESOLVER] = new DefaultResolver();
+        this.globals[VariableScope.DEFAULT] = DEFAULT;
+    }
+
+    static Document parse (InputStream inputStream) {
         try {
             XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
             StAXBuilder parser = new StAXBuilder();
-            doc = parser.build(reader);
+            Document doc = parser.build(reader);
             inputStream.close();
+            return doc;
         }
         catch (XMLStreamException e) {
             throw new IllegalArgumentException(e);
@@ -246,6 +423,33 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
         }
     }
 
+    /**
+     * The compiled form is not serialized; a deserialized template
+     * is replaced by one compiled from its document
+     */
+    private Object readResolve () {
+        return new PageTemplateImpl(this.doc, this.url, this.uri, this.lastModified, this.userResolver,
+                                    this.allowHtml, this.SUPPRESS_ERRORS,
+                                    this.suppressDeclaration, this.logErrorAsWarn,
+                                    this.flushAfterHead, this.flushEvery, this.executor,
+                                    this.prefetchExecutor);
+    }
+
+    /**
+     * @param element an element of this template's document
+     * @return the compiled form of the element
+     */
+    private CompiledElement getCompiledElement (Element element) {
+        CompiledElement compiled = this.compiledElements.get(element);
+        if (compiled == null) {
+            // Not part of this document; compile it on demand,
+            // leaving the namespaces of this template as they are
+            compiled = CompiledElement.compile(element, new IdentityHashMap<Element, CompiledElement>(),
+                                               new HashMap<String, String>(), this.flushAfterHead);
+        }
+        return compiled;
+    }
+
     private static ByteArrayInputStream makeInputStream (String template) {
         try {
             return new ByteArrayInputStream(template.getBytes("UTF-8"));
@@ -271,23 +475,10 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
         return this.userResolver;
     }
 
-    public void setResolver (Resolver resolver) {
-        this.userResolver = resolver;
-    }
-
     public boolean isLogErrorAsWarn () {
         return this.logErrorAsWarn;
     }
 
-    /**
-     * For quieting the logging output, since template errors aren't showstoppers
-     *
-     * @param logErrorAsWarn boolean
-     */
-    public void setLogErrorAsWarn (boolean logErrorAsWarn) {
-        this.logErrorAsWarn = logErrorAsWarn;
-    }
-
     /**
      * @param output
      * @param context
@@ -310,8 +501,7 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
                          Map<String, Object> dictionary)
         throws IOException, PageTemplateException {
         try {
-            XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
-            XMLStreamWriter writer = outputFactory.createXMLStreamWriter(output);
+            Utf8StreamWriter writer = new Utf8StreamWriter(output, this.flushEvery);
             process(writer, context, dictionary);
             writer.close();
         }
@@ -323,8 +513,8 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
     private void process (XMLStreamWriter writer, Object context,
                           Map<String, Object> dictionary)
         throws XMLStreamException, PageTemplateException {
-        process(this.doc.getRootElement(), writer, context, dictionary,
-                new ArrayDeque<Map<String, Slot>>());
+        process(this.root, writer, context, dictionary,
+                new ArrayDeque<Map<String, Slot>>(), !this.suppressDeclaration);
     }
 
     /**
@@ -340,37 +530,58 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
                          Object context, Map<String, Object> dictionary,
                          Deque<Map<String, Slot>> slotStack)
         throws XMLStreamException, PageTemplateException {
-        try {
-            ExpressionEvaluator expressionEvaluator = new MvelExpressionEvaluator();
-            if (dictionary != null) {
-                for (Map.Entry<String, Object> entry : dictionary.entrySet()) {
-                    expressionEvaluator.set(entry.getKey(), entry.getValue());
-                }
-            }
-            expressionEvaluator.set("here", context);
-            expressionEvaluator.set("template", this);
-            expressionEvaluator.set("resolver", new DefaultResolver());
-            expressionEvaluator.set("default", DEFAULT);
-            if (!suppressDeclaration) {
-                writer.writeStartDocument();
+        process(getCompiledElement(element), writer, context, dictionary, slotStack,
+                !this.suppressDeclaration);
+    }
+
+    /**
+     * @param declaration false to leave out the XML declaration, e.g. when
+     *                    the output is included in another template's
+     */
+    private void process (CompiledElement element, XMLStreamWriter writer,
+                          Object context, Map<String, Object> dictionary,
+                          Deque<Map<String, Slot>> slotStack, boolean declaration)
+        throws XMLStreamException, PageTemplateException {
+        if ((this.prefetchExecutor != null) && (dictionary != null)) {
+            prefetch(dictionary);
+        }
+        // The dictionary is read in place, beneath the variables set while rendering
+        VariableScope scope = new VariableScope(this.globals, dictionary);
+        scope.set(VariableScope.HERE, context);
+        ExpressionEvaluator expressionEvaluator = new MvelExpressionEvaluator(scope);
+        if (declaration) {
+            writer.writeStartDocument();
+            writer.writeCharacters("\n");
+            DocType docType = this.doc.getDocType();
+            if (docType != null) {
+                writer.writeDTD("<!DOCTYPE " + docType.getElementName() + " PUBLIC \"" + docType.getPublicID() + "\" \"" + docType.getSystemID() + "\">");
                 writer.writeCharacters("\n");
-                DocType docType = this.doc.getDocType();
-                if (docType != null) {
-                    writer.writeDTD("<!DOCTYPE " + docType.getElementName() + " PUBLIC \"" + docType.getPublicID() + "\" \"" + docType.getSystemID() + "\">");
-                    writer.writeCharacters("\n");
-                }
-            }
-            processElement(element, writer, expressionEvaluator, slotStack);
-            if (!suppressDeclaration) {
-                writer.writeEndDocument();
             }
         }
-        catch (EvalException e) {
-            throw new PageTemplateException(e);
+        processElement(element, writer, expressionEvaluator, slotStack);
+        if (declaration) {
+            writer.writeEndDocument();
         }
     }
 
     /**
+     * Starts computing, on the prefetch executor, the values this template uses which are
+     * RunnableFutures not yet started, e.g. FutureTasks; rendering waits for a value
+     * only when it is needed. Values the template does not use are never computed.
+     */
+    private void prefetch (Map<String, Object> dictionary) {
+        for (String name : this.variables) {
+            Object value = dictionary.get(name);
+            if (((value instanceof RunnableFuture)) && (!((RunnableFuture<?>) value).isDone())) {
+                this.prefetchExecutor.execute((RunnableFuture<?>) value);
+            }
+        }
+    }
+
+    /**
+     * Renders the template, without an XML declaration,
+     * into the output of another template
+     *
      * @param writer
      * @param context
      * @param dictionary
@@ -379,15 +590,8 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
      */
     public void processIncludedTemplate (XMLStreamWriter writer, Object context, Map<String, Object> dictionary)
         throws XMLStreamException, PageTemplateException {
-        suppressDeclaration = true;
-        process(this.doc.getRootElement(), writer, context, dictionary,
-                new ArrayDeque<Map<String, Slot>>()
-        );
-    }
-
-    //@Override
-    public void setSuppressDeclaration (Boolean bool) {
-        this.suppressDeclaration = bool;
+        process(this.root, writer, context, dictionary,
+                new ArrayDeque<Map<String, Slot>>(), false);
     }
 
     /**
@@ -402,42 +606,58 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
                                 ExpressionEvaluator expressionEvaluator,
                                 Deque<Map<String, Slot>> slotStack)
         throws PageTemplateException, XMLStreamException {
-        // Get attributes
-        Expressions expressions = new Expressions();
-        List<SavedAttribute> attributes = getAttributes(element, expressions);
-        try {
-            Map<String, String> attrs = new HashMap<String, String>();
-            for (SavedAttribute savedAttribute : attributes) {
-                attrs.put(savedAttribute.getLocalPart(), savedAttribute.getValue());
-            }
-            expressionEvaluator.set("attrs", attrs);
+        processElement(getCompiledElement(element), writer, expressionEvaluator, slotStack);
+    }
+
+    private void processElement (CompiledElement element, XMLStreamWriter writer,
+                                 ExpressionEvaluator expressionEvaluator,
+                                 Deque<Map<String, Slot>> slotStack)
+        throws PageTemplateException, XMLStreamException {
+        processStatements(element, writer, expressionEvaluator, slotStack);
+        // tal:flush, or the head when flushing after it
+        if (element.flush) {
+            writer.flush();
         }
-        catch (EvalException e) {
-            throw new PageTemplateException("Unable to add 'attrs' to expression evaluator", e);
+    }
+
+    private void processStatements (CompiledElement element, XMLStreamWriter writer,
+                                    ExpressionEvaluator expressionEvaluator,
+                                    Deque<Map<String, Slot>> slotStack)
+        throws PageTemplateException, XMLStreamException {
+        if (element.error != null) {
+            throw new PageTemplateException(element.error);
         }
+        Expressions expressions = element.expressions;
+        VariableScope scope = VariableScope.of(expressionEvaluator);
+        setAttrs(element.attrs, expressionEvaluator, scope);
         // Process instructions
 
         // evaluate expression
-        if (expressions.evaluate != null) {
-            Expression.evaluate(expressions.evaluate, expressionEvaluator);
+        if (element.evaluate != null) {
+            Expression.evaluate(element.evaluate, expressionEvaluator);
         }
         // use macro
-        if (expressions.useMacro != null) {
-            processMacro(expressions.useMacro, element, writer, expressionEvaluator, slotStack);
+        if (element.useMacro != null) {
+            processMacro(element.useMacro, element, writer, expressionEvaluator, slotStack);
             return;
         }
         // fill slot
         if (expressions.defineSlot != null) {
             if (!slotStack.isEmpty()) {
-                Map<String, Slot> slots = slotStack.pop();
+                Map<String, Slot> slots = slotStack.peek();
                 Slot slot = slots.get(expressions.defineSlot);
                 if (slot != null) {
-                    slot.process(writer, expressionEvaluator, slotStack);
-                    slotStack.push(slots);
+                    // the filling is rendered among the slots of its own template
+                    slotStack.pop();
+                    try {
+                        slot.process(writer, expressionEvaluator, slotStack);
+                    }
+                    finally {
+                        slotStack.push(slots);
+                    }
                     return;
                 }
                 // else { use content in macro }
-                slotStack.push(slots);
             }
             else {
                 throw new PageTemplateException("slot definition not allowed outside of macro");
@@ -445,76 +665,115 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
         }
         // define
         if (expressions.define != null) {
-            processDefine(expressions.define, expressionEvaluator);
+            // local definitions are undone when the element has been rendered
+            int frame = scope == null ? 0 : scope.pushFrame();
+            try {
+                processDefine(element, expressionEvaluator, scope);
+                processDefinedElement(element, writer, expressionEvaluator, slotStack);
+            }
+            finally {
+                if (scope != null) {
+                    scope.popFrame(frame);
+                }
+            }
+        }
+        else {
+            processDefinedElement(element, writer, expressionEvaluator, slotStack);
+        }
+    }
+
+    private static void setAttrs (Map<String, String> attrs, ExpressionEvaluator expressionEvaluator,
+                                  VariableScope scope)
+        throws PageTemplateException {
+        if (scope != null) {
+            scope.set(VariableScope.ATTRS, attrs);
         }
+        else {
+            try {
+                expressionEvaluator.set("attrs", attrs);
+            }
+            catch (EvalException e) {
+                throw new PageTemplateException("Unable to add 'attrs' to expression evaluator", e);
+            }
+        }
+    }
+
+    private void processDefinedElement (CompiledElement element, XMLStreamWriter writer,
+                                        ExpressionEvaluator expressionEvaluator,
+                                        Deque<Map<String, Slot>> slotStack)
+        throws PageTemplateException, XMLStreamException {
+        Expressions expressions = element.expressions;
+        List<SavedAttribute> attributes = element.attributes;
         // condition
-        if ((expressions.condition != null) && (!Expression.evaluateBoolean(expressions.condition, expressionEvaluator))) {
+        if ((element.condition != null) && (!Expression.evaluateBoolean(element.condition, expressionEvaluator))) {
             return;
         }
+        // The compiled attributes are shared; copy them before modifying
+        if (expressions.attributes != null) {
+            attributes = new ArrayList<SavedAttribute>(attributes);
+        }
         // repeat
         try {
-            Loop loop = new Loop(expressions.repeat, expressionEvaluator);
-            while (loop.repeat(expressionEvaluator)) {
-                // content or replace
-                Object jptContent = null;
-                if (expressions.content != null) {
-                    jptContent = processContent(expressions.content, expressionEvaluator);
-                }
-                // attributes
-                if (expressions.attributes != null) {
-                    processAttributes(element, attributes, expressions.attributes, expressionEvaluator);
-                }
-                // omit-tag
-                boolean jptOmitTag = false;
-                if (expressions.omitTag != null) {
-                    if (expressions.omitTag.equals("")) {
-                        jptOmitTag = true;
+            Loop loop;
+            if ((expressions.repeat != null) && (element.repeat != null)) {
+                loop = new Loop(element.repeatVariable, element.repeat, expressionEvaluator);
+            }
+            else {
+                loop = new Loop(expressions.repeat, expressionEvaluator);
+            }
+            try {
+                while (loop.repeat(expressionEvaluator)) {
+                    // content or replace
+                    Object jptContent = null;
+                    if (element.talContent != null) {
+                        jptContent = processContent(element, expressionEvaluator);
                     }
-                    else {
-                        jptOmitTag = Expression.evaluateBoolean(expressions.omitTag, expressionEvaluator);
+                    // attributes
+                    if (expressions.attributes != null) {
+                        processAttributes(attributes, element, expressionEvaluator);
                     }
-                }
-                // Declare element
-                //Namespace startTag = element.getNamespaceURI(); //   .getNamespace();
-                if (!jptOmitTag) {
-                    writer.writeStartElement(element.getNamespacePrefix(), element.getName(), element.getNamespaceURI());
-                    for (Iterator it = element.getAdditionalNamespaces().iterator(); it.hasNext();) {
-                        Namespace namespace = (Namespace) it.next();
-                        if ((!namespace.getURI().equals("http://xml.zope.org/namespaces/tal"))
-                            && (!namespace.getURI().equals("http://xml.zope.org/namespaces/metal"))) {
-                            writer.writeNamespace(namespace.getPrefix(), namespace.getURI());
+                    // omit-tag
+                    boolean jptOmitTag = false;
+                    if (expressions.omitTag != null) {
+                        if (element.omitTag == null) {
+                            jptOmitTag = true;
+                        }
+                        else {
+                            jptOmitTag = Expression.evaluateBoolean(element.omitTag, expressionEvaluator);
                         }
                     }
-                    for (SavedAttribute attribute : attributes) {
-                        writer.writeAttribute(attribute.getPrefix(),
-                                              attribute.getNamespaceUri(),
-                                              attribute.getLocalPart(),
-                                              attribute.getValue());
+                    // Declare element
+                    if (!jptOmitTag) {
+                        writeStartElement(element, attributes, expressions.attributes == null, writer);
                     }
-                }
-                // Process content
-                if ((jptContent != null) && (jptContent != DEFAULT)) {
-                    // Content for this element has been generated dynamically
-                    if ((jptContent instanceof HTMLFragment)) {
-                        HTMLFragment html = (HTMLFragment) jptContent;
-                        html.toXhtml(writer);
-                    }
-                    else if ((jptContent instanceof IncludableTemplate)) {
-                        IncludableTemplate template = (IncludableTemplate) jptContent;
-                        template.process(writer);
+                    // Process content
+                    if ((jptContent != null) && (jptContent != DEFAULT)) {
+                        // Content for this element has been generated dynamically
+                        if ((jptContent instanceof HTMLFragment)) {
+                            HTMLFragment html = (HTMLFragment) jptContent;
+                            html.toXhtml(writer);
+                        }
+                        else if ((jptContent instanceof IncludableTemplate)) {
+                            IncludableTemplate template = (IncludableTemplate) jptContent;
+                            template.process(writer);
+                        }
+                        else {
+                            // plain text
+                            writer.writeCharacters((String) jptContent);
+                        }
                     }
                     else {
-                        // plain text
-                        writer.writeCharacters((String) jptContent);
+                        defaultContent(element, writer, expressionEvaluator, slotStack);
+                    }
+                    // End element
+                    if (!jptOmitTag) {
+                        writer.writeEndElement();
                     }
                 }
-                else {
-                    defaultContent(element, writer, expressionEvaluator, slotStack);
-                }
-                // End element
-                if (!jptOmitTag) {
-                    writer.writeEndElement();
-                }
+            }
+            finally {
+                // a stream left unread, as on an error, is closed all the same
+                loop.close();
             }
         }
         catch (ExpressionEvaluationException e) {
@@ -532,121 +791,160 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
         }
     }
 
-    private void defaultContent (Element element, XMLStreamWriter writer, ExpressionEvaluator expressionEvaluator,
-                                 Deque<Map<String, Slot>> slotStack)
-        throws PageTemplateException, XMLStreamException {
-        addNamespace(element.getNamespace());
-        for (Object o : element.getAdditionalNamespaces()) {
-            Namespace additionalNamespace = (Namespace) o;
-            addNamespace(additionalNamespace);
+    /**
+     * Writes the start tag, with its namespace declarations and attributes;
+     * the markup encoded when the template was compiled is used when possible.
+     */
+    private static void writeStartElement (CompiledElement element, List<SavedAttribute> attributes,
+                                           boolean staticAttributes, XMLStreamWriter writer)
+        throws XMLStreamException {
+        Utf8StreamWriter utf8Writer = null;
+        if ((writer instanceof Utf8StreamWriter)) {
+            utf8Writer = (Utf8StreamWriter) writer;
+            utf8Writer.writeStartElement(element.startTag, element.endTag);
         }
-        for (Object o : element.getContent()) {
-            Content node = (Content) o;
-            if ((node instanceof Element)) {
-                processElement((Element) node, writer, expressionEvaluator, slotStack);
-            }
-            else if ((node instanceof Comment)) {
-                writer.writeComment(node.getValue());
-            }
-            else if ((node instanceof ProcessingInstruction)) {
-                ProcessingInstruction processingInstruction = (ProcessingInstruction) node;
-                writer.writeProcessingInstruction(processingInstruction.getTarget(),
-                                                  processingInstruction.getData());
-            }
-            else if ((node instanceof CDATA)) {
-                writer.writeCData(node.getValue());
-            }
-            else if ((node instanceof Text)) {
-                writer.writeCharacters(node.getValue());
+        else {
+            writer.writeStartElement(element.prefix, element.name, element.namespaceUri);
+        }
+        if ((utf8Writer != null) && (element.encodedNamespaces != null)) {
+            utf8Writer.writeAttributes(element.encodedNamespaces);
+        }
+        else {
+            for (Namespace namespace : element.namespaces) {
+                writer.writeNamespace(namespace.getPrefix(), namespace.getURI());
             }
-            else if ((node instanceof EntityRef)) {
-                writer.writeEntityRef(((EntityRef) node).getName());
+        }
+        if ((utf8Writer != null) && (staticAttributes) && (element.encodedAttributes != null)) {
+            utf8Writer.writeAttributes(element.encodedAttributes);
+        }
+        else {
+            for (SavedAttribute attribute : attributes) {
+                writer.writeAttribute(attribute.getPrefix(),
+                                      attribute.getNamespaceUri(),
+                                      attribute.getLocalPart(),
+                                      attribute.getValue());
             }
         }
     }
 
-    private void addNamespace (Namespace additionalNamespace) {
-        this.prefixNamespaceUri.put(additionalNamespace.getPrefix(), additionalNamespace.getURI());
+    private void defaultContent (CompiledElement element, XMLStreamWriter writer, ExpressionEvaluator expressionEvaluator,
+                                 Deque<Map<String, Slot>> slotStack)
+        throws PageTemplateException, XMLStreamException {
+        if ((element.parallelContent) && (this.executor != null)
+            && ((writer instanceof Utf8StreamWriter)) && (((Utf8StreamWriter) writer).canWriteContent())
+            && (VariableScope.of(expressionEvaluator) != null)) {
+            writeParallelContent(element.content, (Utf8StreamWriter) writer, expressionEvaluator, slotStack);
+        }
+        else {
+            writeContent(element.content, writer, expressionEvaluator, slotStack);
+        }
     }
 
-    List<SavedAttribute> getAttributes (Element element, Expressions expressions)
-        throws PageTemplateException {
-        List<SavedAttribute> attributes = new ArrayList<SavedAttribute>();
-
-        for (Object o : element.getAttributes()) {
-            Attribute attribute = (Attribute) o;
-            Namespace namespace = attribute.getNamespace();
-            String name = attribute.getName();
-
-            if ("http://xml.zope.org/namespaces/tal".equals(namespace.getURI())) {
-                addNamespace(namespace);
-                // tal:define
-                if (name.equals(TalStatement.DEFINE.getAttribute())) {
-                    expressions.define = attribute.getValue();
-                }
-                // tal:condition
-                else if (name.equals(TalStatement.CONDITION.getAttribute())) {
-                    expressions.condition = attribute.getValue();
-                }
-                // tal:repeat
-                else if (name.equals(TalStatement.REPEAT.getAttribute())) {
-                    expressions.repeat = attribute.getValue();
-                }
-                // tal:content
-                else if (name.equals(TalStatement.CONTENT.getAttribute())) {
-                    expressions.content = attribute.getValue();
-                }
-                // tal:replace
-                else if (name.equals(TalStatement.REPLACE.getAttribute())) {
-                    if (expressions.omitTag == null) {
-                        expressions.omitTag = "";
-                    }
-                    expressions.content = attribute.getValue();
-                }
-                // tal:attributes
-                else if (name.equals(TalStatement.ATTRIBUTES.getAttribute())) {
-                    expressions.attributes = attribute.getValue();
+    private void writeContent (List<Object> content, XMLStreamWriter writer, ExpressionEvaluator expressionEvaluator,
+                               Deque<Map<String, Slot>> slotStack)
+        throws PageTemplateException, XMLStreamException {
+        for (Object node : content) {
+            writeNode(node, writer, expressionEvaluator, slotStack);
+        }
+    }
+
+    /**
+     * Starts the children marked tal:parallel on the executor, each with a copy of
+     * the variables as they are now, renders the other children, and writes the
+     * output of each parallel child in its place
+     */
+    private void writeParallelContent (List<Object> content, Utf8StreamWriter writer,
+                                       ExpressionEvaluator expressionEvaluator,
+                                       Deque<Map<String, Slot>> slotStack)
+        throws PageTemplateException, XMLStreamException {
+        VariableScope scope = VariableScope.of(expressionEvaluator);
+        List<Future<byte[]>> forks = new ArrayList<Future<byte[]>>(content.size());
+        try {
+            for (Object node : content) {
+                if (((node instanceof CompiledElement)) && (((CompiledElement) node).parallel)) {
+                    forks.add(this.executor.submit(new ParallelElement((CompiledElement) node, scope.fork(), slotStack)));
                 }
-                // tal:omit-tag
-                else if (name.equals(TalStatement.OMIT_TAG.getAttribute())) {
-                    expressions.omitTag = attribute.getValue();
+                else {
+                    forks.add(null);
                 }
-                // tal:evaluate
-                else if (name.equals("evaluate")) {
-                    expressions.evaluate = attribute.getValue();
+            }
+            for (int i = 0; i < content.size(); i++) {
+                Future<byte[]> fork = forks.get(i);
+                if (fork == null) {
+                    writeNode(content.get(i), writer, expressionEvaluator, slotStack);
                 }
-                // error
                 else {
-                    throw new PageTemplateException("unknown tal attribute: " + name);
+                    writer.writeContent(join(fork));
                 }
             }
-            else if ("http://xml.zope.org/namespaces/metal".equals(namespace.getURI())) {
-                addNamespace(namespace);
-                // metal:use-macro
-                if (name.equals(MetalStatement.USE_MACRO.getAttribute())) {
-                    expressions.useMacro = attribute.getValue();
-                }
-                // metal:define-slot
-                else if (name.equals(MetalStatement.DEFINE_SLOT.getAttribute())) {
-                    expressions.defineSlot = attribute.getValue();
+        }
+        finally {
+            // after a failure, stop the elements still rendering
+            for (Future<byte[]> fork : forks) {
+                if (fork != null) {
+                    fork.cancel(true);
                 }
-                // metal:define-macro
-                // metal:fill-slot
-                else if ((!name.equals(MetalStatement.DEFINE_MACRO.getAttribute()))
-                    && (!name.equals(MetalStatement.FILL_SLOT.getAttribute()))) {
-                    throw new PageTemplateException("unknown metal attribute: " + name);
+            }
+        }
+    }
+
+    private static byte[] join (Future<byte[]> fork) throws PageTemplateException, XMLStreamException {
+        try {
+            return fork.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PageTemplateException("interrupted while rendering a parallel element", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if ((cause instanceof PageTemplateException)) {
+                throw (PageTemplateException) cause;
+            }
+            if ((cause instanceof XMLStreamException)) {
+                throw (XMLStreamException) cause;
+            }
+            if ((cause instanceof RuntimeException)) {
+                throw (RuntimeException) cause;
+            }
+            if ((cause instanceof Error)) {
+                throw (Error) cause;
+            }
+            throw new PageTemplateException(cause);
+        }
+    }
+
+    private void writeNode (Object node, XMLStreamWriter writer, ExpressionEvaluator expressionEvaluator,
+                            Deque<Map<String, Slot>> slotStack)
+        throws PageTemplateException, XMLStreamException {
+        if ((node instanceof CompiledElement)) {
+            processElement((CompiledElement) node, writer, expressionEvaluator, slotStack);
+        }
+        else if ((node instanceof CompiledElement.StaticContent)) {
+            CompiledElement.StaticContent staticContent = (CompiledElement.StaticContent) node;
+            if (((writer instanceof Utf8StreamWriter)) && (staticContent.encoded != null)
+                && (((Utf8StreamWriter) writer).writeContent(staticContent.encoded))) {
+                // Leave the same attrs in scope as rendering the elements would
+                if (staticContent.attrs != null) {
+                    setAttrs(staticContent.attrs, expressionEvaluator, VariableScope.of(expressionEvaluator));
                 }
             }
-            // Pass on all other attributes
             else {
-                attributes.add(new SavedAttribute(attribute.getName(),
-                                                  attribute.getNamespaceURI(),
-                                                  attribute.getNamespacePrefix(),
-                                                  attribute.getQualifiedName(),
-                                                  attribute.getValue()));
+                writeContent(staticContent.nodes, writer, expressionEvaluator, slotStack);
             }
         }
-        return attributes;
+        else if ((node instanceof CompiledElement.EncodedText)) {
+            CompiledElement.EncodedText text = (CompiledElement.EncodedText) node;
+            if (((writer instanceof Utf8StreamWriter)) && (text.encoded != null)) {
+                ((Utf8StreamWriter) writer).writeCharacters(text.text, text.encoded);
+            }
+            else {
+                writer.writeCharacters(text.text);
+            }
+        }
+        else {
+            CompiledElement.write(node, writer);
+        }
     }
 
     /**
@@ -654,19 +952,17 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
      * expression is not an IncludableTemplate then
      * it will be treated as a HTML fragment.
      *
-     * @param expression
+     * @param element
      * @param expressionEvaluator
      * @return
      * @throws ExpressionEvaluationException
      */
-    private Object processContent (String expression, ExpressionEvaluator expressionEvaluator)
+    private Object processContent (CompiledElement element, ExpressionEvaluator expressionEvaluator)
         throws ExpressionEvaluationException {
         // Structured text, preserve xml structure
         Object content;
-        String textExpression;
-        if (expression.startsWith("structure ")) {
-            String structureExpression = expression.substring("structure ".length());
-            Object structureContent = Expression.evaluate(structureExpression, expressionEvaluator);
+        if (element.structure) {
+            Object structureContent = Expression.evaluate(element.talContent, expressionEvaluator);
             if ((structureContent == DEFAULT)
                 || ((structureContent instanceof IncludableTemplate))
                 || ((structureContent instanceof HTMLFragment))) {
@@ -678,13 +974,7 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
             }
         }    // Unstructured text, return as plain old string
         else {
-            if (expression.startsWith("text ")) {
-                textExpression = expression.substring("text ".length());
-            }
-            else {
-                textExpression = expression;
-            }
-            Object textContent = Expression.evaluate(textExpression, expressionEvaluator);
+            Object textContent = Expression.evaluate(element.talContent, expressionEvaluator);
             if (textContent != DEFAULT) {
                 content = textContent == null ? ""
                     : String.valueOf(textContent);
@@ -696,19 +986,28 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
         return content;
     }
 
-    private void processDefine (String expression, ExpressionEvaluator beanShell) throws ExpressionEvaluationException {
+    private void processDefine (CompiledElement element, ExpressionEvaluator beanShell, VariableScope scope)
+        throws ExpressionEvaluationException {
+        String expression = element.expressions.define;
         try {
-            ExpressionTokenizer tokens = new ExpressionTokenizer(expression, ';', true);
-            while (tokens.hasMoreTokens()) {
-                String variable = tokens.nextToken().trim();
-                int space = variable.indexOf(32);
-                if (space == -1) {
-                    throw new ExpressionSyntaxException("bad variable definition: " + variable);
+            List<CompiledElement.Assignment> define = element.define;
+            if (define == null) {
+                define = CompiledElement.parseAssignments(expression, CompiledElement.DEFINE);
+            }
+            for (CompiledElement.Assignment variable : define) {
+                if (variable.error != null) {
+                    throw new ExpressionSyntaxException(variable.error);
+                }
+                Object value = Expression.evaluate(variable.expression, beanShell);
+                if ((variable.local) && (scope != null)) {
+                    scope.setLocal(variable.name, value);
+                }
+                else if (scope != null) {
+                    scope.setGlobal(variable.name, value);
+                }
+                else {
+                    beanShell.set(variable.name, value);
                 }
-                String name = variable.substring(0, space);
-                String valueExpression = variable.substring(space + 1).trim();
-                Object value = Expression.evaluate(valueExpression, beanShell);
-                beanShell.set(name, value);
             }
         }
         catch (EvalException e) {
@@ -716,21 +1015,21 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
         }
     }
 
-    private void processAttributes (Element element,
-                                    List<SavedAttribute> attributes,
-                                    String expression,
+    private void processAttributes (List<SavedAttribute> attributes,
+                                    CompiledElement element,
                                     ExpressionEvaluator beanShell)
         throws ExpressionEvaluationException {
-        ExpressionTokenizer tokens = new ExpressionTokenizer(expression, ';', true);
-        while (tokens.hasMoreTokens()) {
-            String attribute = tokens.nextToken().trim();
-            int space = attribute.indexOf(32);
-            if (space == -1) {
-                throw new ExpressionSyntaxException("bad attributes expression: " + attribute);
+        List<CompiledElement.Assignment> talAttributes = element.talAttributes;
+        if (talAttributes == null) {
+            talAttributes = CompiledElement.parseAssignments(element.expressions.attributes,
+                                                             CompiledElement.ATTRIBUTES);
+        }
+        for (CompiledElement.Assignment attribute : talAttributes) {
+            if (attribute.error != null) {
+                throw new ExpressionSyntaxException(attribute.error);
             }
-            String qualifiedName = attribute.substring(0, space);
-            String valueExpression = attribute.substring(space + 1).trim();
-            Object value = Expression.evaluate(valueExpression, beanShell);
+            String qualifiedName = attribute.name;
+            Object value = Expression.evaluate(attribute.expression, beanShell);
 
             if (value != DEFAULT) {
                 removeAttribute(attributes, qualifiedName);
@@ -743,7 +1042,10 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
                 if (colon != -1) {
                     prefix = qualifiedName.substring(0, colon);
                     name = qualifiedName.substring(colon + 1);
-                    uri = (String) this.prefixNamespaceUri.get(prefix);
+                    // a namespace in scope, otherwise one declared elsewhere in the document
+                    Namespace namespace = element.element.getNamespace(prefix);
+                    uri = namespace != null ? namespace.getURI()
+                        : this.prefixNamespaceUri.get(prefix);
                 }
                 else {
                     prefix = null;
@@ -766,116 +1068,124 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
         }
     }
 
-    private void processMacro (String expression,
-                               Element element,
+    private void processMacro (CompiledExpression expression,
+                               CompiledElement element,
                                XMLStreamWriter writer,
                                ExpressionEvaluator beanShell,
                                Deque<Map<String, Slot>> slotStack)
         throws PageTemplateException, XMLStreamException {
         Object object = Expression.evaluate(expression, beanShell);
         if (object == null) {
-            throw new NoSuchPathException("could not find macro: " + expression);
+            throw new NoSuchPathException("could not find macro: " + expression.expression);
         }
         if ((object instanceof Macro)) {
-            // Find slots to fill inside this macro call
-            Map<String, Slot> slots = new HashMap<String, Slot>();
-            findSlots(element, slots);
+            // The slots filled inside this macro call, found when the template was built
+            Map<String, Slot> slots = this.slotTables.get(element);
+            if (slots == null) {
+                slots = slotTable(element);
+            }
             // Slots filled in later templates (processed earlier)
             // Take precedence over slots filled in intermediate
             // templates.
-            if (!slotStack.isEmpty()) {
-                Map<String, Slot> laterSlots = slotStack.peek();
-                slots.putAll(laterSlots);
-            }
-            slotStack.push(slots);
+            slotStack.push(enclose(slots, slotStack.peek()));
             // Call macro
             Macro macro = (Macro) object;
-            macro.process(writer, beanShell, slotStack);
+            try {
+                macro.process(writer, beanShell, slotStack);
+            }
+            finally {
+                slotStack.pop();
+            }
         }
         else {
             throw new ExpressionEvaluationException(
-                "Expression '" + expression + "' does not evaluate to macro: "
-                    + object.getClass().getName()).setExpression(expression);
+                "Expression '" + expression.expression + "' does not evaluate to macro: "
+                    + object.getClass().getName()).setExpression(expression.expression);
         }
     }
 
     /**
-     * With all of our startTag woes, getting an XPath expression
-     * to work has proven futile, so we'll recurse through the tree
-     * ourselves to find what we need.
+     * Recurses through the compiled tree to find the macros
+     * defined by this template, and the slots filled at each macro call.
      *
      * @param element
-     * @param slots
+     * @param macros
+     * @param slotTables
      */
-    private void findSlots (Element element, Map<String, Slot> slots) {
-        // Look for our attribute
-        Attribute attribute = findAttribute(element, "http://xml.zope.org/namespaces/metal", "fill-slot");
-        if (attribute != null) {
-            slots.put(attribute.getValue(), new SlotImpl(element));
+    private void findMacros (CompiledElement element, Map<String, Macro> macros,
+                             Map<CompiledElement, Map<String, Slot>> slotTables) {
+        if (element.expressions.defineMacro != null) {
+            macros.put(element.expressions.defineMacro, new MacroImpl(element));
+        }
+        if (element.useMacro != null) {
+            slotTables.put(element, slotTable(element));
         }
         // Recurse into child elements
-        for (Object o : element.getChildren()) {
-            findSlots((Element) o, slots);
+        for (Object node : element.content) {
+            if ((node instanceof CompiledElement)) {
+                findMacros((CompiledElement) node, macros, slotTables);
+            }
         }
     }
 
     /**
-     * * With all of our startTag woes, getting an XPath expression
-     * to work has proven futile, so we'll recurse through the tree
-     * ourselves to find what we need.
+     * The slots seen inside a macro call: those filled at the call, overridden
+     * by those filled around it. The tables are only copied when both fill slots.
      *
-     * @param element
-     * @param macros
+     * @param slots slots filled at the call
+     * @param outer slots of the enclosing call; null if there is none
+     * @return the slots, flattened into one map
      */
-    private void findMacros (Element element, Map<String, Macro> macros) {
-        // Process any declared namespaces
-        for (Object o : element.getAdditionalNamespaces()) {
-            Namespace namespace = (Namespace) o;
-            addNamespace(namespace);
-        }
-        // Look for our attribute
-        Attribute attribute = findAttribute(element, "http://xml.zope.org/namespaces/metal", "define-macro");
-        if (attribute != null) {
-            macros.put(attribute.getValue(), new MacroImpl(element));
+    private static Map<String, Slot> enclose (Map<String, Slot> slots, Map<String, Slot> outer) {
+        if ((outer == null) || (outer.isEmpty())) {
+            return slots;
         }
-        // Recurse into child elements
-        for (Iterator i = element.getChildren().iterator(); i.hasNext();) {
-            findMacros((Element) i.next(), macros);
+        if (slots.isEmpty()) {
+            return outer;
         }
+        Map<String, Slot> enclosed = new HashMap<String, Slot>(slots);
+        enclosed.putAll(outer);
+        return Collections.unmodifiableMap(enclosed);
     }
 
-    private Attribute findAttribute (Element element, String uri, String name) {
-        Attribute foundAttribute = null;
-        Iterator it = element.getAttributes().iterator();
-        while ((it.hasNext()) && (foundAttribute == null)) {
-            Attribute attribute = (Attribute) it.next();
-            if ((attribute.getName().equals(name))
-                && (attribute.getNamespace().getURI().equals(uri))) {
-                foundAttribute = attribute;
-            }
+    private Map<String, Slot> slotTable (CompiledElement element) {
+        Map<String, Slot> slots = new HashMap<String, Slot>();
+        for (Map.Entry<String, CompiledElement> fillSlot : element.fillSlots.entrySet()) {
+            slots.put(fillSlot.getKey(), new SlotImpl(fillSlot.getValue()));
         }
-        return foundAttribute;
+        return Collections.unmodifiableMap(slots);
     }
 
     /**
-     * @return macros used by this template
+     * @return macros defined by this template; the map can not be modified
      */
     public Map<String, Macro> getMacros () {
-        findMacros(this.doc.getRootElement(), this.macros);
         return this.macros;
     }
 
-    public boolean isSuppressDeclaration () {
-        return suppressDeclaration;
+    /**
+     * @return the number of elements in the document; the weight of the template in a TemplateCache
+     */
+    int getElementCount () {
+        return this.compiledElements.size();
     }
 
     /**
-     * Used by includable Template, for macros
-     *
-     * @param suppressDeclaration
+     * @return the source of the template, if it was built from a URL; otherwise null
      */
-    public void setSuppressDeclaration (boolean suppressDeclaration) {
-        this.suppressDeclaration = suppressDeclaration;
+    URL getUrl () {
+        return this.url;
+    }
+
+    /**
+     * @return when the source was last modified, as of building the template; 0 if unknown
+     */
+    long getLastModified () {
+        return this.lastModified;
+    }
+
+    public boolean isSuppressDeclaration () {
+        return suppressDeclaration;
     }
 
     @Override
@@ -885,13 +1195,41 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
             '}';
     }
 
+    /**
+     * Renders an element marked tal:parallel into a buffer, on the executor
+     */
+    private class ParallelElement implements Callable<byte[]> {
+        private final CompiledElement element;
+        private final VariableScope scope;
+        private final Deque<Map<String, Slot>> slotStack;
+
+        /**
+         * @param slotStack copied here, on the rendering thread
+         */
+        ParallelElement (CompiledElement element, VariableScope scope, Deque<Map<String, Slot>> slotStack) {
+            this.element = element;
+            this.scope = scope;
+            this.slotStack = new ArrayDeque<Map<String, Slot>>(slotStack);
+        }
+
+        public byte[] call () throws PageTemplateException, XMLStreamException {
+            Utf8StreamWriter buffer = Utf8StreamWriter.contentEncoder();
+            processElement(this.element, buffer, new MvelExpressionEvaluator(this.scope), this.slotStack);
+            byte[] rendered = buffer.toContent();
+            if (rendered == null) {
+                throw new XMLStreamException("parallel element did not end where it started");
+            }
+            return rendered;
+        }
+    }
+
     /**
      * Data structure placeholder class
      */
     class SlotImpl implements Slot {
-        Element element;
+        final CompiledElement element;
 
-        SlotImpl (Element element) {
+        SlotImpl (CompiledElement element) {
             this.element = element;
         }
 
@@ -908,14 +1246,21 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
      * Data structure placeholder for macro implementation
      */
     public class MacroImpl implements Macro {
-        private Element element;
+        private final CompiledElement element;
 
-        private MacroImpl (Element element) {
+        private MacroImpl (CompiledElement element) {
             this.element = element;
         }
 
         public Element getElement () {
-            return this.element;
+            return this.element.element;
+        }
+
+        /**
+         * @return the names of the slots this macro defines; the set can not be modified
+         */
+        public Set<String> getSlotNames () {
+            return this.element.defineSlots.keySet();
         }
 
         public void process (XMLStreamWriter writer,
@@ -925,6 +1270,25 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
             PageTemplateImpl.this.processElement(this.element, writer,
                                                  expressionEvaluator, slotStack);
         }
+
+        /**
+         * Renders the macro with the variables of its own template,
+         * without an XML declaration
+         *
+         * @param writer
+         * @param context
+         * @param dictionary
+         * @param slotStack
+         * @throws PageTemplateException
+         * @throws XMLStreamException
+         */
+        public void process (XMLStreamWriter writer, Object context,
+                             Map<String, Object> dictionary,
+                             Deque<Map<String, Slot>> slotStack)
+            throws PageTemplateException, XMLStreamException {
+            PageTemplateImpl.this.process(this.element, writer, context, dictionary,
+                                          slotStack, false);
+        }
     }
 
     /**
@@ -935,7 +1299,17 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
 
         DefaultResolver () {
             if (PageTemplateImpl.this.uri != null) {
-                this.uriResolver = new URIResolver(PageTemplateImpl.this.uri);
+                this.uriResolver = new URIResolver(PageTemplateImpl.this.uri) {
+                    // templates found by uri resolve relative to their own uri
+                    @Override
+                    protected PageTemplate buildPageTemplate (URL resource) {
+                        return new Builder().url(resource).build();
+                    }
+                };
+                if (PageTemplateImpl.this.userResolver != null) {
+                    // macro templates are checked for changes as often as the templates using them
+                    this.uriResolver.setCheckInterval(PageTemplateImpl.this.userResolver.getCheckInterval());
+                }
             }
         }
 
@@ -962,8 +1336,6 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
             // If user has supplied resolver, use it
             if (PageTemplateImpl.this.userResolver != null) {
                 template = PageTemplateImpl.this.userResolver.getPageTemplate(path);
-                // template inherits user resolver
-                template.setResolver(PageTemplateImpl.this.userResolver);
             }
             // If template not found by user resolver
             // fall back to resolving by uri
@@ -972,6 +1344,17 @@ public final class PageTemplateImpl implements PageTemplate, Serializable {
             }
             return template;
         }
+
+        @Override
+        public ExpressionScript getExpressionScript (String path)
+            throws IOException {
+            ExpressionScript script = null;
+            // A user supplied resolver may find scripts without a URL, e.g. in an archive
+            if (PageTemplateImpl.this.userResolver != null) {
+                script = PageTemplateImpl.this.userResolver.getExpressionScript(path);
+            }
+            return script != null ? script : super.getExpressionScript(path);
+        }
     }
 
     /**
@@ -18,11 +18,15 @@
  */
 package jpt;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -37,12 +41,22 @@ import java.util.concurrent.ConcurrentHashMap;
 public abstract class Resolver implements Serializable {
     private static final long serialVersionUID = -8112477389545806195L;
 
-    // Map of resources called by this template
+    /**
+     * Templates given to this resolver, by path; they are never evicted
+     */
     protected Map<String, PageTemplate> templates =
         new ConcurrentHashMap<String, PageTemplate>();
+    /**
+     * Templates loaded by this resolver, by path
+     */
+    protected TemplateCache cache = new TemplateCache();
     protected Map<String, ExpressionScript> scripts =
         new ConcurrentHashMap<String, ExpressionScript>();
     protected boolean disableJptTemplateCache = false;
+    /**
+     * Milliseconds between checks whether a loaded template changed; negative: never checked
+     */
+    protected volatile long checkInterval = -1;
 
     protected abstract URL getResource (String paramString)
         throws IOException;
@@ -68,28 +82,148 @@ public abstract class Resolver implements Serializable {
         this.disableJptTemplateCache = disableJptTemplateCache;
     }
 
+    /**
+     * @param cache holds the templates loaded; e.g. with other bounds than the default
+     */
+    protected Resolver (TemplateCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Finds a template given to this resolver, or a template loaded before;
+     * otherwise loads it, in one thread at a time. If a check interval is set,
+     * a loaded template whose source was modified since is loaded again.
+     *
+     * @param path template path
+     * @return the template, or null if there is none
+     * @throws PageTemplateException
+     * @throws IOException
+     */
     protected PageTemplate getPageTemplate (String path)
         throws PageTemplateException, IOException {
-        PageTemplate template = null;
-        if ((!disableJptTemplateCache) && (templates.containsKey(path))) {
-            template = templates.get(path);
+        if (disableJptTemplateCache) {
+            return loadPageTemplate(path);
         }
-        else {
-            URL resource = getResource(path);
-            if (resource != null) {
-                template =
-                    new PageTemplateImpl.Builder().url(resource).build();
-                if (!disableJptTemplateCache) {
-                    templates.put(path, template);
+        PageTemplate template = templates.get(path);
+        if (template == null) {
+            TemplateCache.Loader loader = new TemplateCache.Loader() {
+                public PageTemplate load (String path) throws IOException {
+                    PageTemplate template = loadPageTemplate(path);
+                    if (checkInterval >= 0) {
+                        watch(template, path);
+                    }
+                    return template;
                 }
-            }
-            else {
-                template = null;
+            };
+            template = cache.get(path, loader);
+            if ((template != null) && (checkInterval >= 0)
+                && (cache.claimCheck(path, checkInterval)) && (isModified(template))) {
+                cache.invalidate(path, template);
+                template = cache.get(path, loader);
             }
         }
         return template;
     }
 
+    /**
+     * Templates read from files are also watched, so that a change is seen
+     * on the next use rather than at the next check
+     */
+    private void watch (PageTemplate template, String path) {
+        if ((template instanceof PageTemplateImpl)) {
+            File file = toFile(((PageTemplateImpl) template).getUrl());
+            if (file != null) {
+                TemplateWatcher watcher = TemplateWatcher.getInstance();
+                if (watcher != null) {
+                    watcher.watch(file, cache, path);
+                }
+            }
+        }
+    }
+
+    private static boolean isModified (PageTemplate template) throws IOException {
+        if ((template instanceof PageTemplateImpl)) {
+            PageTemplateImpl impl = (PageTemplateImpl) template;
+            return (impl.getUrl() != null) && (lastModified(impl.getUrl()) != impl.getLastModified());
+        }
+        return false;
+    }
+
+    /**
+     * @param url template source
+     * @return when the source was last modified, in milliseconds since the epoch; 0 if unknown
+     * @throws IOException
+     */
+    static long lastModified (URL url) throws IOException {
+        File file = toFile(url);
+        if (file != null) {
+            return file.lastModified();
+        }
+        URLConnection connection = url.openConnection();
+        try {
+            return connection.getLastModified();
+        }
+        finally {
+            if ((connection instanceof HttpURLConnection)) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+            else if (connection.getDoInput()) {
+                try {
+                    connection.getInputStream().close();
+                }
+                catch (IOException ignored) {
+                    // the source is gone; lastModified is 0
+                }
+            }
+        }
+    }
+
+    private static File toFile (URL url) {
+        if ((url == null) || (!"file".equals(url.getProtocol()))) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        }
+        catch (URISyntaxException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Loads a template missing from the cache; by default the template
+     * found by getResource(), built by buildPageTemplate()
+     *
+     * @param path template path
+     * @return the template, or null if there is none
+     * @throws IOException
+     */
+    protected PageTemplate loadPageTemplate (String path) throws IOException {
+        URL resource = getResource(path);
+        return resource == null ? null : buildPageTemplate(resource);
+    }
+
+    /**
+     * @return the templates loaded by this resolver, with their statistics
+     */
+    public TemplateCache getTemplateCache () {
+        return cache;
+    }
+
+    /**
+     * Builds a template found by getResource(); the template
+     * uses this Resolver to find the templates it calls
+     *
+     * @param resource the template source
+     * @return PageTemplate
+     */
+    protected PageTemplate buildPageTemplate (URL resource) {
+        return new PageTemplateImpl.Builder().url(resource).resolver(this).build();
+    }
+
     protected ExpressionScript getExpressionScript (String path)
         throws MalformedURLException, IOException {
         ExpressionScript script = scripts.get(path);
@@ -107,4 +241,21 @@ public abstract class Resolver implements Serializable {
     protected void setDisableJptTemplateCache (boolean disable) {
         disableJptTemplateCache = disable;
     }
+
+    /**
+     * Checks loaded templates for changes at most once per interval, by when their
+     * source was last modified, and loads a changed template again; templates read
+     * from files are also watched. Templates found by the templates this Resolver
+     * loads, e.g. for their macros, are checked as often.
+     *
+     * @param millis milliseconds between checks; 0 to check on every use,
+     *               negative never to check, the default
+     */
+    protected void setCheckInterval (long millis) {
+        checkInterval = millis;
+    }
+
+    public long getCheckInterval () {
+        return checkInterval;
+    }
 }
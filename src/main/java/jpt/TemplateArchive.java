@@ -0,0 +1,602 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import org.jdom.Attribute;
+import org.jdom.CDATA;
+import org.jdom.Comment;
+import org.jdom.Content;
+import org.jdom.DocType;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.EntityRef;
+import org.jdom.Namespace;
+import org.jdom.Parent;
+import org.jdom.ProcessingInstruction;
+import org.jdom.Text;
+import org.jdom.UncheckedJDOMFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Templates parsed ahead of time and stored in one file, so that they can be
+ * built at runtime without parsing XML. The archive holds each template's
+ * document in a compact binary form: a table of the strings in the document,
+ * followed by its nodes, which refer to the strings by index. Expression
+ * scripts are stored as UTF-8 text.
+ * <p/>
+ * Archives are written at build time, e.g. by the exec-maven-plugin:
+ * <pre>
+ * java jpt.TemplateArchive &lt;source directory&gt; &lt;archive file&gt; [suffix...] [-scripts suffix...]
+ * </pre>
+ * The templates and scripts are stored by their path relative to the source
+ * directory, with '/' separators. The archive is memory-mapped when it is
+ * opened; a template is decoded only when it is built.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+public final class TemplateArchive {
+    private static final int MAGIC = 0x4A505441; // "JPTA"
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Entry kinds
+    private static final byte TEMPLATE = 1;
+    private static final byte SCRIPT = 2;
+
+    // Node tags
+    private static final byte ELEMENT = 1;
+    private static final byte TEXT = 2;
+    private static final byte CDATA_SECTION = 3;
+    private static final byte COMMENT = 4;
+    private static final byte PROCESSING_INSTRUCTION = 5;
+    private static final byte ENTITY_REF = 6;
+    private static final byte DOCTYPE = 7;
+
+    private static final UncheckedJDOMFactory factory = new UncheckedJDOMFactory();
+
+    /**
+     * The whole archive, mapped read-only; read through duplicates,
+     * so that templates may be built by any number of threads
+     */
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Maps the archive into memory; the pages are read by the operating
+     * system as they are used, and are shared by every process mapping the file
+     *
+     * @param archive an archive written by write()
+     * @throws IOException if the file can not be read or is not an archive
+     */
+    public TemplateArchive (File archive) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("template archive too large: " + archive);
+            }
+            // the mapping remains valid once the file is closed
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            file.close();
+        }
+        this.entries = readEntries(this.buffer, archive);
+    }
+
+    private static Map<String, Entry> readEntries (ByteBuffer buffer, File archive) throws IOException {
+        try {
+            ByteBuffer header = buffer.duplicate();
+            if ((header.getInt() != MAGIC) || (header.getInt() != VERSION)) {
+                throw new IOException("not a template archive: " + archive);
+            }
+            int count = header.getInt();
+            Map<String, Entry> entries = new LinkedHashMap<String, Entry>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String path = readString(header);
+                entries.put(path, new Entry(header.get(), header.getLong(), header.getInt(), header.getInt()));
+            }
+            return Collections.unmodifiableMap(entries);
+        }
+        catch (RuntimeException e) {
+            // e.g. BufferUnderflowException
+            throw ((IOException) new IOException("corrupt template archive: " + archive).initCause(e));
+        }
+    }
+
+    /**
+     * @return the paths of the templates and scripts in the archive, in the order they were written
+     */
+    public Set<String> getPaths () {
+        return this.entries.keySet();
+    }
+
+    /**
+     * @param path template path
+     * @return true if the archive holds a template of that path
+     */
+    public boolean contains (String path) {
+        Entry entry = this.entries.get(path);
+        return (entry != null) && (entry.kind == TEMPLATE);
+    }
+
+    /**
+     * @param path template path
+     * @return when the template source was last modified; 0 if the template is not in the archive
+     */
+    public long getLastModified (String path) {
+        Entry entry = this.entries.get(path);
+        return entry == null ? 0 : entry.lastModified;
+    }
+
+    /**
+     * A Builder for an archived template, to which other options may be given
+     *
+     * @param path template path
+     * @return a Builder of the template, or null if the template is not in the archive
+     */
+    public PageTemplateImpl.Builder builder (String path) {
+        Entry entry = this.entries.get(path);
+        if ((entry == null) || (entry.kind != TEMPLATE)) {
+            return null;
+        }
+        return new PageTemplateImpl.Builder().document(readDocument(data(entry)), entry.lastModified);
+    }
+
+    /**
+     * @param path script path
+     * @return the script, or null if the archive holds no script of that path
+     * @throws IOException
+     */
+    public ExpressionScript getExpressionScript (String path) throws IOException {
+        Entry entry = this.entries.get(path);
+        if ((entry == null) || (entry.kind != SCRIPT)) {
+            return null;
+        }
+        return new ExpressionScript(new StringReader(UTF_8.decode(data(entry)).toString()));
+    }
+
+    private ByteBuffer data (Entry entry) {
+        ByteBuffer data = this.buffer.duplicate();
+        // through Buffer, as ByteBuffer only overrides these methods from Java 9
+        ((Buffer) data).position(entry.offset);
+        ((Buffer) data).limit(entry.offset + entry.length);
+        return data.slice();
+    }
+
+    /**
+     * Writes the templates found under a directory to an archive
+     *
+     * @param sourceDirectory the directory searched for templates
+     * @param archive         the archive file, replaced if it exists
+     * @param suffixes        the file name endings of templates; none for every file
+     * @return the number of templates written
+     * @throws IOException if a template can not be read or parsed
+     */
+    public static int write (File sourceDirectory, File archive, String... suffixes) throws IOException {
+        return write(sourceDirectory, archive, Arrays.asList(suffixes), Collections.<String>emptyList());
+    }
+
+    /**
+     * Writes the templates and expression scripts found under a directory to an archive
+     *
+     * @param sourceDirectory  the directory searched for templates and scripts
+     * @param archive          the archive file, replaced if it exists
+     * @param templateSuffixes the file name endings of templates; none for every file not a script
+     * @param scriptSuffixes   the file name endings of scripts; none for no scripts
+     * @return the number of templates and scripts written
+     * @throws IOException if a template can not be read or parsed
+     */
+    public static int write (File sourceDirectory, File archive,
+                             List<String> templateSuffixes, List<String> scriptSuffixes) throws IOException {
+        if (!sourceDirectory.isDirectory()) {
+            throw new IOException("not a directory: " + sourceDirectory);
+        }
+        List<String> paths = new ArrayList<String>();
+        findFiles(sourceDirectory, "", paths);
+        Collections.sort(paths);
+
+        List<String> archived = new ArrayList<String>(paths.size());
+        List<byte[]> contents = new ArrayList<byte[]>(paths.size());
+        List<Byte> kinds = new ArrayList<Byte>(paths.size());
+        List<Long> lastModified = new ArrayList<Long>(paths.size());
+        for (String path : paths) {
+            File file = new File(sourceDirectory, path);
+            if ((!scriptSuffixes.isEmpty()) && (hasSuffix(path, scriptSuffixes))) {
+                contents.add(readFile(file));
+                kinds.add(SCRIPT);
+            }
+            else if ((templateSuffixes.isEmpty()) || (hasSuffix(path, templateSuffixes))) {
+                InputStream inputStream = new FileInputStream(file);
+                Document document;
+                try {
+                    document = PageTemplateImpl.parse(inputStream);
+                }
+                catch (IllegalArgumentException e) {
+                    throw ((IOException) new IOException("failure to parse template: " + file).initCause(e.getCause()));
+                }
+                finally {
+                    inputStream.close();
+                }
+                contents.add(writeDocument(document));
+                kinds.add(TEMPLATE);
+            }
+            else {
+                continue;
+            }
+            archived.add(path);
+            lastModified.add(file.lastModified());
+        }
+
+        int headerLength = 12;
+        for (String path : archived) {
+            headerLength += 4 + path.getBytes(UTF_8).length + 17;
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream(headerLength);
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(archived.size());
+        int offset = headerLength;
+        for (int i = 0; i < archived.size(); i++) {
+            writeString(out, archived.get(i));
+            out.writeByte(kinds.get(i));
+            out.writeLong(lastModified.get(i));
+            out.writeInt(offset);
+            out.writeInt(contents.get(i).length);
+            offset += contents.get(i).length;
+        }
+        out.flush();
+
+        OutputStream output = new FileOutputStream(archive);
+        try {
+            header.writeTo(output);
+            for (byte[] content : contents) {
+                output.write(content);
+            }
+        }
+        finally {
+            output.close();
+        }
+        return archived.size();
+    }
+
+    private static void findFiles (File directory, String prefix, List<String> paths)
+        throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("can't list directory: " + directory);
+        }
+        for (File file : files) {
+            if (file.isHidden()) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                findFiles(file, prefix + file.getName() + "/", paths);
+            }
+            else {
+                paths.add(prefix + file.getName());
+            }
+        }
+    }
+
+    private static boolean hasSuffix (String name, List<String> suffixes) {
+        for (String suffix : suffixes) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] readFile (File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Writes an archive; see the class comment
+     *
+     * @param args source directory, archive file and, optionally, template file suffixes,
+     *             then -scripts and script file suffixes
+     * @throws IOException
+     */
+    public static void main (String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: java " + TemplateArchive.class.getName() +
+                                   " <source directory> <archive file> [suffix...] [-scripts suffix...]");
+            System.exit(2);
+        }
+        List<String> suffixes = new ArrayList<String>(Arrays.asList(args).subList(2, args.length));
+        List<String> scriptSuffixes = new ArrayList<String>();
+        int scripts = suffixes.indexOf("-scripts");
+        if (scripts != -1) {
+            scriptSuffixes.addAll(suffixes.subList(scripts + 1, suffixes.size()));
+            suffixes = suffixes.subList(0, scripts);
+        }
+        int count = write(new File(args[0]), new File(args[1]), suffixes, scriptSuffixes);
+        System.out.println("archived " + count + " templates and scripts in " + args[1]);
+    }
+
+    // Encoding
+
+    /**
+     * The strings of a document, numbered in the order they are first seen
+     */
+    private static final class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private final List<String> strings = new ArrayList<String>();
+
+        int indexOf (String string) {
+            if (string == null) {
+                return -1;
+            }
+            Integer index = this.indexes.get(string);
+            if (index == null) {
+                index = this.strings.size();
+                this.indexes.put(string, index);
+                this.strings.add(string);
+            }
+            return index;
+        }
+    }
+
+    private static byte[] writeDocument (Document document) throws IOException {
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(nodes);
+        List content = document.getContent();
+        out.writeInt(content.size());
+        for (Object node : content) {
+            writeNode(out, node, strings);
+        }
+        out.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(nodes.size() + 1024);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(strings.strings.size());
+        for (String string : strings.strings) {
+            writeString(data, string);
+        }
+        nodes.writeTo(data);
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeNode (DataOutputStream out, Object node, StringTable strings) throws IOException {
+        if ((node instanceof Element)) {
+            Element element = (Element) node;
+            out.writeByte(ELEMENT);
+            out.writeInt(strings.indexOf(element.getName()));
+            out.writeInt(strings.indexOf(element.getNamespacePrefix()));
+            out.writeInt(strings.indexOf(element.getNamespaceURI()));
+            List namespaces = element.getAdditionalNamespaces();
+            out.writeInt(namespaces.size());
+            for (Object namespace : namespaces) {
+                out.writeInt(strings.indexOf(((Namespace) namespace).getPrefix()));
+                out.writeInt(strings.indexOf(((Namespace) namespace).getURI()));
+            }
+            List attributes = element.getAttributes();
+            out.writeInt(attributes.size());
+            for (Object a : attributes) {
+                Attribute attribute = (Attribute) a;
+                out.writeInt(strings.indexOf(attribute.getName()));
+                out.writeInt(strings.indexOf(attribute.getNamespacePrefix()));
+                out.writeInt(strings.indexOf(attribute.getNamespaceURI()));
+                out.writeInt(strings.indexOf(attribute.getValue()));
+                out.writeByte(attribute.getAttributeType());
+            }
+            List content = element.getContent();
+            out.writeInt(content.size());
+            for (Object child : content) {
+                writeNode(out, child, strings);
+            }
+        }
+        else if ((node instanceof CDATA)) {
+            out.writeByte(CDATA_SECTION);
+            out.writeInt(strings.indexOf(((CDATA) node).getText()));
+        }
+        else if ((node instanceof Text)) {
+            out.writeByte(TEXT);
+            out.writeInt(strings.indexOf(((Text) node).getText()));
+        }
+        else if ((node instanceof Comment)) {
+            out.writeByte(COMMENT);
+            out.writeInt(strings.indexOf(((Comment) node).getText()));
+        }
+        else if ((node instanceof ProcessingInstruction)) {
+            ProcessingInstruction processingInstruction = (ProcessingInstruction) node;
+            out.writeByte(PROCESSING_INSTRUCTION);
+            out.writeInt(strings.indexOf(processingInstruction.getTarget()));
+            out.writeInt(strings.indexOf(processingInstruction.getData()));
+        }
+        else if ((node instanceof EntityRef)) {
+            EntityRef entityRef = (EntityRef) node;
+            out.writeByte(ENTITY_REF);
+            out.writeInt(strings.indexOf(entityRef.getName()));
+            out.writeInt(strings.indexOf(entityRef.getPublicID()));
+            out.writeInt(strings.indexOf(entityRef.getSystemID()));
+        }
+        else if ((node instanceof DocType)) {
+            DocType docType = (DocType) node;
+            out.writeByte(DOCTYPE);
+            out.writeInt(strings.indexOf(docType.getElementName()));
+            out.writeInt(strings.indexOf(docType.getPublicID()));
+            out.writeInt(strings.indexOf(docType.getSystemID()));
+            out.writeInt(strings.indexOf(docType.getInternalSubset()));
+        }
+        else {
+            throw new IOException("can't archive " + node);
+        }
+    }
+
+    /**
+     * An int length followed by UTF-8 bytes; unlike writeUTF(), not limited to 64K bytes
+     */
+    private static void writeString (DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Decoding
+
+    private static String readString (ByteBuffer data) {
+        int length = data.getInt();
+        String string;
+        if (data.hasArray()) {
+            string = new String(data.array(), data.arrayOffset() + data.position(), length, UTF_8);
+            ((Buffer) data).position(data.position() + length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            data.get(bytes);
+            string = new String(bytes, UTF_8);
+        }
+        return string;
+    }
+
+    private static Document readDocument (ByteBuffer data) {
+        String[] strings = new String[data.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(data);
+        }
+        Document document = new Document();
+        int count = data.getInt();
+        for (int i = 0; i < count; i++) {
+            readNode(data, strings, document);
+        }
+        return document;
+    }
+
+    private static String string (ByteBuffer data, String[] strings) {
+        int index = data.getInt();
+        return index == -1 ? null : strings[index];
+    }
+
+    private static void readNode (ByteBuffer data, String[] strings, Parent parent) {
+        Content node;
+        byte tag = data.get();
+        switch (tag) {
+            case ELEMENT:
+                String name = string(data, strings);
+                String prefix = string(data, strings);
+                Element element = factory.element(name, Namespace.getNamespace(prefix, string(data, strings)));
+                int namespaces = data.getInt();
+                for (int i = 0; i < namespaces; i++) {
+                    prefix = string(data, strings);
+                    factory.addNamespaceDeclaration(element, Namespace.getNamespace(prefix, string(data, strings)));
+                }
+                int attributes = data.getInt();
+                for (int i = 0; i < attributes; i++) {
+                    name = string(data, strings);
+                    prefix = string(data, strings);
+                    Namespace namespace = Namespace.getNamespace(prefix, string(data, strings));
+                    String value = string(data, strings);
+                    factory.setAttribute(element, factory.attribute(name, value, data.get(), namespace));
+                }
+                int children = data.getInt();
+                for (int i = 0; i < children; i++) {
+                    readNode(data, strings, element);
+                }
+                node = element;
+                break;
+            case TEXT:
+                node = factory.text(string(data, strings));
+                break;
+            case CDATA_SECTION:
+                node = factory.cdata(string(data, strings));
+                break;
+            case COMMENT:
+                node = factory.comment(string(data, strings));
+                break;
+            case PROCESSING_INSTRUCTION:
+                String target = string(data, strings);
+                node = factory.processingInstruction(target, string(data, strings));
+                break;
+            case ENTITY_REF:
+                name = string(data, strings);
+                String publicId = string(data, strings);
+                node = factory.entityRef(name, publicId, string(data, strings));
+                break;
+            case DOCTYPE:
+                name = string(data, strings);
+                publicId = string(data, strings);
+                DocType docType = factory.docType(name, publicId, string(data, strings));
+                docType.setInternalSubset(string(data, strings));
+                node = docType;
+                break;
+            default:
+                throw new IllegalArgumentException("corrupt template archive: node tag " + tag);
+        }
+        factory.addContent(parent, node);
+    }
+
+    /**
+     * Where a template's document, or a script, is in the archive
+     */
+    private static final class Entry {
+        final byte kind;
+        final long lastModified;
+        final int offset;
+        final int length;
+
+        Entry (byte kind, long lastModified, int offset, int length) {
+            this.kind = kind;
+            this.lastModified = lastModified;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The templates loaded by a Resolver, by path. The cache is bounded by
+ * the number of templates and by their weight, the number of elements
+ * in their documents; the least recently used templates are evicted first.
+ * A template is loaded by one thread at a time: other threads asking
+ * for the same path wait for it rather than parse it again.
+ * A Resolver may check its cached templates for changes, at most once
+ * per interval for each template; see claimCheck().
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+public final class TemplateCache implements Serializable {
+    private static final long serialVersionUID = 4658126417359087523L;
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+    /**
+     * Loads a template missing from the cache
+     */
+    public interface Loader {
+        /**
+         * @param path template path
+         * @return the template, or null if there is none; null is not cached
+         * @throws PageTemplateException
+         * @throws IOException
+         */
+        PageTemplate load (String path) throws PageTemplateException, IOException;
+    }
+
+    private final int maximumSize;
+    private final long maximumWeight;
+
+    /**
+     * In access order; guarded by itself
+     */
+    private final transient LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private transient long weight = 0;
+    /**
+     * The loads in progress, by path
+     */
+    private final transient ConcurrentMap<String, FutureTask<PageTemplate>> loading =
+        new ConcurrentHashMap<String, FutureTask<PageTemplate>>();
+
+    private final transient AtomicLong hits = new AtomicLong();
+    private final transient AtomicLong misses = new AtomicLong();
+    private final transient AtomicLong loads = new AtomicLong();
+    private final transient AtomicLong loadFailures = new AtomicLong();
+    private final transient AtomicLong loadTime = new AtomicLong();
+    private final transient AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A cache of at most DEFAULT_MAXIMUM_SIZE templates
+     */
+    public TemplateCache () {
+        this(DEFAULT_MAXIMUM_SIZE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maximumSize   the number of templates kept
+     * @param maximumWeight the total number of elements in the templates kept
+     */
+    public TemplateCache (int maximumSize, long maximumWeight) {
+        if ((maximumSize < 0) || (maximumWeight < 0)) {
+            throw new IllegalArgumentException("cache bounds must not be negative");
+        }
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * Cache statistics are not serialized; nor are the templates
+     */
+    private Object readResolve () {
+        return new TemplateCache(this.maximumSize, this.maximumWeight);
+    }
+
+    /**
+     * @param path template path
+     * @return the cached template, or null
+     */
+    public PageTemplate getIfPresent (String path) {
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(path);
+        }
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return entry.template;
+    }
+
+    /**
+     * Returns the cached template, loading it if it is missing.
+     * Only one thread loads a path at a time.
+     *
+     * @param path   template path
+     * @param loader loads the template
+     * @return the template, or null if the loader found none
+     * @throws PageTemplateException if the loader failed
+     * @throws IOException           if the loader failed
+     */
+    public PageTemplate get (final String path, final Loader loader)
+        throws PageTemplateException, IOException {
+        PageTemplate template = getIfPresent(path);
+        if (template != null) {
+            return template;
+        }
+        FutureTask<PageTemplate> load = new FutureTask<PageTemplate>(new Callable<PageTemplate>() {
+            public PageTemplate call () throws Exception {
+                return load(path, loader);
+            }
+        });
+        FutureTask<PageTemplate> inProgress = this.loading.putIfAbsent(path, load);
+        if (inProgress == null) {
+            try {
+                load.run();
+            }
+            finally {
+                this.loading.remove(path, load);
+            }
+        }
+        else {
+            load = inProgress;
+        }
+        try {
+            return load.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ((IOException) new IOException("interrupted while loading template: " + path).initCause(e));
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if ((cause instanceof PageTemplateException)) {
+                throw (PageTemplateException) cause;
+            }
+            if ((cause instanceof IOException)) {
+                throw (IOException) cause;
+            }
+            if ((cause instanceof RuntimeException)) {
+                throw (RuntimeException) cause;
+            }
+            if ((cause instanceof Error)) {
+                throw (Error) cause;
+            }
+            throw new PageTemplateException(cause);
+        }
+    }
+
+    private PageTemplate load (String path, Loader loader)
+        throws PageTemplateException, IOException {
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(path);
+        }
+        if (entry != null) {
+            // loaded while this thread was looking
+            return entry.template;
+        }
+        long start = System.nanoTime();
+        boolean loaded = false;
+        try {
+            PageTemplate template = loader.load(path);
+            loaded = true;
+            if (template != null) {
+                put(path, template);
+            }
+            return template;
+        }
+        finally {
+            this.loadTime.addAndGet(System.nanoTime() - start);
+            if (loaded) {
+                this.loads.incrementAndGet();
+            }
+            else {
+                this.loadFailures.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param path template path
+     * @return the cached template, or null; not counted as a hit or a miss
+     */
+    PageTemplate peek (String path) {
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(path);
+            return entry == null ? null : entry.template;
+        }
+    }
+
+    /**
+     * @param path     template path
+     * @param template the template to cache
+     */
+    public void put (String path, PageTemplate template) {
+        Entry entry = new Entry(template, weigh(template));
+        synchronized (this.entries) {
+            Entry replaced = this.entries.put(path, entry);
+            if (replaced != null) {
+                this.weight -= replaced.weight;
+            }
+            this.weight += entry.weight;
+            evict();
+        }
+    }
+
+    /**
+     * Evicts the least recently used templates until the cache is within its bounds
+     */
+    private void evict () {
+        Iterator<Entry> eldest = this.entries.values().iterator();
+        while ((eldest.hasNext())
+            && ((this.entries.size() > this.maximumSize) || (this.weight > this.maximumWeight))) {
+            this.weight -= eldest.next().weight;
+            eldest.remove();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    private static int weigh (PageTemplate template) {
+        if ((template instanceof PageTemplateImpl)) {
+            return ((PageTemplateImpl) template).getElementCount();
+        }
+        return 1;
+    }
+
+    /**
+     * Lets one thread check a cached template for changes, at most once per interval;
+     * other threads carry on with the cached template in the meantime
+     *
+     * @param path     template path
+     * @param interval milliseconds between checks
+     * @return true if the caller should check the template; false if it is not cached
+     *         or was checked less than interval ago
+     */
+    public boolean claimCheck (String path, long interval) {
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(path);
+        }
+        if (entry == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long checked = entry.checked.get();
+        return (now - checked >= TimeUnit.MILLISECONDS.toNanos(interval))
+            && (entry.checked.compareAndSet(checked, now));
+    }
+
+    /**
+     * @param path template path to remove
+     */
+    public void invalidate (String path) {
+        synchronized (this.entries) {
+            Entry entry = this.entries.remove(path);
+            if (entry != null) {
+                this.weight -= entry.weight;
+            }
+        }
+    }
+
+    /**
+     * Removes the template only if it is still the one cached, so that
+     * a change seen late does not remove a template loaded since
+     *
+     * @param path     template path to remove
+     * @param template the template found to be out of date
+     * @return true if the template was removed
+     */
+    public boolean invalidate (String path, PageTemplate template) {
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(path);
+            if ((entry == null) || (entry.template != template)) {
+                return false;
+            }
+            this.entries.remove(path);
+            this.weight -= entry.weight;
+            return true;
+        }
+    }
+
+    public void invalidateAll () {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.weight = 0;
+        }
+    }
+
+    /**
+     * @return the number of templates cached
+     */
+    public int size () {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return the number of elements in the templates cached
+     */
+    public long weight () {
+        synchronized (this.entries) {
+            return this.weight;
+        }
+    }
+
+    public int getMaximumSize () {
+        return this.maximumSize;
+    }
+
+    public long getMaximumWeight () {
+        return this.maximumWeight;
+    }
+
+    /**
+     * @return the number of lookups which found a cached template
+     */
+    public long getHitCount () {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of lookups which did not find a cached template
+     */
+    public long getMissCount () {
+        return this.misses.get();
+    }
+
+    /**
+     * @return hits / (hits + misses); 1 if there were no lookups
+     */
+    public double getHitRate () {
+        long hits = this.hits.get();
+        long lookups = hits + this.misses.get();
+        return lookups == 0 ? 1.0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return the number of loads completed, including those which found no template
+     */
+    public long getLoadCount () {
+        return this.loads.get();
+    }
+
+    /**
+     * @return the number of loads which threw an exception
+     */
+    public long getLoadFailureCount () {
+        return this.loadFailures.get();
+    }
+
+    /**
+     * @return the time spent loading, in nanoseconds
+     */
+    public long getTotalLoadTime () {
+        return this.loadTime.get();
+    }
+
+    /**
+     * @return the number of templates evicted to keep within the bounds
+     */
+    public long getEvictionCount () {
+        return this.evictions.get();
+    }
+
+    @Override
+    public String toString () {
+        return "TemplateCache{" +
+            "size=" + size() +
+            ", weight=" + weight() +
+            ", hits=" + getHitCount() +
+            ", misses=" + getMissCount() +
+            ", loads=" + getLoadCount() +
+            ", loadFailures=" + getLoadFailureCount() +
+            ", totalLoadTime=" + getTotalLoadTime() +
+            ", evictions=" + getEvictionCount() +
+            '}';
+    }
+
+    private static final class Entry {
+        final PageTemplate template;
+        final int weight;
+        /**
+         * When the template was loaded or last checked for changes, in System.nanoTime()
+         */
+        final AtomicLong checked = new AtomicLong(System.nanoTime());
+
+        Entry (PageTemplate template, int weight) {
+            this.template = template;
+            this.weight = weight;
+        }
+    }
+}
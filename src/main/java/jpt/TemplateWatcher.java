@@ -0,0 +1,246 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches the directories of templates read from files, and removes a
+ * template from the caches holding it as soon as its file changes.
+ * One daemon thread serves every Resolver; caches are held weakly, and a
+ * file is forgotten once the caches watching it have all been collected.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+final class TemplateWatcher implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateWatcher.class);
+
+    private static TemplateWatcher instance;
+    private static boolean unavailable = false;
+
+    private final WatchService service;
+    private final Set<Path> directories =
+        Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    /**
+     * The caches holding templates read from a file, with the template paths, by file;
+     * guarded by itself
+     */
+    private final Map<Path, Map<TemplateCache, Set<String>>> watched =
+        new HashMap<Path, Map<TemplateCache, Set<String>>>();
+    /**
+     * The number of files watched at which files without caches are next removed;
+     * guarded by watched
+     */
+    private int sweepSize = MINIMUM_SWEEP_SIZE;
+    private static final int MINIMUM_SWEEP_SIZE = 64;
+
+    private TemplateWatcher (WatchService service) {
+        this.service = service;
+    }
+
+    /**
+     * @return the watcher, started on first use; null if the file system can not be watched
+     */
+    static synchronized TemplateWatcher getInstance () {
+        if ((instance == null) && (!unavailable)) {
+            try {
+                instance = new TemplateWatcher(FileSystems.getDefault().newWatchService());
+                Thread thread = new Thread(instance, "jpt-template-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            catch (IOException e) {
+                LOG.warn("Unable to watch template files; changes are found by checking them", e);
+                unavailable = true;
+            }
+            catch (UnsupportedOperationException e) {
+                LOG.warn("Unable to watch template files; changes are found by checking them", e);
+                unavailable = true;
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Removes the path from the cache when the file changes; once only,
+     * since the template loaded again is watched again
+     *
+     * @param file  template source
+     * @param cache the cache holding the template
+     * @param path  template path in the cache
+     */
+    void watch (File file, TemplateCache cache, String path) {
+        Path source = file.toPath().toAbsolutePath().normalize();
+        Path directory = source.getParent();
+        if (directory == null) {
+            return;
+        }
+        if (this.directories.add(directory)) {
+            try {
+                directory.register(this.service, StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            catch (IOException e) {
+                this.directories.remove(directory);
+                LOG.debug("Unable to watch " + directory, e);
+                return;
+            }
+        }
+        synchronized (this.watched) {
+            Map<TemplateCache, Set<String>> caches = this.watched.get(source);
+            if (caches == null) {
+                if (this.watched.size() >= this.sweepSize) {
+                    sweep();
+                    this.sweepSize = Math.max(MINIMUM_SWEEP_SIZE, this.watched.size() * 2);
+                }
+                caches = new WeakHashMap<TemplateCache, Set<String>>();
+                this.watched.put(source, caches);
+            }
+            Set<String> paths = caches.get(cache);
+            if (paths == null) {
+                paths = new HashSet<String>();
+                caches.put(cache, paths);
+            }
+            paths.add(path);
+        }
+    }
+
+    /**
+     * Removes the files whose caches have all been collected; the caller holds watched
+     */
+    private void sweep () {
+        Iterator<Map<TemplateCache, Set<String>>> caches = this.watched.values().iterator();
+        while (caches.hasNext()) {
+            if (caches.next().isEmpty()) {
+                caches.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of files watched for caches which have not been collected
+     */
+    int size () {
+        synchronized (this.watched) {
+            sweep();
+            return this.watched.size();
+        }
+    }
+
+    public void run () {
+        while (true) {
+            WatchKey key;
+            try {
+                key = this.service.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            catch (ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events were lost; any file in the directory may have changed
+                    changed(filesIn(directory));
+                }
+                else {
+                    changed(Collections.singletonList(directory.resolve((Path) event.context())));
+                }
+            }
+            if (!key.reset()) {
+                this.directories.remove(directory);
+            }
+        }
+    }
+
+    private List<Path> filesIn (Path directory) {
+        List<Path> files = new ArrayList<Path>();
+        synchronized (this.watched) {
+            for (Path file : this.watched.keySet()) {
+                if (directory.equals(file.getParent())) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Removes the templates read from the files from their caches, unless
+     * they were loaded after the change; several events may follow one
+     * change, and the template may have been loaded again in the meantime
+     *
+     * @param files changed, created or deleted
+     */
+    void changed (List<Path> files) {
+        for (Path file : files) {
+            Map<TemplateCache, Set<String>> caches;
+            synchronized (this.watched) {
+                caches = this.watched.remove(file);
+            }
+            if (caches == null) {
+                continue;
+            }
+            long lastModified = file.toFile().lastModified();
+            for (Map.Entry<TemplateCache, Set<String>> entry : caches.entrySet()) {
+                TemplateCache cache = entry.getKey();
+                for (String path : entry.getValue()) {
+                    PageTemplate template = cache.peek(path);
+                    if (template == null) {
+                        // not cached; loading it watches the file again
+                        continue;
+                    }
+                    if (((template instanceof PageTemplateImpl))
+                        && (((PageTemplateImpl) template).getLastModified() == lastModified)) {
+                        // already loaded from the file as it is now
+                        watch(file.toFile(), cache, path);
+                    }
+                    else {
+                        cache.invalidate(path, template);
+                    }
+                }
+            }
+        }
+    }
+}
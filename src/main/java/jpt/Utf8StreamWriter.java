@@ -0,0 +1,858 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An XMLStreamWriter which escapes and encodes straight into a byte buffer,
+ * writing UTF-8 to the OutputStream in large chunks. The output, and the
+ * errors reported for malformed output, are those of the Woodstox writer
+ * which was used before; the markup which does not change from one rendering
+ * to the next is encoded once, when the template is compiled, and copied
+ * into the buffer as it is.
+ * <p/>
+ * Namespaces are not repaired: prefixes and namespace declarations
+ * are written as given.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+final class Utf8StreamWriter implements XMLStreamWriter {
+    private static final int BUFFER_SIZE = 16384;
+    private static final int MINIMUM_BUFFER_SIZE = 64;
+    /**
+     * One buffer per thread, reused by the next rendering once a writer is closed
+     */
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+    private static final byte[] EMPTY = new byte[0];
+
+    // Document states
+    private static final int PROLOG = 0;
+    private static final int TREE = 1;
+    private static final int EPILOG = 2;
+
+    private final OutputStream output;
+    /**
+     * The output is flushed each time the buffer is written to it
+     */
+    private final boolean streaming;
+    private byte[] buffer;
+    private int position = 0;
+
+    private int state = PROLOG;
+    private boolean anyOutput = false;
+    private boolean dtdWritten = false;
+    private boolean ended = false;
+    /**
+     * A start tag is open; its attributes may still be written
+     */
+    private boolean startTagOpen = false;
+    /**
+     * The open start tag is an empty element, closed when anything else is written
+     */
+    private boolean emptyElement = false;
+    /**
+     * The end tags of the open elements: either the qualified name, or the encoded end tag
+     */
+    private Object[] openElements = new Object[32];
+    private int depth = 0;
+
+    private Map<String, String> prefixes = null;
+    private NamespaceContext namespaceContext = null;
+
+    Utf8StreamWriter (OutputStream output) {
+        this(output, 0);
+    }
+
+    /**
+     * @param output     the stream written to
+     * @param flushEvery if positive, the output is flushed whenever about this many
+     *                   bytes have been written, rather than when the buffer is full
+     */
+    Utf8StreamWriter (OutputStream output, int flushEvery) {
+        this.output = output;
+        this.streaming = flushEvery > 0;
+        int size = this.streaming ? Math.max(flushEvery, MINIMUM_BUFFER_SIZE) : BUFFER_SIZE;
+        byte[] buffer = buffers.get();
+        if ((buffer != null) && (buffer.length == size)) {
+            buffers.set(null);
+        }
+        else {
+            buffer = new byte[size];
+        }
+        this.buffer = buffer;
+    }
+
+    // Encoding once, for markup known when the template is compiled
+
+    /**
+     * @param text character data
+     * @return the escaped text, encoded; null if it can not be written
+     */
+    static byte[] encodeCharacters (String text) {
+        return encode(text, false);
+    }
+
+    /**
+     * @param qualifiedName attribute name
+     * @param value         attribute value
+     * @return ' name="value"', escaped and encoded; null if it can not be written
+     */
+    static byte[] encodeAttribute (String qualifiedName, String value) {
+        return encode(" " + qualifiedName + "=\"", value, "\"");
+    }
+
+    /**
+     * @param prefix namespace prefix, may be empty
+     * @param uri    namespace URI
+     * @return the namespace declaration, escaped and encoded; null if it can not be written
+     */
+    static byte[] encodeNamespace (String prefix, String uri) {
+        if ((prefix == null) || (prefix.length() == 0) || (prefix.equals("xmlns"))) {
+            return encode(" xmlns=\"", uri, "\"");
+        }
+        return encode(" xmlns:" + prefix + "=\"", uri, "\"");
+    }
+
+    /**
+     * @param prefix    element prefix, may be empty
+     * @param localName element name
+     * @return the start of the start tag: '&lt;prefix:name'
+     */
+    static byte[] encodeStartTag (String prefix, String localName) {
+        return encode("<" + qualify(prefix, localName), null, "");
+    }
+
+    /**
+     * @param prefix    element prefix, may be empty
+     * @param localName element name
+     * @return the end tag: '&lt;/prefix:name>'
+     */
+    static byte[] encodeEndTag (String prefix, String localName) {
+        return encode("</" + qualify(prefix, localName), null, ">");
+    }
+
+    private static byte[] encode (String raw, String attributeValue, String end) {
+        Utf8StreamWriter encoder = new Utf8StreamWriter(null, new byte[raw.length() * 3 + 64]);
+        try {
+            encoder.raw(raw);
+            if (attributeValue != null) {
+                encoder.escape(attributeValue, true);
+            }
+            encoder.raw(end);
+        }
+        catch (XMLStreamException e) {
+            return null;
+        }
+        return encoder.toByteArray();
+    }
+
+    private static byte[] encode (String text, boolean attribute) {
+        if (text.length() == 0) {
+            return EMPTY;
+        }
+        Utf8StreamWriter encoder = new Utf8StreamWriter(null, new byte[text.length() * 3 + 16]);
+        try {
+            encoder.escape(text, attribute);
+        }
+        catch (XMLStreamException e) {
+            return null;
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Static content is encoded by writing it, with the regular methods,
+     * to this writer and then calling toContent().
+     *
+     * @return a writer encoding into memory, positioned inside an element
+     */
+    static Utf8StreamWriter contentEncoder () {
+        Utf8StreamWriter encoder = new Utf8StreamWriter(null, new byte[256]);
+        encoder.state = TREE;
+        encoder.openElements[encoder.depth++] = "";
+        return encoder;
+    }
+
+    /**
+     * @return the content written to a contentEncoder(); null if
+     *         it did not end where it started
+     */
+    byte[] toContent () {
+        if ((this.depth != 1) || (this.startTagOpen)) {
+            return null;
+        }
+        return toByteArray();
+    }
+
+    /**
+     * An encoder writing into a buffer which grows as needed
+     */
+    private Utf8StreamWriter (OutputStream output, byte[] buffer) {
+        this.output = output;
+        this.streaming = false;
+        this.buffer = buffer;
+    }
+
+    private byte[] toByteArray () {
+        byte[] bytes = new byte[this.position];
+        System.arraycopy(this.buffer, 0, bytes, 0, this.position);
+        return bytes;
+    }
+
+    private static String qualify (String prefix, String localName) {
+        if ((prefix == null) || (prefix.length() == 0)) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
+    // Writing precompiled markup
+
+    /**
+     * Writes a start tag encoded by encodeStartTag()
+     *
+     * @param startTag '&lt;prefix:name'
+     * @param endTag   '&lt;/prefix:name>', written by writeEndElement()
+     * @throws XMLStreamException if the document already has a root element
+     */
+    void writeStartElement (byte[] startTag, byte[] endTag) throws XMLStreamException {
+        startElement(endTag);
+        bytes(startTag);
+        this.startTagOpen = true;
+    }
+
+    /**
+     * Writes attributes or namespace declarations encoded by
+     * encodeAttribute() or encodeNamespace()
+     *
+     * @param encoded the encoded markup
+     * @throws XMLStreamException if there is no open start tag
+     */
+    void writeAttributes (byte[] encoded) throws XMLStreamException {
+        if (!this.startTagOpen) {
+            throw new XMLStreamException("Trying to write an attribute when there is no open start element.");
+        }
+        bytes(encoded);
+    }
+
+    /**
+     * Writes character data encoded by encodeCharacters()
+     *
+     * @param text    the character data, reported if it may not be written here
+     * @param encoded the escaped and encoded text
+     * @throws XMLStreamException if non white space is written outside the root element
+     */
+    void writeCharacters (String text, byte[] encoded) throws XMLStreamException {
+        if (this.state != TREE) {
+            checkWhiteSpace(text);
+        }
+        content();
+        bytes(encoded);
+    }
+
+    /**
+     * Writes content encoded by a contentEncoder()
+     *
+     * @param encoded the encoded content
+     * @return false, having written nothing, if no element is open
+     * @throws XMLStreamException if the output can not be written
+     */
+    boolean writeContent (byte[] encoded) throws XMLStreamException {
+        if (!canWriteContent()) {
+            return false;
+        }
+        content();
+        bytes(encoded);
+        return true;
+    }
+
+    /**
+     * @return true if the writer is inside an element, where writeContent() may write
+     */
+    boolean canWriteContent () {
+        return (this.state == TREE) && (this.depth > 0);
+    }
+
+    /**
+     * Writes text unescaped, e.g. structured content
+     *
+     * @param text markup
+     * @throws XMLStreamException if the text can not be encoded
+     */
+    public void writeRaw (String text) throws XMLStreamException {
+        content();
+        raw(text);
+    }
+
+    // XMLStreamWriter
+
+    public void writeStartElement (String localName) throws XMLStreamException {
+        writeStartElement(null, localName, null);
+    }
+
+    public void writeStartElement (String namespaceURI, String localName) throws XMLStreamException {
+        writeStartElement(getPrefix(namespaceURI), localName, namespaceURI);
+    }
+
+    public void writeStartElement (String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        String qualifiedName = qualify(prefix, localName);
+        startElement(qualifiedName);
+        bytes('<');
+        raw(qualifiedName);
+        this.startTagOpen = true;
+    }
+
+    public void writeEmptyElement (String namespaceURI, String localName) throws XMLStreamException {
+        writeStartElement(namespaceURI, localName);
+        closeEmptyElement();
+    }
+
+    public void writeEmptyElement (String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        writeStartElement(prefix, localName, namespaceURI);
+        closeEmptyElement();
+    }
+
+    public void writeEmptyElement (String localName) throws XMLStreamException {
+        writeStartElement(localName);
+        closeEmptyElement();
+    }
+
+    private void closeEmptyElement () {
+        this.depth--;
+        this.openElements[this.depth] = null;
+        if (this.depth == 0) {
+            this.state = EPILOG;
+        }
+        this.emptyElement = true;
+    }
+
+    public void writeEndElement () throws XMLStreamException {
+        if (this.emptyElement) {
+            closeStartTag();
+        }
+        if (this.depth == 0) {
+            throw new XMLStreamException("No open start element, when trying to write end element");
+        }
+        this.depth--;
+        Object endTag = this.openElements[this.depth];
+        this.openElements[this.depth] = null;
+        if (this.startTagOpen) {
+            this.startTagOpen = false;
+            bytes('/');
+            bytes('>');
+        }
+        else if ((endTag instanceof byte[])) {
+            bytes((byte[]) endTag);
+        }
+        else {
+            bytes('<');
+            bytes('/');
+            raw((String) endTag);
+            bytes('>');
+        }
+        if (this.depth == 0) {
+            this.state = EPILOG;
+        }
+    }
+
+    public void writeEndDocument () throws XMLStreamException {
+        if (this.state == PROLOG) {
+            throw new XMLStreamException("Trying to write END_DOCUMENT when document has no root (ie. trying to output empty document).");
+        }
+        if (this.emptyElement) {
+            closeStartTag();
+        }
+        content();
+        while (this.depth > 0) {
+            writeEndElement();
+        }
+        this.ended = true;
+    }
+
+    public void close () throws XMLStreamException {
+        if (!this.ended) {
+            writeEndDocument();
+        }
+        flush();
+        // the buffer may be reused by the next writer on this thread
+        buffers.set(this.buffer);
+        this.buffer = null;
+    }
+
+    public void flush () throws XMLStreamException {
+        if (this.output == null) {
+            // encoding into memory
+            return;
+        }
+        flushBuffer();
+        try {
+            this.output.flush();
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    public void writeAttribute (String localName, String value) throws XMLStreamException {
+        writeAttribute(null, null, localName, value);
+    }
+
+    public void writeAttribute (String prefix, String namespaceURI, String localName, String value) throws XMLStreamException {
+        if (!this.startTagOpen) {
+            throw new XMLStreamException("Trying to write an attribute when there is no open start element.");
+        }
+        bytes(' ');
+        raw(qualify(prefix, localName));
+        bytes('=');
+        bytes('"');
+        escape(value, true);
+        bytes('"');
+    }
+
+    public void writeAttribute (String namespaceURI, String localName, String value) throws XMLStreamException {
+        writeAttribute(getPrefix(namespaceURI), namespaceURI, localName, value);
+    }
+
+    public void writeNamespace (String prefix, String namespaceURI) throws XMLStreamException {
+        if (!this.startTagOpen) {
+            throw new XMLStreamException("Trying to write a namespace declaration when there is no open start element.");
+        }
+        if ((prefix == null) || (prefix.length() == 0) || (prefix.equals("xmlns"))) {
+            raw(" xmlns=\"");
+        }
+        else {
+            raw(" xmlns:");
+            raw(prefix);
+            bytes('=');
+            bytes('"');
+        }
+        escape(namespaceURI, true);
+        bytes('"');
+    }
+
+    public void writeDefaultNamespace (String namespaceURI) throws XMLStreamException {
+        writeNamespace(null, namespaceURI);
+    }
+
+    public void writeComment (String data) throws XMLStreamException {
+        int index = data.indexOf("--");
+        if (index != -1) {
+            throw new XMLStreamException("Illegal input: comment content has embedded -- in it (index " + index + ")");
+        }
+        content();
+        raw("<!--");
+        raw(data);
+        raw("-->");
+    }
+
+    public void writeProcessingInstruction (String target) throws XMLStreamException {
+        writeProcessingInstruction(target, null);
+    }
+
+    public void writeProcessingInstruction (String target, String data) throws XMLStreamException {
+        content();
+        raw("<?");
+        raw(target);
+        if (data != null) {
+            int index = data.indexOf("?>");
+            if (index != -1) {
+                throw new XMLStreamException("Illegal input: processing instruction content has embedded '?>' in it (index " + index + ")");
+            }
+            bytes(' ');
+            raw(data);
+        }
+        raw("?>");
+    }
+
+    public void writeCData (String data) throws XMLStreamException {
+        if (this.state != TREE) {
+            throw new XMLStreamException("Trying to output a CDATA block outside main element tree (in prolog or epilog)");
+        }
+        int index = data.indexOf("]]>");
+        if (index != -1) {
+            throw new XMLStreamException("Illegal input: CDATA block has embedded ]]> in it (index " + index + ")");
+        }
+        content();
+        raw("<![CDATA[");
+        raw(data);
+        raw("]]>");
+    }
+
+    public void writeDTD (String dtd) throws XMLStreamException {
+        if (this.state != PROLOG) {
+            throw new XMLStreamException("Can not write DOCTYPE declaration (DTD) when not in prolog any more (state " + (this.state + 1) + "; start element(s) written)");
+        }
+        if (this.dtdWritten) {
+            throw new XMLStreamException("Trying to write multiple DOCTYPE declarations");
+        }
+        this.dtdWritten = true;
+        content();
+        raw(dtd);
+    }
+
+    public void writeEntityRef (String name) throws XMLStreamException {
+        if (this.state != TREE) {
+            throw new XMLStreamException("Trying to output an entity reference outside main element tree (in prolog or epilog)");
+        }
+        content();
+        bytes('&');
+        raw(name);
+        bytes(';');
+    }
+
+    public void writeStartDocument () throws XMLStreamException {
+        writeStartDocument("UTF-8", "1.0");
+    }
+
+    public void writeStartDocument (String version) throws XMLStreamException {
+        writeStartDocument("UTF-8", version);
+    }
+
+    public void writeStartDocument (String encoding, String version) throws XMLStreamException {
+        if (this.anyOutput) {
+            throw new XMLStreamException("Can not output XML declaration, after other output has already been done.");
+        }
+        raw("<?xml version='");
+        raw(version);
+        raw("' encoding='");
+        raw(encoding);
+        raw("'?>");
+    }
+
+    public void writeCharacters (String text) throws XMLStreamException {
+        if (this.state != TREE) {
+            checkWhiteSpace(text);
+        }
+        content();
+        escape(text, false);
+    }
+
+    public void writeCharacters (char[] text, int start, int len) throws XMLStreamException {
+        writeCharacters(new String(text, start, len));
+    }
+
+    public String getPrefix (String uri) throws XMLStreamException {
+        if (this.prefixes != null) {
+            String prefix = this.prefixes.get(uri);
+            if (prefix != null) {
+                return prefix;
+            }
+        }
+        return this.namespaceContext == null ? null : this.namespaceContext.getPrefix(uri);
+    }
+
+    public void setPrefix (String prefix, String uri) throws XMLStreamException {
+        if (this.prefixes == null) {
+            this.prefixes = new HashMap<String, String>();
+        }
+        this.prefixes.put(uri, prefix);
+    }
+
+    public void setDefaultNamespace (String uri) throws XMLStreamException {
+        setPrefix("", uri);
+    }
+
+    public void setNamespaceContext (NamespaceContext context) throws XMLStreamException {
+        this.namespaceContext = context;
+    }
+
+    public NamespaceContext getNamespaceContext () {
+        return new NamespaceContext() {
+            public String getNamespaceURI (String prefix) {
+                if (prefixes != null) {
+                    for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+                        if (entry.getValue().equals(prefix)) {
+                            return entry.getKey();
+                        }
+                    }
+                }
+                return namespaceContext == null ? null : namespaceContext.getNamespaceURI(prefix);
+            }
+
+            public String getPrefix (String namespaceURI) {
+                try {
+                    return Utf8StreamWriter.this.getPrefix(namespaceURI);
+                }
+                catch (XMLStreamException e) {
+                    return null;
+                }
+            }
+
+            public Iterator getPrefixes (String namespaceURI) {
+                String prefix = getPrefix(namespaceURI);
+                return Collections.singletonList(prefix).iterator();
+            }
+        };
+    }
+
+    public Object getProperty (String name) throws IllegalArgumentException {
+        throw new IllegalArgumentException("Unrecognized property '" + name + "'");
+    }
+
+    // Document structure
+
+    private void startElement (Object endTag) throws XMLStreamException {
+        if (this.state == EPILOG) {
+            throw new XMLStreamException("Trying to output second root, <" + qualifiedName(endTag) + ">");
+        }
+        content();
+        this.state = TREE;
+        if (this.depth == this.openElements.length) {
+            Object[] openElements = new Object[this.depth * 2];
+            System.arraycopy(this.openElements, 0, openElements, 0, this.depth);
+            this.openElements = openElements;
+        }
+        this.openElements[this.depth++] = endTag;
+    }
+
+    private static String qualifiedName (Object endTag) {
+        if ((endTag instanceof byte[])) {
+            byte[] bytes = (byte[]) endTag;
+            try {
+                return new String(bytes, 2, bytes.length - 3, "UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return (String) endTag;
+    }
+
+    /**
+     * Closes an open start tag before content is written
+     */
+    private void content () throws XMLStreamException {
+        this.anyOutput = true;
+        if (this.startTagOpen) {
+            closeStartTag();
+        }
+    }
+
+    private void closeStartTag () throws XMLStreamException {
+        if (this.emptyElement) {
+            this.emptyElement = false;
+            bytes('/');
+        }
+        this.startTagOpen = false;
+        bytes('>');
+    }
+
+    private static void checkWhiteSpace (String text) throws XMLStreamException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c != ' ') && (c != '\t') && (c != '\n') && (c != '\r')) {
+                throw new XMLStreamException("Trying to output non-whitespace characters outside main element tree (in prolog or epilog)");
+            }
+        }
+    }
+
+    // Encoding
+
+    private void bytes (int b) throws XMLStreamException {
+        if (this.position == this.buffer.length) {
+            flushBuffer();
+        }
+        this.buffer[this.position++] = (byte) b;
+    }
+
+    private void bytes (byte[] bytes) throws XMLStreamException {
+        if (bytes.length > this.buffer.length - this.position) {
+            flushBuffer();
+            while ((this.output == null) && (bytes.length > this.buffer.length - this.position)) {
+                flushBuffer();
+            }
+            if (bytes.length > this.buffer.length - this.position) {
+                // larger than the buffer
+                write(bytes, bytes.length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+        this.position += bytes.length;
+    }
+
+    /**
+     * Makes room for one more character, as encoded or escaped
+     */
+    private void reserve () throws XMLStreamException {
+        if (this.buffer.length - this.position < 10) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer () throws XMLStreamException {
+        if (this.output == null) {
+            // encoding into memory; grow
+            byte[] buffer = new byte[this.buffer.length * 2];
+            System.arraycopy(this.buffer, 0, buffer, 0, this.position);
+            this.buffer = buffer;
+            return;
+        }
+        write(this.buffer, this.position);
+        this.position = 0;
+    }
+
+    private void write (byte[] bytes, int length) throws XMLStreamException {
+        try {
+            this.output.write(bytes, 0, length);
+            if (this.streaming) {
+                this.output.flush();
+            }
+        }
+        catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    /**
+     * Writes text as it is, encoded
+     */
+    private void raw (String text) throws XMLStreamException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            reserve();
+            if (c < 0x80) {
+                this.buffer[this.position++] = (byte) c;
+            }
+            else {
+                i = encode(text, i, c);
+            }
+        }
+    }
+
+    /**
+     * Writes text escaped as character data or as an attribute value, encoded
+     */
+    private void escape (String text, boolean attribute) throws XMLStreamException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            reserve();
+            if (c >= 0x80) {
+                i = encode(text, i, c);
+            }
+            else if (c >= 0x20) {
+                switch (c) {
+                    case '<':
+                        entity("&lt;");
+                        break;
+                    case '&':
+                        entity("&amp;");
+                        break;
+                    case '>':
+                        if ((!attribute) && (i >= 2) && (text.charAt(i - 1) == ']') && (text.charAt(i - 2) == ']')) {
+                            entity("&gt;");
+                        }
+                        else {
+                            this.buffer[this.position++] = (byte) c;
+                        }
+                        break;
+                    case '"':
+                        if (attribute) {
+                            entity("&quot;");
+                        }
+                        else {
+                            this.buffer[this.position++] = (byte) c;
+                        }
+                        break;
+                    default:
+                        this.buffer[this.position++] = (byte) c;
+                }
+            }
+            else if (c == '\n') {
+                if (attribute) {
+                    entity("&#xa;");
+                }
+                else {
+                    this.buffer[this.position++] = (byte) c;
+                }
+            }
+            else if (c == '\t') {
+                if (attribute) {
+                    entity("&#x9;");
+                }
+                else {
+                    this.buffer[this.position++] = (byte) c;
+                }
+            }
+            else if (c == '\r') {
+                entity("&#xd;");
+            }
+            else if (c == 0) {
+                throw new XMLStreamException("Invalid null character in text to output");
+            }
+            else {
+                throw new XMLStreamException("Invalid white space character (0x" + Integer.toHexString(c) + ") in text to output (in xml 1.1, could output as a character entity)");
+            }
+        }
+    }
+
+    private void entity (String entity) {
+        for (int i = 0; i < entity.length(); i++) {
+            this.buffer[this.position++] = (byte) entity.charAt(i);
+        }
+    }
+
+    /**
+     * Encodes a character of 0x80 or above; the buffer has room for it
+     *
+     * @return the index of the last character used
+     */
+    private int encode (String text, int i, char c) throws XMLStreamException {
+        byte[] buffer = this.buffer;
+        if (c < 0x800) {
+            buffer[this.position++] = (byte) (0xc0 | (c >> 6));
+            buffer[this.position++] = (byte) (0x80 | (c & 0x3f));
+        }
+        else if ((c >= 0xd800) && (c <= 0xdfff)) {
+            char low = (i + 1) < text.length() ? text.charAt(i + 1) : 0;
+            if ((c > 0xdbff) || (low < 0xdc00) || (low > 0xdfff)) {
+                throw new XMLStreamException("Broken surrogate pair: first char 0x" + Integer.toHexString(c) + ", second 0x" + Integer.toHexString(low) + "; illegal combination");
+            }
+            int codePoint = Character.toCodePoint(c, low);
+            buffer[this.position++] = (byte) (0xf0 | (codePoint >> 18));
+            buffer[this.position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buffer[this.position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[this.position++] = (byte) (0x80 | (codePoint & 0x3f));
+            return i + 1;
+        }
+        else if (c >= 0xfffe) {
+            entity(c == 0xfffe ? "&#xfffe;" : "&#xffff;");
+        }
+        else {
+            buffer[this.position++] = (byte) (0xe0 | (c >> 12));
+            buffer[this.position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[this.position++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+}
@@ -24,7 +24,6 @@ import jpt.PageTemplate;
 import jpt.PageTemplateException;
 import jpt.PageTemplateImpl;
 import jpt.Slot;
-import org.jdom.Element;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
@@ -55,7 +54,7 @@ public class IncludableTemplate implements MacroProvider {
         Map<String, Macro> templateMacros = template.getMacros();
         for (Map.Entry<String, Macro> entry : templateMacros.entrySet()) {
             PageTemplateImpl.MacroImpl macro = (PageTemplateImpl.MacroImpl) entry.getValue();
-            this.macros.put(entry.getKey(), new IncludableMacro(macro.getElement()));
+            this.macros.put(entry.getKey(), new IncludableMacro(macro));
         }
     }
 
@@ -98,20 +97,18 @@ public class IncludableTemplate implements MacroProvider {
      *
      */
     class IncludableMacro implements Macro {
-        private final Element element;
+        private final PageTemplateImpl.MacroImpl macro;
 
-        private IncludableMacro (Element element) {
-            this.element = element;
+        private IncludableMacro (PageTemplateImpl.MacroImpl macro) {
+            this.macro = macro;
         }
 
         public void process (XMLStreamWriter writer,
                              ExpressionEvaluator evaluator,
                              Deque<Map<String, Slot>> slotStack)
             throws PageTemplateException, XMLStreamException {
-            IncludableTemplate.this.template.setSuppressDeclaration(true);
-            IncludableTemplate.this.template.process(this.element,
-                                                     writer, IncludableTemplate.this.context,
-                                                     IncludableTemplate.this.dictionary, slotStack);
+            this.macro.process(writer, IncludableTemplate.this.context,
+                               IncludableTemplate.this.dictionary, slotStack);
         }
     }
 
@@ -20,34 +20,89 @@ package jpt.util;
 
 import org.mvel.CompileException;
 import org.mvel.MVEL;
+import org.mvel.ParserContext;
 import org.mvel.PropertyAccessException;
+import org.mvel.compiler.ExpressionCompiler;
+import org.mvel.integration.VariableResolverFactory;
+import org.mvel.integration.impl.MapVariableResolverFactory;
 
+import java.io.Serializable;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Mvel Expression Evaluator
+ * <p/>
+ * Expressions are compiled once and the compiled form is shared by all
+ * evaluators; each evaluator resolves variables through one
+ * VariableResolverFactory over its VariableScope. An interpreted
+ * expression treats names which are not defined as null; so that a
+ * compiled expression does too, the names it reads are noted when it is
+ * compiled and always resolve. An expression MVEL can not compile is
+ * always interpreted, which reports its error as before; an expression
+ * which compiled is only ever run compiled, so it runs once per evaluation.
  *
  * @author Chris Rossi
  * @author Todd Cook
  * @version Revision: 1.7
  */
 public class MvelExpressionEvaluator implements ExpressionEvaluator {
+    /**
+     * Compiled expressions shared by all evaluators, keyed by expression source
+     */
+    private static final ConcurrentMap<String, Compiled> compiledExpressions =
+        new ConcurrentHashMap<String, Compiled>();
+    private static final int MAX_COMPILED_EXPRESSIONS = 10000;
+    private static final Compiled INTERPRETED = new Compiled(null, Collections.<String>emptySet());
+
+    private final VariableScope scope;
     private Map<String, Object> context;
+    /**
+     * The scope, which also holds the inputs of the compiled expression being run
+     */
+    private InputsMap<String, Object> inputs;
+    /**
+     * Variables assigned by an expression are stored straight into the scope
+     */
+    private VariableResolverFactory variableResolverFactory;
+    /**
+     * Resolves the variables of compiled expressions, through inputs
+     */
+    private VariableResolverFactory compiledResolverFactory;
 
     public MvelExpressionEvaluator () {
-        this.context = new ContainsEveryKeyMap<String, Object>(
-            new HashMap<String, Object>());
+        this(new VariableScope(new Object[VariableScope.SLOTS], null));
+    }
+
+    /**
+     * @param scope the variables to evaluate expressions against
+     */
+    public MvelExpressionEvaluator (VariableScope scope) {
+        this.scope = scope;
+        Map<String, Object> variables = scope.asMap();
+        this.context = new ContainsEveryKeyMap<String, Object>(variables);
+        this.variableResolverFactory = new MapVariableResolverFactory(variables);
+        this.inputs = new InputsMap<String, Object>(variables);
+        this.compiledResolverFactory = new MapVariableResolverFactory(this.inputs);
+    }
+
+    public VariableScope getScope () {
+        return this.scope;
     }
 
     public Object eval (String expression) throws EvalException {
         try {
-            Map<String, Object> tokens = new HashMap<String, Object>();
-            Object result = MVEL.eval(expression, this.context, tokens);
-            this.context.putAll(tokens);
-            return result;
+            Compiled compiled = compile(expression);
+            if (compiled == INTERPRETED) {
+                return MVEL.eval(expression, this.context, this.variableResolverFactory);
+            }
+            this.inputs.declared = compiled.inputs;
+            return MVEL.executeExpression(compiled.expression, null, this.compiledResolverFactory);
         }
         catch (PropertyAccessException e) {
             throw new EvalException("Error accessing property in expression " + expression, e);
@@ -57,16 +112,65 @@ public class MvelExpressionEvaluator implements ExpressionEvaluator {
         }
     }
 
+    private static Compiled compile (String expression) {
+        Compiled compiled = compiledExpressions.get(expression);
+        if (compiled == null) {
+            try {
+                ParserContext parserContext = new ParserContext();
+                Serializable executable = new ExpressionCompiler(expression).compile(parserContext);
+                compiled = new Compiled(executable, new HashSet<String>(parserContext.getInputs().keySet()));
+            }
+            catch (RuntimeException e) {
+                compiled = INTERPRETED;
+            }
+            if (compiledExpressions.size() >= MAX_COMPILED_EXPRESSIONS) {
+                compiledExpressions.clear();
+            }
+            compiledExpressions.put(expression, compiled);
+        }
+        return compiled;
+    }
+
     public Object get (String token) {
-        return this.context.get(token);
+        return this.scope.get(token);
     }
 
     public void set (String token, Object value) {
-        this.context.put(token, value);
+        this.scope.set(token, value);
     }
 
     public void unset (String token) {
-        this.context.remove(token);
+        this.scope.unset(token);
+    }
+
+    /**
+     * A compiled expression, and the names it reads
+     */
+    private static final class Compiled {
+        final Serializable expression;
+        final Set<String> inputs;
+
+        Compiled (Serializable expression, Set<String> inputs) {
+            this.expression = expression;
+            this.inputs = inputs;
+        }
+    }
+
+    /**
+     * Contains the keys of its delegate and the declared inputs,
+     * which are null if not defined
+     */
+    static class InputsMap<K, V> extends ContainsEveryKeyMap<K, V> {
+        Set<String> declared = Collections.emptySet();
+
+        public InputsMap (Map<K, V> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public boolean containsKey (Object key) {
+            return (this.declared.contains(key)) || (delegate().containsKey(key));
+        }
     }
 
     static class ContainsEveryKeyMap<K, V> implements Map<K, V> {
@@ -76,6 +180,10 @@ public class MvelExpressionEvaluator implements ExpressionEvaluator {
             this.delegate = delegate;
         }
 
+        Map<K, V> delegate () {
+            return this.delegate;
+        }
+
         public void clear () {
             this.delegate.clear();
         }
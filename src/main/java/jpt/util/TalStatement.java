@@ -35,6 +35,8 @@ public enum TalStatement {
     REPLACE("replace"),
     ATTRIBUTES("attributes"),
     OMIT_TAG("omit-tag"),
+    FLUSH("flush"),
+    PARALLEL("parallel"),
     ON_ERROR("on-error");
 
     private String attribute;
@@ -0,0 +1,360 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt.util;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The variables of one rendering, in layers:
+ * <ul>
+ * <li>the global layer, shared by every rendering of a template: template, resolver and default</li>
+ * <li>the request layer: the caller's dictionary, read in place and never copied,
+ * beneath the variables set while rendering</li>
+ * <li>local frames, one per element; a local definition is undone
+ * when the element which made it has been rendered</li>
+ * </ul>
+ * The well known variables live in array slots; expressions look them up
+ * by the slot index, which is found when the expression is parsed.
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+public final class VariableScope {
+    public static final int HERE = 0;
+    public static final int TEMPLATE = 1;
+    public static final int RESOLVER = 2;
+    public static final int DEFAULT = 3;
+    public static final int ATTRS = 4;
+    public static final int REPEAT = 5;
+    public static final int SLOTS = 6;
+
+    private static final String[] slotNames = {"here", "template", "resolver", "default", "attrs", "repeat"};
+    /**
+     * Marks a variable explicitly set to null
+     */
+    private static final Object NULL = new Object();
+    /**
+     * Marks a dictionary entry which has been unset
+     */
+    private static final Object REMOVED = new Object();
+
+    private final Object[] slots;
+    private final Map<String, Object> dictionary;
+    private Map<String, Object> variables = null;
+
+    // Undo log of the local definitions; a frame is a position in the log
+    private String[] localNames = new String[8];
+    private Object[] localValues = new Object[8];
+    private int locals = 0;
+
+    /**
+     * @param globals    the global layer, indexed by slot; not modified
+     * @param dictionary the caller's variables; not modified, may be null
+     */
+    public VariableScope (Object[] globals, Map<String, Object> dictionary) {
+        this.slots = globals.clone();
+        this.dictionary = dictionary;
+        if (dictionary != null) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if ((this.slots[slot] == null) && (dictionary.containsKey(slotNames[slot]))) {
+                    this.slots[slot] = dictionary.get(slotNames[slot]);
+                }
+            }
+        }
+    }
+
+    /**
+     * A copy of the visible variables, e.g. for rendering part of a template on another thread
+     */
+    private VariableScope (VariableScope scope) {
+        this.slots = scope.slots.clone();
+        this.dictionary = scope.dictionary;
+        if (scope.variables != null) {
+            this.variables = new HashMap<String, Object>(scope.variables);
+        }
+        if ((this.slots[REPEAT] instanceof Map)) {
+            // loops add themselves to the repeat map while they run
+            this.slots[REPEAT] = new TreeMap<Object, Object>((Map<?, ?>) this.slots[REPEAT]);
+        }
+    }
+
+    /**
+     * @return a scope with the same variables; variables set in either
+     *         are not seen by the other. The dictionary is shared, as it is never modified.
+     */
+    public VariableScope fork () {
+        return new VariableScope(this);
+    }
+
+    /**
+     * @param name variable name
+     * @return the slot of a well known variable, or -1
+     */
+    public static int slotOf (String name) {
+        switch (name) {
+            case "here":
+                return HERE;
+            case "template":
+                return TEMPLATE;
+            case "resolver":
+                return RESOLVER;
+            case "default":
+                return DEFAULT;
+            case "attrs":
+                return ATTRS;
+            case "repeat":
+                return REPEAT;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @param expressionEvaluator ExpressionEvaluator
+     * @return the scope of the evaluator, or null if it does not keep its variables in a VariableScope
+     */
+    public static VariableScope of (ExpressionEvaluator expressionEvaluator) {
+        if ((expressionEvaluator instanceof MvelExpressionEvaluator)) {
+            return ((MvelExpressionEvaluator) expressionEvaluator).getScope();
+        }
+        return null;
+    }
+
+    public Object get (int slot) {
+        return this.slots[slot];
+    }
+
+    public void set (int slot, Object value) {
+        this.slots[slot] = value;
+    }
+
+    public Object get (String name) {
+        int slot = slotOf(name);
+        if (slot != -1) {
+            return this.slots[slot];
+        }
+        Object value = this.variables == null ? null : this.variables.get(name);
+        if (value == null) {
+            return this.dictionary == null ? null : this.dictionary.get(name);
+        }
+        return ((value == NULL) || (value == REMOVED)) ? null : value;
+    }
+
+    public void set (String name, Object value) {
+        int slot = slotOf(name);
+        if (slot != -1) {
+            this.slots[slot] = value;
+        }
+        else {
+            if (this.variables == null) {
+                this.variables = new HashMap<String, Object>();
+            }
+            this.variables.put(name, value == null ? NULL : value);
+        }
+    }
+
+    public void unset (String name) {
+        int slot = slotOf(name);
+        if (slot != -1) {
+            this.slots[slot] = null;
+        }
+        else if ((this.dictionary != null) && (this.dictionary.containsKey(name))) {
+            if (this.variables == null) {
+                this.variables = new HashMap<String, Object>();
+            }
+            this.variables.put(name, REMOVED);
+        }
+        else if (this.variables != null) {
+            this.variables.remove(name);
+        }
+    }
+
+    /**
+     * @param name variable name
+     * @return true if the variable has been set, even if to null
+     */
+    public boolean isDefined (String name) {
+        int slot = slotOf(name);
+        if (slot != -1) {
+            return this.slots[slot] != null;
+        }
+        Object value = this.variables == null ? null : this.variables.get(name);
+        if (value == null) {
+            return (this.dictionary != null) && (this.dictionary.containsKey(name));
+        }
+        return value != REMOVED;
+    }
+
+    /**
+     * Opens a local frame
+     *
+     * @return the frame, to be passed to popFrame()
+     */
+    public int pushFrame () {
+        return this.locals;
+    }
+
+    /**
+     * Defines a variable until the current frame is popped
+     *
+     * @param name  variable name
+     * @param value value
+     */
+    public void setLocal (String name, Object value) {
+        if (this.locals == this.localNames.length) {
+            String[] names = new String[this.locals * 2];
+            Object[] values = new Object[this.locals * 2];
+            System.arraycopy(this.localNames, 0, names, 0, this.locals);
+            System.arraycopy(this.localValues, 0, values, 0, this.locals);
+            this.localNames = names;
+            this.localValues = values;
+        }
+        int slot = slotOf(name);
+        this.localNames[this.locals] = name;
+        if (slot != -1) {
+            this.localValues[this.locals] = this.slots[slot];
+        }
+        else {
+            this.localValues[this.locals] = this.variables == null ? null : this.variables.get(name);
+        }
+        this.locals++;
+        set(name, value);
+    }
+
+    /**
+     * Defines a variable that outlives the open frames: popping a frame
+     * that defined the same name locally restores this value instead of
+     * the one the local definition hid
+     *
+     * @param name  variable name
+     * @param value value
+     */
+    public void setGlobal (String name, Object value) {
+        set(name, value);
+        if (this.locals == 0) {
+            return;
+        }
+        int slot = slotOf(name);
+        Object stored = slot != -1 ? this.slots[slot] : this.variables.get(name);
+        for (int i = 0; i < this.locals; i++) {
+            if (name.equals(this.localNames[i])) {
+                this.localValues[i] = stored;
+            }
+        }
+    }
+
+    /**
+     * Closes a local frame, restoring the variables defined in it
+     *
+     * @param frame as returned by pushFrame()
+     */
+    public void popFrame (int frame) {
+        while (this.locals > frame) {
+            this.locals--;
+            String name = this.localNames[this.locals];
+            Object previous = this.localValues[this.locals];
+            this.localNames[this.locals] = null;
+            this.localValues[this.locals] = null;
+            int slot = slotOf(name);
+            if (slot != -1) {
+                this.slots[slot] = previous;
+            }
+            else if (previous == null) {
+                this.variables.remove(name);
+            }
+            else {
+                this.variables.put(name, previous);
+            }
+        }
+    }
+
+    /**
+     * @return a Map view of the visible variables
+     */
+    Map<String, Object> asMap () {
+        return new ScopeMap();
+    }
+
+    private final class ScopeMap extends AbstractMap<String, Object> {
+        @Override
+        public Object get (Object key) {
+            return VariableScope.this.get((String) key);
+        }
+
+        @Override
+        public boolean containsKey (Object key) {
+            return isDefined((String) key);
+        }
+
+        @Override
+        public Object put (String key, Object value) {
+            Object previous = VariableScope.this.get(key);
+            set(key, value);
+            return previous;
+        }
+
+        @Override
+        public Object remove (Object key) {
+            Object previous = VariableScope.this.get((String) key);
+            unset((String) key);
+            return previous;
+        }
+
+        /**
+         * @return a copy of the visible variables
+         */
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet () {
+            Map<String, Object> visible = new LinkedHashMap<String, Object>();
+            if (dictionary != null) {
+                visible.putAll(dictionary);
+            }
+            if (variables != null) {
+                for (Map.Entry<String, Object> entry : variables.entrySet()) {
+                    if (entry.getValue() == REMOVED) {
+                        visible.remove(entry.getKey());
+                    }
+                    else {
+                        visible.put(entry.getKey(), entry.getValue() == NULL ? null : entry.getValue());
+                    }
+                }
+            }
+            for (int slot = 0; slot < SLOTS; slot++) {
+                visible.remove(slotNames[slot]);
+                if (slots[slot] != null) {
+                    visible.put(slotNames[slot], slots[slot]);
+                }
+            }
+            return visible.entrySet();
+        }
+    }
+
+    @Override
+    public String toString () {
+        return "VariableScope{" +
+            "variables=" + asMap() +
+            '}';
+    }
+}
@@ -21,8 +21,14 @@ package jpt;
 
 import org.junit.Test;
 
+import java.beans.Introspector;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertTrue;
@@ -388,6 +394,19 @@ public class ExpressionsTest extends JptTestUtil {
         assertTrue(trueResult.equals(removeAllBreaks(result)));
     }
 
+    @Test
+    public void SameExpressionDifferentValues () {
+        String templateText = startTag + "<p>Hello <span tal:replace=\"name/toUpperCase()\">nobody</span></p>" + endTag;
+        // the expression is parsed once and shared by both renderings
+        for (String name : new String[]{"ann", "bob"}) {
+            Map<String, Object> dictionary = new HashMap<String, Object>();
+            dictionary.put("name", name);
+            String result = processTemplate(templateText, null, dictionary);
+            showTransformation(templateText, result);
+            assertTrue(("<html><p>Hello " + name.toUpperCase() + "</p></html>").equals(removeAllBreaks(result)));
+        }
+    }
+
     class Stuff {
         Map<String, Object> map = new HashMap<String, Object>();
 
@@ -459,6 +478,36 @@ public class ExpressionsTest extends JptTestUtil {
         assertTrue(trueResult.equals(removeAllBreaks(result)));
     }
 
+    @Test
+    public void JavaExpressionInRepeat () {
+        String templateText = startTag + "<ul><li tal:repeat=\"n numbers\" tal:content=\"java: Math.max(n * 2, 3)\">n</li></ul>" + endTag;
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("numbers", new Integer[]{1, 2, 3});
+        String result = processTemplate(templateText, null, dictionary);
+        showTransformation(templateText, result);
+        String trueResult = "<html><ul><li>3</li><li>4</li><li>6</li></ul></html>";
+        assertTrue(trueResult.equals(removeAllBreaks(result)));
+    }
+
+    @Test
+    public void JavaExpressionRunsOnce () {
+        // Undefined names are null, compiled or not
+        String templateText = startTag + "<p tal:content=\"java: missing == null\">p</p>" + endTag;
+        String result = processTemplate(templateText, null, new HashMap<String, Object>());
+        showTransformation(templateText, result);
+        assertTrue("<html><p>true</p></html>".equals(removeAllBreaks(result)));
+
+        // An expression which fails is not run again
+        templateText = startTag + "<p tal:content=\"java: list.add('a') &amp;&amp; list.get(5) != null\">p</p>" + endTag;
+        List<String> list = new ArrayList<String>();
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("list", list);
+        LOG.info("NOTE: the following stack trace is expected:");
+        result = processTemplate(templateText, null, dictionary);
+        showTransformation(templateText, result);
+        assertTrue(list.size() == 1);
+    }
+
     class DateObject {
         public Date getBirthday () {
             return new Date(323424000007L);  // Tue April 1, 1980 12:00:00 AM
@@ -532,6 +581,22 @@ public class ExpressionsTest extends JptTestUtil {
         assertTrue(trueResult.equals(removeAllBreaks(result)));
     }
 
+    @Test
+    public void PrimitiveArrays () {
+        String templateText = startTag + "<p tal:repeat=\"point series\" tal:content=\"point\">point</p>\n" +
+            "<p tal:content=\"series[1]\">a point</p><p tal:content=\"flags[1]\">a flag</p>" +
+            "<p tal:content=\"letters[2]\">a letter</p><p tal:content=\"counts[0]\">a count</p>" + endTag;
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("series", new double[]{0.5, 1.25, 2.0});
+        dictionary.put("flags", new boolean[]{false, true});
+        dictionary.put("letters", new char[]{'a', 'b', 'c'});
+        dictionary.put("counts", new long[]{10000000000L});
+        String result = processTemplate(templateText, null, dictionary);
+        showTransformation(templateText, result);
+        String trueResult = "<html><p>0.5</p><p>1.25</p><p>2.0</p><p>1.25</p><p>true</p><p>c</p><p>10000000000</p></html>";
+        assertTrue(trueResult.equals(removeAllBreaks(result)));
+    }
+
     @Test
     public void UseDefaultVariable () {
         String templateText = startTag + "<p>My aunt is named <span tal:replace=\"myaunt|default\">Renee</span></p>\n" +
@@ -553,4 +618,70 @@ public class ExpressionsTest extends JptTestUtil {
         String trueResult = "<html><p>I have a little doggy named </p><p>Sometimes <p>I feel happy</p></p></html>";
         assertTrue(trueResult.equals(removeAllBreaks(result)));
     }
+
+    public static class Cat {
+        public String getName () {
+            return "Tom";
+        }
+
+        public String greet (String greeting) {
+            return greeting + ", I'm a cat";
+        }
+    }
+
+    public static class Mouse {
+        public String getName () {
+            return "Jerry";
+        }
+
+        public String greet (Object greeting) {
+            return greeting + ", I'm a mouse";
+        }
+    }
+
+    /**
+     * Each step remembers the property or method it found first; parents
+     * of other classes, and maps, must still be looked up
+     */
+    @Test
+    public void StepsOverMixedClasses () {
+        Map<String, Object> jerry = new HashMap<String, Object>();
+        jerry.put("name", "Jerry");
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("animals", new Object[]{new Cat(), new Cat(), new Mouse(), jerry, new Cat()});
+        dictionary.put("greeters", new Object[]{new Cat(), new Mouse(), new Cat()});
+        String templateText = startTag + "<p tal:repeat=\"animal animals\" tal:content=\"animal/name\">name</p>" +
+            "<p tal:repeat=\"greeter greeters\" tal:content=\"greeter/greet( 'Hi' )\">greeting</p>" + endTag;
+        String result = processTemplate(templateText, null, dictionary);
+        showTransformation(templateText, result);
+        String trueResult = "<html><p>Tom</p><p>Tom</p><p>Jerry</p><p>Jerry</p><p>Tom</p>" +
+            "<p>Hi, I'm a cat</p><p>Hi, I'm a mouse</p><p>Hi, I'm a cat</p></html>";
+        assertTrue(trueResult.equals(removeAllBreaks(result)));
+    }
+
+    /**
+     * The steps of cached expressions do not keep the classes they have seen from being unloaded
+     */
+    @Test
+    public void StepsLetClassesBeUnloaded () throws Exception {
+        URL classes = Cat.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[]{classes}, null);
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("pet", loader.loadClass(Cat.class.getName()).newInstance());
+        String templateText = startTag + "<p tal:content=\"pet/name\">name</p>" +
+            "<p tal:content=\"pet/greet( 'Hello' )\">greeting</p>" + endTag;
+        String result = processTemplate(templateText, null, dictionary);
+        assertTrue("<html><p>Tom</p><p>Hello, I'm a cat</p></html>".equals(removeAllBreaks(result)));
+
+        WeakReference<ClassLoader> unloaded = new WeakReference<ClassLoader>(loader);
+        // as a container does when an application is undeployed
+        Introspector.flushCaches();
+        loader = null;
+        dictionary = null;
+        for (int i = 0; i < 50 && unloaded.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue(unloaded.get() == null);
+    }
 }
\ No newline at end of file
@@ -19,12 +19,19 @@
 
 package jpt;
 
+import jpt.util.ExpressionEvaluator;
 import org.junit.Test;
 
+import javax.xml.stream.XMLStreamWriter;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -176,4 +183,69 @@ public class MacrosTest extends JptTestUtil {
         showTransformation (templateText, result);
         assertTrue (trueResult.equals (removeAllBreaks (result)));
     }
+
+    @Test
+    public void macrosAreIndexedWhenBuilt () {
+        PageTemplate template = new PageTemplateImpl.Builder ().templateText (pageMacro).build ();
+        Map<String, Macro> macros = template.getMacros ();
+        assertSame (macros, template.getMacros ());
+        assertEquals (1, macros.size ());
+        PageTemplateImpl.MacroImpl page = (PageTemplateImpl.MacroImpl) macros.get ("page");
+        assertEquals (new HashSet<String> (Arrays.asList ("title", "content")), page.getSlotNames ());
+    }
+
+    /**
+     * Slots filled by the outermost caller win over slots filled in between
+     */
+    @Test
+    public void nestedMacroSlots () {
+        String metal = " xmlns:metal=\"http://xml.zope.org/namespaces/metal\"";
+        Map<String, PageTemplate> templates = new HashMap<String, PageTemplate> ();
+        templates.put ("base.jpt", new PageTemplateImpl.Builder ().templateText (
+                "<html" + metal + " metal:define-macro=\"base\"><p metal:define-slot=\"a\">base a</p>" +
+                        "<p metal:define-slot=\"b\">base b</p><p metal:define-slot=\"c\">base c</p></html>").build ());
+        templates.put ("layout.jpt", new PageTemplateImpl.Builder ().templateText (
+                "<html" + metal + " metal:define-macro=\"layout\"" +
+                        " metal:use-macro=\"resolver/getPageTemplate( 'base.jpt' )/macros/base\">" +
+                        "<b metal:fill-slot=\"a\">layout a</b><b metal:fill-slot=\"b\">layout b</b></html>").build ());
+        String templateText = "<html" + metal +
+                " metal:use-macro=\"resolver/getPageTemplate( 'layout.jpt' )/macros/layout\">" +
+                "<i metal:fill-slot=\"a\">page a</i></html>";
+        String result = processTemplate (templateText, null, null, new MacroResolver (templates));
+        assertEquals ("<html><i>page a</i><b>layout b</b><p>base c</p></html>", removeAllBreaks (result));
+        // again, through the same templates
+        assertEquals (result, processTemplate (templateText, null, null, new MacroResolver (templates)));
+    }
+
+    /**
+     * Each macro call leaves the slot stack as it found it, however many calls a repeat makes
+     */
+    @Test
+    public void repeatedMacroSlots () {
+        String ns = " xmlns:tal=\"http://xml.zope.org/namespaces/tal\" xmlns:metal=\"http://xml.zope.org/namespaces/metal\"";
+        PageTemplate lib = new PageTemplateImpl.Builder ().templateText (
+                "<html" + ns + "><span metal:define-macro=\"m\"><b metal:define-slot=\"s\">default</b></span></html>").build ();
+        final int[] depth = new int[1];
+        Map<String, Object> dictionary = new HashMap<String, Object> ();
+        Integer[] numbers = new Integer[20000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = i;
+        }
+        dictionary.put ("numbers", numbers);
+        dictionary.put ("lib", lib);
+        dictionary.put ("probe", new Macro () {
+            public void process (XMLStreamWriter writer, ExpressionEvaluator expressionEvaluator,
+                                 Deque<Map<String, Slot>> slotStack) {
+                depth[0] = slotStack.size ();
+            }
+        });
+        String templateText = "<html" + ns + "><p tal:repeat=\"n numbers\">" +
+                "<span metal:use-macro=\"lib/macros/m\"><i metal:fill-slot=\"s\" tal:content=\"n\">n</i></span></p>" +
+                "<p metal:use-macro=\"probe\">probe</p></html>";
+        String result = processTemplate (templateText, null, dictionary);
+        assertTrue (result.startsWith ("<html><p><span><i>0</i></span></p><p><span><i>1</i></span></p>"));
+        assertTrue (result.endsWith ("<p><span><i>19999</i></span></p></html>"));
+        // only the probe's own call is on the stack
+        assertEquals (1, depth[0]);
+    }
 }
\ No newline at end of file
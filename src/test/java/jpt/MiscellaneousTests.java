@@ -20,10 +20,19 @@ package jpt;
 
 import org.junit.Test;
 
+import org.codehaus.stax2.util.StreamWriterDelegate;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.StringWriter;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -67,4 +76,75 @@ public class MiscellaneousTests extends JptTestUtil {
         assertTrue(templateText.equals(hf.getHtml()));
         assertTrue(templateText.equals(hf.toString()));
     }
+
+    @Test
+    public void HTMLFragmentsAreNormalizedOnce () throws PageTemplateException {
+        String snippet = "<p>Fish &amp; chips<br/></p>";
+        String xhtml = new HTMLFragment(snippet, true).getXhtml();
+        // The same content, in another fragment, is not parsed again
+        assertSame(xhtml, new HTMLFragment(new String(snippet), true).getXhtml());
+        // but content where loose HTML is not allowed is normalized on its own
+        assertNotSame(xhtml, new HTMLFragment(snippet, false).getXhtml());
+        assertEquals(xhtml, new HTMLFragment(snippet, false).getXhtml());
+    }
+
+    private static String read (Reader reader, int bufferSize) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[bufferSize];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            text.append(buffer, 0, count);
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void FragmentsAreWrappedAndEscapedWhileRead () throws IOException {
+        String[] fragments = {"", "plain", "Fish & chips", "&amp; &lt; &#38; &#x26; &nbsp &; &#; &a_1; & &&amp;",
+            "<a href=\"?a=1&b=2&amp;c=3\">&copy;</a>&", "&"};
+        for (String fragment : fragments) {
+            // as the regular expression used to escape them
+            String escaped = fragment.replaceAll("&(?!((\\w+|(#\\d+));))", "&amp;");
+            for (int bufferSize : new int[]{1, 3, 1024}) {
+                assertEquals(Constants.HTML_PREFIX + escaped + Constants.HTML_SUFFIX,
+                             read(new FragmentReader(fragment, true), bufferSize));
+                assertEquals(Constants.HTML_PREFIX + fragment + Constants.HTML_SUFFIX,
+                             read(new FragmentReader(fragment, false), bufferSize));
+            }
+        }
+    }
+
+    private static String toXhtml (HTMLFragment fragment) throws Exception {
+        StringWriter output = new StringWriter();
+        // Neither the JPT nor the Woodstox writer, so the fragment is normalized
+        XMLStreamWriter writer = new StreamWriterDelegate(XMLOutputFactory.newInstance().createXMLStreamWriter(output));
+        writer.writeStartElement("div");
+        fragment.toXhtml(writer);
+        writer.writeEndElement();
+        writer.close();
+        return output.toString();
+    }
+
+    @Test
+    public void HTMLFragmentsAreNormalizedWhileRead () throws Exception {
+        assertEquals("<p>Fish &amp; chips<br /></p>", new HTMLFragment("<p>Fish &amp; chips<br/></p>", true).getXhtml());
+        assertEquals("<div>text <b>bold</b><!-- note --><p>one</p><p>two</p></div>",
+                     toXhtml(new HTMLFragment("text <b>bold</b><!-- note --><p>one</p><p>two</p>", true)));
+        // Stray ampersands are escaped when loose HTML is not allowed
+        assertEquals("<div>Fish &amp; chips</div>", toXhtml(new HTMLFragment("Fish & chips", false)));
+        try {
+            toXhtml(new HTMLFragment("<p>unclosed", false));
+            fail();
+        }
+        catch (PageTemplateException e) {
+            assertTrue(e.getMessage().startsWith("Unable to parse XML fragment"));
+        }
+        try {
+            new HTMLFragment("<p>one</p><p>unclosed", false).getXhtml();
+            fail();
+        }
+        catch (PageTemplateException e) {
+            assertTrue(e.getMessage().startsWith("Unable to parse XML fragment"));
+        }
+    }
 }
\ No newline at end of file
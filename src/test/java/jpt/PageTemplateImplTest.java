@@ -18,11 +18,32 @@
  */
 package jpt;
 
+import jpt.util.IncludableTemplate;
 import org.junit.Test;
 
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -78,4 +99,349 @@ public class PageTemplateImplTest extends JptTestUtil {
         }
     }
 
+    /**
+     * A template is compiled once when built; each call to process
+     * executes the compiled template against its own data
+     */
+    @Test
+    public void compiledTemplateIsReusable () throws Exception {
+        String templateText = startTag + "<p class=\"name\" tal:content=\"name\">name</p>" +
+            "<ul><li tal:repeat=\"item items\" tal:content=\"item\">item</li></ul>" + endTag;
+        PageTemplate template = new PageTemplateImpl.Builder()
+            .templateText(templateText)
+            .suppressDeclaration(true)
+            .build();
+        for (int i = 0; i < 3; i++) {
+            Map<String, Object> dictionary = new HashMap<String, Object>();
+            dictionary.put("name", "run" + i);
+            dictionary.put("items", Arrays.asList("a" + i, "b" + i));
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            template.process(buffer, null, dictionary);
+            String result = removeAllBreaks(new String(buffer.toByteArray(), "UTF-8"));
+            assertEquals("<html><p class=\"name\">run" + i + "</p><ul><li>a" + i + "</li><li>b" + i + "</li></ul></html>",
+                         result);
+        }
+    }
+
+    /**
+     * Unknown statements are reported when the element is rendered
+     */
+    @Test(expected = PageTemplateException.class)
+    public void unknownStatementFailsOnProcess () throws Exception {
+        String templateText = startTag + "<p tal:bogus=\"here\">text</p>" + endTag;
+        PageTemplate template = new PageTemplateImpl.Builder()
+            .templateText(templateText)
+            .build();
+        template.process(new ByteArrayOutputStream(), null, null);
+    }
+
+    /**
+     * One template may be rendered by many threads at once
+     */
+    @Test
+    public void templateIsSharedBetweenThreads () throws Exception {
+        String templateText = startTag + "<p tal:define=\"local n name\" tal:content=\"n\">name</p>" +
+            "<ul><li tal:repeat=\"item items\" tal:attributes=\"class item\">static</li></ul>" + endTag;
+        final PageTemplate template = new PageTemplateImpl.Builder()
+            .templateText(templateText)
+            .suppressDeclaration(true)
+            .build();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                final int run = i;
+                results.add(executor.submit(new Callable<String>() {
+                    public String call () throws Exception {
+                        Map<String, Object> dictionary = new HashMap<String, Object>();
+                        dictionary.put("name", "run" + run);
+                        dictionary.put("items", Arrays.asList("a" + run, "b" + run));
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        template.process(buffer, null, dictionary);
+                        return removeAllBreaks(new String(buffer.toByteArray(), "UTF-8"));
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals("<html><p>run" + i + "</p><ul><li class=\"a" + i + "\">static</li>" +
+                                 "<li class=\"b" + i + "\">static</li></ul></html>",
+                             results.get(i).get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Including a template leaves out its declaration without changing the template
+     */
+    @Test
+    public void includingLeavesTemplateUnchanged () throws Exception {
+        String templateText = "<html xmlns:tal=\"http://xml.zope.org/namespaces/tal\">abc</html>";
+        PageTemplate template = new PageTemplateImpl.Builder()
+            .templateText(templateText)
+            .suppressDeclaration(false)
+            .build();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(buffer);
+        new IncludableTemplate(template, null).process(writer);
+        writer.close();
+        assertEquals("<html>abc</html>", removeAllBreaks(new String(buffer.toByteArray(), "UTF-8")));
+
+        buffer = new ByteArrayOutputStream();
+        template.process(buffer, null, null);
+        assertEquals("<?xml version='1.0' encoding='UTF-8'?><html>abc</html>",
+                     removeAllBreaks(new String(buffer.toByteArray(), "UTF-8")));
+    }
+
+    /**
+     * A deserialized template is compiled again
+     */
+    @Test
+    public void serializedTemplateRenders () throws Exception {
+        String templateText = startTag + "<p tal:content=\"name\">name</p>" + endTag;
+        PageTemplate template = new PageTemplateImpl.Builder()
+            .templateText(templateText)
+            .suppressDeclaration(true)
+            .build();
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(template);
+        out.close();
+        PageTemplate copy = (PageTemplate) new ObjectInputStream(
+            new ByteArrayInputStream(serialized.toByteArray())).readObject();
+
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("name", "copy");
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        copy.process(buffer, null, dictionary);
+        assertEquals("<html><p>copy</p></html>", removeAllBreaks(new String(buffer.toByteArray(), "UTF-8")));
+    }
+
+    /**
+     * Records what had been written each time the stream was flushed
+     */
+    private static class FlushRecorder extends ByteArrayOutputStream {
+        final List<String> flushed = new ArrayList<String>();
+
+        @Override
+        public void flush () throws IOException {
+            flushed.add(new String(toByteArray(), "UTF-8"));
+        }
+    }
+
+    private static FlushRecorder render (PageTemplate template, Map<String, Object> dictionary) throws Exception {
+        FlushRecorder output = new FlushRecorder();
+        template.process(output, null, dictionary);
+        return output;
+    }
+
+    @Test
+    public void flushesAfterHead () throws Exception {
+        String templateText = "<html xmlns:tal=\"http://xml.zope.org/namespaces/tal\">" +
+            "<head><title>static</title></head><body tal:content=\"body\">body</body></html>";
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("body", "rendered");
+        FlushRecorder output = render(new PageTemplateImpl.Builder()
+                                          .templateText(templateText)
+                                          .flushAfterHead(true)
+                                          .build(), dictionary);
+        assertEquals("<html><head><title>static</title></head>", output.flushed.get(0));
+        assertEquals("<html><head><title>static</title></head><body>rendered</body></html>", output.toString("UTF-8"));
+        // not flushed before the end without the option
+        output = render(new PageTemplateImpl.Builder().templateText(templateText).build(), dictionary);
+        assertEquals(output.toString("UTF-8"), output.flushed.get(0));
+    }
+
+    @Test
+    public void flushesAtMarkers () throws Exception {
+        String templateText = "<html xmlns:tal=\"http://xml.zope.org/namespaces/tal\">" +
+            "<div tal:flush=\"\">one</div><div tal:repeat=\"item items\" tal:content=\"item\" tal:flush=\"\">item</div>" +
+            "</html>";
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("items", Arrays.asList("a", "b"));
+        FlushRecorder output = render(new PageTemplateImpl.Builder().templateText(templateText).build(), dictionary);
+        assertEquals(Arrays.asList("<html><div>one</div>",
+                                   "<html><div>one</div><div>a</div><div>b</div>",
+                                   "<html><div>one</div><div>a</div><div>b</div></html>"), output.flushed);
+    }
+
+    @Test
+    public void flushesEveryFewBytes () throws Exception {
+        String templateText = "<html xmlns:tal=\"http://xml.zope.org/namespaces/tal\">" +
+            "<p tal:repeat=\"item items\" tal:content=\"item\">item</p></html>";
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        List<String> items = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            items.add("paragraph " + i);
+        }
+        dictionary.put("items", items);
+        PageTemplate template = new PageTemplateImpl.Builder()
+            .templateText(templateText)
+            .flushEvery(256)
+            .build();
+        FlushRecorder output = render(template, dictionary);
+        assertTrue(output.flushed.size() > output.size() / 256);
+        int written = 0;
+        for (String flushed : output.flushed) {
+            assertTrue(flushed.length() - written <= 256);
+            written = flushed.length();
+        }
+        assertEquals(render(new PageTemplateImpl.Builder().templateText(templateText).build(), dictionary)
+                         .toString("UTF-8"), output.toString("UTF-8"));
+    }
+
+    /**
+     * A widget which waits until every widget is being rendered
+     */
+    public static class Widget {
+        private final String name;
+        private final CountDownLatch rendering;
+
+        Widget (String name, CountDownLatch rendering) {
+            this.name = name;
+            this.rendering = rendering;
+        }
+
+        public String getBody () throws InterruptedException {
+            rendering.countDown();
+            return rendering.await(10, TimeUnit.SECONDS) ? name : "timed out";
+        }
+    }
+
+    @Test
+    public void rendersMarkedElementsInParallel () throws Exception {
+        String templateText = "<html xmlns:tal=\"http://xml.zope.org/namespaces/tal\" tal:define=\"title string:Dashboard\">" +
+            "<h1 tal:content=\"title\">title</h1><div class=\"widgets\">" +
+            "<p tal:parallel=\"\" tal:content=\"one/body\">one</p><hr/>" +
+            "<p tal:parallel=\"\" tal:content=\"two/body\">two</p>" +
+            "<ul tal:parallel=\"\"><li tal:repeat=\"item items\" tal:content=\"string:${title} ${repeat/item/number}\">item</li></ul>" +
+            "<p tal:parallel=\"\" tal:content=\"three/body\">three</p></div></html>";
+        CountDownLatch rendering = new CountDownLatch(3);
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("one", new Widget("one", rendering));
+        dictionary.put("two", new Widget("two", rendering));
+        dictionary.put("three", new Widget("three", rendering));
+        dictionary.put("items", Arrays.asList("a", "b"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            PageTemplate template = new PageTemplateImpl.Builder()
+                .templateText(templateText)
+                .executor(executor)
+                .build();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            template.process(buffer, null, dictionary);
+            assertEquals("<html><h1>Dashboard</h1><div class=\"widgets\"><p>one</p><hr/><p>two</p>" +
+                             "<ul><li>Dashboard 1</li><li>Dashboard 2</li></ul><p>three</p></div></html>",
+                         buffer.toString("UTF-8"));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rendersNestedParallelElements () throws Exception {
+        String templateText = "<html xmlns:tal=\"http://xml.zope.org/namespaces/tal\">" +
+            "<div tal:repeat=\"row rows\" tal:parallel=\"\">" +
+            "<span tal:repeat=\"cell row\" tal:parallel=\"\" tal:content=\"cell\">cell</span></div></html>";
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        List<List<Integer>> rows = new ArrayList<List<Integer>>();
+        for (int i = 0; i < 20; i++) {
+            rows.add(Arrays.asList(i, i * 10, i * 100));
+        }
+        dictionary.put("rows", rows);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            String parallel = renderWith(templateText, dictionary, pool);
+            assertEquals(renderWith(templateText, dictionary, null), parallel);
+            assertTrue(parallel.contains("<div><span>19</span><span>190</span><span>1900</span></div></html>"));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private static String renderWith (String templateText, Map<String, Object> dictionary,
+                                      ExecutorService executor) throws Exception {
+        PageTemplate template = new PageTemplateImpl.Builder()
+            .templateText(templateText)
+            .executor(executor)
+            .build();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        template.process(buffer, null, dictionary);
+        return buffer.toString("UTF-8");
+    }
+
+    /**
+     * A value fetched by a task which waits until every fetch has started
+     */
+    private static FutureTask<Object> fetch (final Object value, final CountDownLatch fetching) {
+        return new FutureTask<Object>(new Callable<Object>() {
+            public Object call () throws Exception {
+                fetching.countDown();
+                return fetching.await(10, TimeUnit.SECONDS) ? value : "timed out";
+            }
+        });
+    }
+
+    @Test
+    public void prefetchesDeferredValues () throws Exception {
+        String templateText = "<html xmlns:tal=\"http://xml.zope.org/namespaces/tal\">" +
+            "<h1 tal:content=\"user/name\">name</h1><p tal:content=\"string:${count} orders\">count</p>" +
+            "<ul><li tal:repeat=\"order orders\" tal:content=\"order\">order</li></ul></html>";
+        CountDownLatch fetching = new CountDownLatch(3);
+        Map<String, Object> user = new HashMap<String, Object>();
+        user.put("name", "Ada");
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("user", fetch(user, fetching));
+        dictionary.put("count", fetch(2, fetching));
+        dictionary.put("orders", fetch(Arrays.asList("first", "second"), fetching));
+        FutureTask<Object> unused = fetch("unused", new CountDownLatch(1));
+        dictionary.put("unused", unused);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            assertEquals("<html><h1>Ada</h1><p>2 orders</p><ul><li>first</li><li>second</li></ul></html>",
+                         renderWith(templateText, dictionary, executor));
+            assertFalse(unused.isDone());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void prefetchesOnPrefetchExecutor () throws Exception {
+        String templateText = "<html xmlns:tal=\"http://xml.zope.org/namespaces/tal\">" +
+            "<p tal:content=\"first\">first</p><p tal:content=\"second\">second</p></html>";
+        CountDownLatch fetching = new CountDownLatch(2);
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("first", fetch("one", fetching));
+        dictionary.put("second", fetch("two", fetching));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // no tal:parallel executor; the values are still fetched concurrently
+            PageTemplate template = new PageTemplateImpl.Builder()
+                .templateText(templateText)
+                .prefetchExecutor(executor)
+                .build();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            template.process(buffer, null, dictionary);
+            assertEquals("<html><p>one</p><p>two</p></html>", buffer.toString("UTF-8"));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void deferredValuesAreComputedWhenUsed () throws Exception {
+        String templateText = "<html xmlns:tal=\"http://xml.zope.org/namespaces/tal\">" +
+            "<p tal:content=\"value\">value</p><p tal:condition=\"exists: never\" tal:content=\"never\">never</p></html>";
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("value", fetch("computed", new CountDownLatch(1)));
+        // without an executor, a value is computed on the rendering thread when it is needed
+        assertEquals("<html><p>computed</p></html>", renderWith(templateText, dictionary, null));
+    }
 }
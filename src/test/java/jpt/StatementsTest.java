@@ -20,12 +20,21 @@ package jpt;
 
 import org.junit.Test;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -168,6 +177,33 @@ public class StatementsTest extends JptTestUtil {
         assertTrue (trueResult.equals (removeAllBreaks (result)));
     }
 
+    @Test
+    public void defineLocalAndGlobal () {
+        String templateText = startTag + "<p tal:define=\"local animal string:zebra; global color string:red\">" +
+                "<span tal:define=\"local animal string:lion\" tal:content=\"animal\">inner</span>" +
+                "<b tal:content=\"animal\">outer</b></p>" +
+                "<p tal:content=\"animal | string:out of scope\">animal</p><p tal:content=\"color\">color</p>" + endTag;
+        Map<String, Object> dictionary = new HashMap<String, Object> ();
+        dictionary.put ("animal", "shadowed");
+        String result = processTemplate (templateText, null, null);
+        showTransformation (templateText, result);
+        String trueResult = "<html><p><span>lion</span><b>zebra</b></p>" +
+                "<p>out of scope</p><p>red</p></html>";
+        assertTrue (trueResult.equals (removeAllBreaks (result)));
+        // a local definition hides a dictionary entry only within its element
+        result = processTemplate (templateText, null, dictionary);
+        trueResult = "<html><p><span>lion</span><b>zebra</b></p>" +
+                "<p>shadowed</p><p>red</p></html>";
+        assertTrue (trueResult.equals (removeAllBreaks (result)));
+        assertTrue ("shadowed".equals (dictionary.get ("animal")));
+        // a global definition made inside a local frame outlives the frame
+        templateText = startTag + "<div tal:define=\"local x string:a\"><span tal:define=\"global x string:b\"/></div>" +
+                "<p tal:content=\"x\"/>" + endTag;
+        result = processTemplate (templateText, null, null);
+        showTransformation (templateText, result);
+        assertTrue (removeAllBreaks (result).endsWith ("<p>b</p></html>"));
+    }
+
     class DataObject3 {
         List<String> people = Arrays.asList (
                 "Chris", "Karen", "Mike", "Marsha", "Christiane");
@@ -239,4 +275,150 @@ public class StatementsTest extends JptTestUtil {
         String trueResult = "<html><p>4</p></html>";
         assertTrue (trueResult.equals (removeAllBreaks (result)));
     }
+
+    /**
+     * An Iterable which is not a Collection, made up as it is read
+     */
+    static class Countdown implements Iterable<Integer> {
+        private final int from;
+
+        Countdown (int from) {
+            this.from = from;
+        }
+
+        public Iterator<Integer> iterator () {
+            return new Iterator<Integer> () {
+                private int next = from;
+
+                public boolean hasNext () {
+                    return next > 0;
+                }
+
+                public Integer next () {
+                    return next--;
+                }
+
+                public void remove () {
+                    throw new UnsupportedOperationException ();
+                }
+            };
+        }
+    }
+
+    /**
+     * A forward only ResultSet of (id, name) rows
+     */
+    /**
+     * @param rows the values of each row; a null row fails to be read
+     */
+    private static ResultSet resultSet (final Object[][] rows) {
+        final ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance (
+            StatementsTest.class.getClassLoader (), new Class<?>[]{ResultSetMetaData.class}, new InvocationHandler () {
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    if (method.getName ().equals ("getColumnCount")) {
+                        return 2;
+                    }
+                    return ((Integer) args[0]) == 1 ? "id" : "name";
+                }
+            });
+        return (ResultSet) Proxy.newProxyInstance (
+            StatementsTest.class.getClassLoader (), new Class<?>[]{ResultSet.class}, new InvocationHandler () {
+                private int row = -1;
+
+                public Object invoke (Object proxy, Method method, Object[] args) throws SQLException {
+                    if (method.getName ().equals ("next")) {
+                        if ((++row < rows.length) && (rows[row] == null)) {
+                            throw new SQLException ("connection lost");
+                        }
+                        return row < rows.length;
+                    }
+                    if (method.getName ().equals ("getMetaData")) {
+                        return metaData;
+                    }
+                    if (method.getName ().equals ("getObject")) {
+                        return rows[row][((Integer) args[0]) - 1];
+                    }
+                    throw new UnsupportedOperationException (method.getName ());
+                }
+            });
+    }
+
+    @Test
+    public void repeatOverLazySources () throws Exception {
+        String templateText = startTag + "<p tal:repeat=\"item items\"><b tal:replace=\"item\">item</b>" +
+            "<i tal:condition=\"repeat/item/end\"> end</i></p>" + endTag;
+        String trueResult = "<html><p>3</p><p>2</p><p>1<i> end</i></p></html>";
+        Map<String, Object> dictionary = new HashMap<String, Object> ();
+        dictionary.put ("items", new Countdown (3));
+        assertEquals (trueResult, removeAllBreaks (processTemplate (templateText, null, dictionary)));
+        dictionary.put ("items", new int[]{3, 2, 1});
+        assertEquals (trueResult, removeAllBreaks (processTemplate (templateText, null, dictionary)));
+        try {
+            // Streams are only found on Java 8 and later
+            Object stream = Collection.class.getMethod ("stream").invoke (Arrays.asList (3, 2, 1));
+            dictionary.put ("items", stream);
+            assertEquals (trueResult, removeAllBreaks (processTemplate (templateText, null, dictionary)));
+            Object spliterator = Collection.class.getMethod ("spliterator").invoke (Arrays.asList (3, 2, 1));
+            dictionary.put ("items", spliterator);
+            assertEquals (trueResult, removeAllBreaks (processTemplate (templateText, null, dictionary)));
+        }
+        catch (NoSuchMethodException e) {
+            // Java 7
+        }
+    }
+
+    @Test
+    public void repeatOverResultSet () {
+        String templateText = startTag + "<table><tr tal:repeat=\"row rows\"><td tal:content=\"row/id\">id</td>" +
+            "<td tal:content=\"row/name\">name</td><td tal:condition=\"repeat/row/end\">last</td></tr></table>" + endTag;
+        Map<String, Object> dictionary = new HashMap<String, Object> ();
+        dictionary.put ("rows", resultSet (new Object[][]{{1, "Ada"}, {2, "Grace"}}));
+        String result = processTemplate (templateText, null, dictionary);
+        showTransformation (templateText, result);
+        assertEquals ("<html><table><tr><td>1</td><td>Ada</td></tr><tr><td>2</td><td>Grace</td><td>last</td></tr></table></html>",
+                      removeAllBreaks (result));
+    }
+
+    /**
+     * A row which can not be read is an error in the template, suppressed as any other
+     */
+    @Test
+    public void repeatOverFailingResultSet () {
+        String templateText = startTag + "<table><tr tal:repeat=\"row rows\"><td tal:content=\"row/name\">name</td></tr></table>" + endTag;
+        Map<String, Object> dictionary = new HashMap<String, Object> ();
+        dictionary.put ("rows", resultSet (new Object[][]{{1, "Ada"}, null}));
+        LOG.info ("NOTE: the following stack trace is expected:");
+        String result = processTemplate (templateText, null, dictionary);
+        showTransformation (templateText, result);
+        assertEquals ("<html><table><tr><td>Ada</td></tr></table></html>", removeAllBreaks (result));
+    }
+
+    /**
+     * A stream is closed even when an error stops the repeat before its end
+     */
+    @Test
+    public void streamIsClosedWhenRepeatFails () throws Exception {
+        final boolean[] closed = new boolean[1];
+        Object stream;
+        try {
+            // Streams are only found on Java 8 and later
+            stream = Collection.class.getMethod ("stream").invoke (Arrays.asList (3, 2, 1));
+            stream = Class.forName ("java.util.stream.BaseStream").getMethod ("onClose", Runnable.class)
+                .invoke (stream, new Runnable () {
+                    public void run () {
+                        closed[0] = true;
+                    }
+                });
+        }
+        catch (NoSuchMethodException e) {
+            // Java 7
+            return;
+        }
+        String templateText = startTag + "<p tal:repeat=\"item items\" tal:content=\"item/missing\">item</p>" + endTag;
+        Map<String, Object> dictionary = new HashMap<String, Object> ();
+        dictionary.put ("items", stream);
+        LOG.info ("NOTE: the following stack trace is expected:");
+        processTemplate (templateText, null, dictionary);
+        assertTrue (closed[0]);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,174 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+public class TemplateArchiveTest extends JptTestUtil {
+
+    private static final String PAGE = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" " +
+        "\"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n" +
+        "<html xmlns=\"http://www.w3.org/1999/xhtml\" xmlns:tal=\"" + Constants.TAL_NAMESPACE_URI + "\" " +
+        "xmlns:x=\"urn:x\"><head><title tal:content=\"title\">title</title></head>\n" +
+        "<body class=\"a &amp; b\" x:id=\"1\"><!-- caf\u00e9 --><?pi data?><![CDATA[x < y]]>" +
+        "<ul><li tal:repeat=\"item items\" tal:content=\"item\">item</li></ul></body></html>";
+
+    private static void write (File file, String text) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream output = new FileOutputStream(file);
+        output.write(text.getBytes("UTF-8"));
+        output.close();
+    }
+
+    private static String render (PageTemplate template) throws Exception {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("title", "Caf\u00e9 & cr\u00e8me");
+        dictionary.put("items", Arrays.asList("one", "<two>"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        template.process(output, null, dictionary);
+        return output.toString("UTF-8");
+    }
+
+    private static File temporaryDirectory () throws IOException {
+        File directory = File.createTempFile("jpt", "");
+        directory.delete();
+        directory.mkdir();
+        return directory;
+    }
+
+    private static void delete (File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Test
+    public void archivedTemplatesRenderAsParsedTemplates () throws Exception {
+        File directory = temporaryDirectory();
+        try {
+            File sources = new File(directory, "templates");
+            write(new File(sources, "page.html"), PAGE);
+            write(new File(sources, "macros/layout.html"), "<html xmlns:metal=\"" + Constants.METAL_NAMESPACE_URI +
+                "\"><body metal:define-macro=\"layout\">layout</body></html>");
+            write(new File(sources, "notes.txt"), "not a template");
+            new File(sources, "page.html").setLastModified(1000000000000L);
+            File archive = new File(directory, "templates.jpta");
+            assertEquals(2, TemplateArchive.write(sources, archive, ".html"));
+
+            TemplateArchive templates = new TemplateArchive(archive);
+            assertEquals(Arrays.asList("macros/layout.html", "page.html"),
+                         Arrays.asList(templates.getPaths().toArray()));
+            assertFalse(templates.contains("notes.txt"));
+            assertNull(templates.builder("notes.txt"));
+            assertEquals(1000000000000L, templates.getLastModified("page.html"));
+
+            PageTemplate parsed = new PageTemplateImpl.Builder().templateText(PAGE).suppressDeclaration(false).build();
+            PageTemplate archived = templates.builder("page.html").suppressDeclaration(false).build();
+            assertEquals(render(parsed), render(archived));
+            assertTrue(render(archived).contains("<li>&lt;two></li>"));
+            assertTrue(templates.builder("macros/layout.html").build().getMacros().containsKey("layout"));
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void malformedTemplatesAreReported () throws Exception {
+        File directory = temporaryDirectory();
+        try {
+            write(new File(directory, "broken.html"), "<html><p></html>");
+            try {
+                TemplateArchive.write(directory, new File(directory, "templates.jpta"));
+                fail();
+            }
+            catch (IOException e) {
+                assertTrue(e.getMessage().contains("broken.html"));
+            }
+            write(new File(directory, "not-an-archive"), "<html/>");
+            try {
+                new TemplateArchive(new File(directory, "not-an-archive"));
+                fail();
+            }
+            catch (IOException e) {
+                assertTrue(e.getMessage().contains("not a template archive"));
+            }
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void archiveResolverServesTemplatesAndScripts () throws Exception {
+        File directory = temporaryDirectory();
+        try {
+            File sources = new File(directory, "templates");
+            write(new File(sources, "page.html"), "<html xmlns:tal=\"" + Constants.TAL_NAMESPACE_URI +
+                "\" xmlns:metal=\"" + Constants.METAL_NAMESPACE_URI + "\">" +
+                "<div metal:use-macro=\"resolver/getPageTemplate( 'macros/box.html' )/macros/box\">box</div>" +
+                "<p tal:content=\"resolver/getExpressionScript( 'scripts/sum.mvel' )\">sum</p></html>");
+            write(new File(sources, "macros/box.html"), "<html xmlns:metal=\"" + Constants.METAL_NAMESPACE_URI +
+                "\"><b metal:define-macro=\"box\">boxed</b></html>");
+            write(new File(sources, "scripts/sum.mvel"), "2 + 3");
+            File archive = new File(directory, "templates.jpta");
+            assertEquals(3, TemplateArchive.write(sources, archive, Arrays.asList(".html"), Arrays.asList(".mvel")));
+            delete(sources);
+
+            ArchiveResolver resolver = new ArchiveResolver(archive);
+            assertFalse(resolver.getArchive().contains("scripts/sum.mvel"));
+            assertNull(resolver.getPageTemplate("missing.html"));
+            PageTemplate page = resolver.getPageTemplate("page.html");
+            assertSame(page, resolver.getPageTemplate("page.html"));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            page.process(output, null, null);
+            assertEquals("<html><b>boxed</b><p>5</p></html>", output.toString("UTF-8"));
+            // missing.html, page.html and, for its macro, macros/box.html
+            assertEquals(3, resolver.getTemplateCache().getLoadCount());
+        }
+        finally {
+            delete(directory);
+        }
+    }
+}
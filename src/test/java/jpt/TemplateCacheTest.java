@@ -0,0 +1,370 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+public class TemplateCacheTest extends JptTestUtil {
+
+    private static PageTemplate template (int elements) {
+        StringBuilder text = new StringBuilder("<html>");
+        for (int i = 1; i < elements; i++) {
+            text.append("<p>").append(i).append("</p>");
+        }
+        return new PageTemplateImpl.Builder().templateText(text.append("</html>").toString()).build();
+    }
+
+    /**
+     * Loads a template of one element and counts the loads
+     */
+    private static class CountingLoader implements TemplateCache.Loader {
+        final AtomicInteger loads = new AtomicInteger();
+
+        public PageTemplate load (String path) throws PageTemplateException, IOException {
+            loads.incrementAndGet();
+            return template(1);
+        }
+    }
+
+    @Test
+    public void loadsOnceThenHits () throws Exception {
+        TemplateCache cache = new TemplateCache();
+        CountingLoader loader = new CountingLoader();
+        PageTemplate first = cache.get("a.html", loader);
+        assertSame(first, cache.get("a.html", loader));
+        assertEquals(1, loader.loads.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getLoadCount());
+        assertEquals(0.5, cache.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed () throws Exception {
+        TemplateCache cache = new TemplateCache(2, Long.MAX_VALUE);
+        CountingLoader loader = new CountingLoader();
+        cache.get("a.html", loader);
+        cache.get("b.html", loader);
+        cache.get("a.html", loader);
+        cache.get("c.html", loader);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.getIfPresent("b.html"));
+        cache.get("a.html", loader);
+        assertEquals(3, loader.loads.get());
+    }
+
+    @Test
+    public void evictsByWeight () throws Exception {
+        TemplateCache cache = new TemplateCache(100, 10);
+        cache.put("small.html", template(4));
+        cache.put("medium.html", template(5));
+        assertEquals(9, cache.weight());
+        cache.put("large.html", template(6));
+        assertEquals(2, cache.getEvictionCount());
+        assertEquals(1, cache.size());
+        assertEquals(6, cache.weight());
+    }
+
+    @Test
+    public void missingTemplateIsNotCached () throws Exception {
+        TemplateCache cache = new TemplateCache();
+        final AtomicInteger loads = new AtomicInteger();
+        TemplateCache.Loader loader = new TemplateCache.Loader() {
+            public PageTemplate load (String path) {
+                loads.incrementAndGet();
+                return null;
+            }
+        };
+        assertNull(cache.get("missing.html", loader));
+        assertNull(cache.get("missing.html", loader));
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void failedLoadIsReported () throws Exception {
+        TemplateCache cache = new TemplateCache();
+        TemplateCache.Loader loader = new TemplateCache.Loader() {
+            public PageTemplate load (String path) throws IOException {
+                throw new IOException("unreadable");
+            }
+        };
+        try {
+            cache.get("broken.html", loader);
+            fail();
+        }
+        catch (IOException e) {
+            assertEquals("unreadable", e.getMessage());
+        }
+        assertEquals(1, cache.getLoadFailureCount());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Threads asking for the same template while it is loaded wait for it
+     */
+    @Test
+    public void loadsOncePerPath () throws Exception {
+        final TemplateCache cache = new TemplateCache();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final TemplateCache.Loader loader = new TemplateCache.Loader() {
+            public PageTemplate load (String path) throws IOException {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                return template(1);
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<PageTemplate>> results = new ArrayList<Future<PageTemplate>>();
+            Callable<PageTemplate> get = new Callable<PageTemplate>() {
+                public PageTemplate call () throws Exception {
+                    return cache.get("shared.html", loader);
+                }
+            };
+            results.add(executor.submit(get));
+            loading.await();
+            for (int i = 0; i < 7; i++) {
+                results.add(executor.submit(get));
+            }
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<PageTemplate> result : results) {
+                assertSame(results.get(0).get(), result.get());
+            }
+            assertEquals(1, loads.get());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void resolverCachesLoadedTemplates () throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final File file = File.createTempFile("jpt", ".html");
+        FileWriter writer = new FileWriter(file);
+        writer.write("<html>cached</html>");
+        writer.close();
+        try {
+            Resolver resolver = new Resolver() {
+                protected URL getResource (String path) throws IOException {
+                    lookups.incrementAndGet();
+                    return file.toURI().toURL();
+                }
+            };
+            PageTemplate template = resolver.getPageTemplate("page.html");
+            assertSame(template, resolver.getPageTemplate("page.html"));
+            assertEquals(1, lookups.get());
+            assertEquals(1, resolver.getTemplateCache().getHitCount());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void claimsCheckOncePerInterval () throws Exception {
+        TemplateCache cache = new TemplateCache();
+        cache.put("a.html", template(1));
+        assertFalse(cache.claimCheck("a.html", 60000));
+        assertTrue(cache.claimCheck("a.html", 0));
+        assertFalse(cache.claimCheck("missing.html", 0));
+    }
+
+    private static void write (File file, String text) throws IOException {
+        long modified = file.lastModified();
+        FileWriter writer = new FileWriter(file);
+        writer.write(text);
+        writer.close();
+        // file times may be as coarse as seconds
+        file.setLastModified(Math.max(modified + 2000, System.currentTimeMillis()));
+    }
+
+    private static String render (PageTemplate template) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        template.process(output, null, null);
+        return output.toString("UTF-8");
+    }
+
+    private static File temporaryDirectory () throws IOException {
+        File directory = File.createTempFile("jpt", "");
+        directory.delete();
+        directory.mkdir();
+        return directory;
+    }
+
+    private static void delete (File directory) {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void resolverReloadsChangedTemplate () throws Exception {
+        File directory = temporaryDirectory();
+        try {
+            File page = new File(directory, "page.html");
+            write(page, "<html>one</html>");
+            URIResolver resolver = new URIResolver(directory.toURI());
+            resolver.setCheckInterval(0);
+            PageTemplate template = resolver.getPageTemplate("page.html");
+            assertSame(template, resolver.getPageTemplate("page.html"));
+
+            write(page, "<html>two</html>");
+            template = resolver.getPageTemplate("page.html");
+            assertTrue(render(template).contains("two"));
+            assertSame(template, resolver.getPageTemplate("page.html"));
+
+            // an event for the change seen only now leaves the template loaded since
+            TemplateWatcher watcher = TemplateWatcher.getInstance();
+            if (watcher != null) {
+                watcher.changed(Collections.singletonList(page.toPath().toAbsolutePath().normalize()));
+                assertSame(template, resolver.getTemplateCache().getIfPresent("page.html"));
+            }
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * A template keeps using the macros of another template as they change
+     */
+    @Test
+    public void resolverReloadsChangedMacros () throws Exception {
+        File directory = temporaryDirectory();
+        try {
+            write(new File(directory, "page.html"),
+                  "<html xmlns:metal=\"" + Constants.METAL_NAMESPACE_URI + "\">" +
+                      "<p metal:use-macro=\"resolver/getPageTemplate( 'macros.html' )/macros/box\">box</p></html>");
+            File macros = new File(directory, "macros.html");
+            String macro = "<html xmlns:metal=\"" + Constants.METAL_NAMESPACE_URI + "\">" +
+                "<p metal:define-macro=\"box\">%s</p></html>";
+            write(macros, String.format(macro, "old"));
+            URIResolver resolver = new URIResolver(directory.toURI());
+            resolver.setCheckInterval(0);
+            PageTemplate template = resolver.getPageTemplate("page.html");
+            assertTrue(render(template).contains("old"));
+
+            write(macros, String.format(macro, "new"));
+            assertSame(template, resolver.getPageTemplate("page.html"));
+            assertTrue(render(template).contains("new"));
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * A template read from a file is dropped from the cache when the file changes,
+     * without waiting for the check interval
+     */
+    @Test
+    public void watchedTemplateIsReloaded () throws Exception {
+        File directory = temporaryDirectory();
+        try {
+            File page = new File(directory, "page.html");
+            write(page, "<html>one</html>");
+            URIResolver resolver = new URIResolver(directory.toURI());
+            resolver.setCheckInterval(3600000);
+            PageTemplate template = resolver.getPageTemplate("page.html");
+            if (TemplateWatcher.getInstance() == null) {
+                return;
+            }
+            write(page, "<html>two</html>");
+            for (int i = 0; i < 200 && resolver.getTemplateCache().getIfPresent("page.html") != null; i++) {
+                Thread.sleep(50);
+            }
+            PageTemplate reloaded = resolver.getPageTemplate("page.html");
+            assertNotSame(template, reloaded);
+            assertTrue(render(reloaded).contains("two"));
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * The watcher forgets the files of caches which have been collected
+     */
+    @Test
+    public void watcherForgetsCollectedCaches () throws Exception {
+        TemplateWatcher watcher = TemplateWatcher.getInstance();
+        if (watcher == null) {
+            return;
+        }
+        File directory = temporaryDirectory();
+        try {
+            TemplateCache cache = new TemplateCache();
+            for (int i = 0; i < 100; i++) {
+                watcher.watch(new File(directory, "page" + i + ".html"), cache, "page" + i + ".html");
+            }
+            int watched = watcher.size();
+            assertTrue(watched >= 100);
+            cache = null;
+            for (int i = 0; i < 50 && watcher.size() > watched - 100; i++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            assertTrue(watcher.size() <= watched - 100);
+        }
+        finally {
+            delete(directory);
+        }
+    }
+}
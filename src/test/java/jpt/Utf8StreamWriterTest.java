@@ -0,0 +1,196 @@
+/**
+ *  Java Page Templates
+ *  Copyright (C) 2004-2011 Christopher M Rossi
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package jpt;
+
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+import org.junit.Test;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The JPT writer must write exactly what the Woodstox writer writes
+ *
+ * @author Chris Rossi
+ * @author Todd Cook
+ * @version Revision: 1.7
+ */
+public class Utf8StreamWriterTest extends JptTestUtil {
+
+    interface Writing {
+        void write (XMLStreamWriter writer) throws XMLStreamException;
+    }
+
+    private static String woodstox (Writing writing) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(buffer);
+        writing.write(writer);
+        writer.close();
+        return new String(buffer.toByteArray(), "UTF-8");
+    }
+
+    private static String jpt (Writing writing) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        XMLStreamWriter writer = new Utf8StreamWriter(buffer);
+        writing.write(writer);
+        writer.close();
+        return new String(buffer.toByteArray(), "UTF-8");
+    }
+
+    private static void assertSameOutput (Writing writing) throws Exception {
+        assertEquals(woodstox(writing), jpt(writing));
+    }
+
+    @Test
+    public void escaping () throws Exception {
+        assertSameOutput(new Writing() {
+            public void write (XMLStreamWriter writer) throws XMLStreamException {
+                writer.writeStartDocument();
+                writer.writeCharacters("\n");
+                writer.writeStartElement("", "p", "");
+                writer.writeAttribute("", "", "title", "< > & \" ' \t\r\n \u00e9");
+                writer.writeCharacters("< > & \" ' ]]> \u00e9 \u20ac \ud83d\ude00 \t\r\n \ufffe");
+                writer.writeStartElement("", "b", "");
+                writer.writeEndElement();
+                writer.writeStartElement("", "i", "");
+                writer.writeCharacters("");
+                writer.writeEndElement();
+                writer.writeComment(" comment ");
+                writer.writeProcessingInstruction("target", "data");
+                writer.writeCData("x < y");
+                writer.writeEntityRef("nbsp");
+                writer.writeEndDocument();
+            }
+        });
+    }
+
+    @Test
+    public void namespaces () throws Exception {
+        assertSameOutput(new Writing() {
+            public void write (XMLStreamWriter writer) throws XMLStreamException {
+                writer.writeStartElement("h", "html", "urn:h");
+                writer.writeNamespace("h", "urn:h");
+                writer.writeNamespace("", "urn:default");
+                writer.writeStartElement("h", "body", "urn:h");
+                writer.writeAttribute("h", "urn:h", "class", "a");
+                writer.writeEndElement();
+                writer.writeEndElement();
+            }
+        });
+    }
+
+    @Test
+    public void largeOutput () throws Exception {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("caf\u00e9 & cr\u00e8me ");
+        }
+        assertSameOutput(new Writing() {
+            public void write (XMLStreamWriter writer) throws XMLStreamException {
+                writer.writeStartElement("", "p", "");
+                writer.writeCharacters(text.toString());
+                writer.writeEndElement();
+            }
+        });
+    }
+
+    @Test
+    public void secondRootFails () throws Exception {
+        try {
+            jpt(new Writing() {
+                public void write (XMLStreamWriter writer) throws XMLStreamException {
+                    writer.writeStartElement("a");
+                    writer.writeEndElement();
+                    writer.writeStartElement("b");
+                }
+            });
+            fail();
+        }
+        catch (XMLStreamException e) {
+            assertEquals("Trying to output second root, <b>", e.getMessage());
+        }
+    }
+
+    /**
+     * Renders a template with the JPT writer, and with the Woodstox writer
+     * from a separately parsed document, and compares the output
+     */
+    private static void assertSameTemplateOutput (String templateText, final Map<String, Object> dictionary)
+        throws Exception {
+        final PageTemplateImpl template = (PageTemplateImpl) new PageTemplateImpl.Builder()
+            .templateText(templateText)
+            .build();
+        final Element root = new SAXBuilder().build(new StringReader(templateText)).getRootElement();
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        template.process(buffer, null, dictionary);
+        String expected = woodstox(new Writing() {
+            public void write (XMLStreamWriter writer) throws XMLStreamException {
+                try {
+                    template.process(root, writer, null, dictionary,
+                                     new ArrayDeque<Map<String, Slot>>());
+                }
+                catch (PageTemplateException e) {
+                    throw new XMLStreamException(e);
+                }
+            }
+        });
+        assertEquals(expected, new String(buffer.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void templateOutput () throws Exception {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("items", new String[]{"<one>", "tw\u00f6", "\"three\""});
+        dictionary.put("html", new HTMLFragment("<b>bold</b>", true));
+        assertSameTemplateOutput("<html xmlns:tal=\"" + Constants.TAL_NAMESPACE_URI + "\" xmlns:x=\"urn:x\">" +
+                                     "<body class=\"a &amp; b\"><x:p tal:repeat=\"item items\" tal:attributes=\"title item\" " +
+                                     "tal:content=\"item\">item</x:p><br/><i tal:content=\"structure html\">html</i>" +
+                                     "<!-- comment --> text &amp; \u00e9</body></html>", dictionary);
+    }
+
+    @Test
+    public void staticContent () throws Exception {
+        Map<String, Object> dictionary = new HashMap<String, Object>();
+        dictionary.put("items", new String[]{"one", "two"});
+        String tal = "xmlns:tal=\"" + Constants.TAL_NAMESPACE_URI + "\"";
+        // Static runs before, between and after dynamic elements; attrs left by static elements
+        assertSameTemplateOutput("<html " + tal + "><head><title>Static</title><meta name=\"a\" content=\"b\"/></head>" +
+                                     "<body><div class=\"header\"><p>one <b>two</b><i></i></p><!-- c --><?pi data?>" +
+                                     "<![CDATA[x < y]]></div>" +
+                                     "<ul tal:repeat=\"item items\" tal:attributes=\"title attrs/class | nothing\">" +
+                                     "<li class=\"first\">static</li><li tal:content=\"item\">item</li>" +
+                                     "<li class=\"last\"><span class=\"deepest\">static</span></li></ul>" +
+                                     "<p xmlns:x=\"urn:x\" x:a=\"&quot;\">static after</p></body></html>", dictionary);
+        // A template without statements
+        assertSameTemplateOutput("<html><body><p>static</p></body></html>", dictionary);
+        // Static elements written outside the root, where an omitted tag was
+        assertSameTemplateOutput("<html " + tal + " tal:omit-tag=\"\"><p>static</p></html>", dictionary);
+    }
+}